@@ -0,0 +1,63 @@
+package ca.usask.abm;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import ca.usask.abm.SyntheticModel.Sim;
+
+/**
+ * Measures the classification of a single agent into its cell: StatisticsSpec.evalPartitionsOn
+ * (a boxed list of IDs) against the linear cell index of the compiled spec. Times are per agent.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ClassificationBenchmark {
+	private static final int AGENTS = 10000;
+
+	@Param({"1", "3", "5", "10"})
+	int partitions;
+
+	private StatisticsSpec<Sim> spec;
+	private CompiledStatisticsSpec<Sim> compiled;
+	private Timed<Sim>[] objects;
+
+	@Setup
+	@SuppressWarnings("unchecked")
+	public void setup(){
+		spec = SyntheticModel.spec(partitions, 1);
+		compiled = spec.compile();
+		List<Sim> sims = new SyntheticModel(AGENTS).sims();
+		objects = new Timed[AGENTS];
+		for (int i = 0; i < AGENTS; i++) objects[i] = new Timed<Sim>(5, sims.get(i));
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(AGENTS)
+	public void evalPartitionsOn(Blackhole bh){
+		for (Timed<Sim> obj : objects) bh.consume(spec.evalPartitionsOn(obj));
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(AGENTS)
+	public void cellIndex(Blackhole bh){
+		for (Timed<Sim> obj : objects) bh.consume(compiled.cellIndex(obj));
+	}
+}
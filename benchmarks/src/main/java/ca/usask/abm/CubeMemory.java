@@ -0,0 +1,73 @@
+package ca.usask.abm;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Measures the heap retained by the statistics of the THIM output tables of the synthetic model,
+ * with every cell filled: as a flat {@link DenseStatisticsCube}, and as a MultiDimArray holding a
+ * List of boxed Doubles per cell (the representation the cube replaced). Each table is built
+ * many times over, and the retained heap is the difference in used heap after full collections.
+ * Run with: java -cp benchmarks/target/benchmarks.jar ca.usask.abm.CubeMemory
+ */
+public class CubeMemory {
+	private static final int COPIES = 200;
+
+	public static void main(String[] args){
+		Map<String, StatisticsCollector<?>> collectors = SyntheticModel.thimStats().collectors();
+		System.out.printf("%-16s %14s %12s %12s%n", "table", "cells x stats", "lists", "cube");
+		long listsTotal = 0, cubeTotal = 0;
+		for (Map.Entry<String, StatisticsCollector<?>> table : collectors.entrySet()){
+			StatisticsCube shape = table.getValue().partitionedStats;
+			List<Integer> dims = new ArrayList<Integer>();
+			for (int d : shape.dimensions()) dims.add(d);
+			int cells = (int) shape.cells();
+			int stats = shape.statistics();
+			long lists = retained(dims, stats, true);
+			long cube = retained(dims, stats, false);
+			listsTotal += lists;
+			cubeTotal += cube;
+			System.out.printf("%-16s %14s %9.1f KiB %9.1f KiB%n", table.getKey(), cells + " x " + stats, lists / 1024.0, cube / 1024.0);
+		}
+		System.out.printf("%-16s %14s %9.1f KiB %9.1f KiB%n", "total", "", listsTotal / 1024.0, cubeTotal / 1024.0);
+	}
+
+	/**
+	 * @return the heap retained by one filled copy of the table, in bytes
+	 */
+	private static long retained(List<Integer> dims, int stats, boolean lists){
+		Random random = new Random(1);
+		Object[] copies = new Object[COPIES];
+		long before = usedHeap();
+		for (int c = 0; c < COPIES; c++){
+			if (lists){
+				MultiDimArray<List<Double>> array = new MultiDimArray<List<Double>>(dims, null);
+				for (int cell = 0; cell < array.size(); cell++){
+					List<Double> values = new ArrayList<Double>();
+					for (int s = 0; s < stats; s++) values.add(random.nextDouble());
+					array.set(cell, values);
+				}
+				copies[c] = array;
+			} else {
+				List<Double> initial = new ArrayList<Double>();
+				for (int s = 0; s < stats; s++) initial.add(0.0);
+				StatisticsCube cube = new DenseStatisticsCube(dims, initial);
+				for (long cell = 0; cell < cube.cells(); cell++){
+					for (int s = 0; s < stats; s++) cube.set(cell, s, random.nextDouble());
+				}
+				copies[c] = cube;
+			}
+		}
+		long after = usedHeap();
+		if (copies[COPIES - 1] == null) throw new AssertionError(); // keep the copies reachable until measured
+		return (after - before) / COPIES;
+	}
+
+	private static long usedHeap(){
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 4; i++) System.gc();
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+}
@@ -0,0 +1,97 @@
+package ca.usask.abm;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ca.usask.abm.SyntheticModel.BirthEvent;
+import ca.usask.abm.SyntheticModel.DeathEvent;
+import ca.usask.abm.SyntheticModel.Event;
+
+/**
+ * Measures ABMStats.event, as a function of the number of event collectors. Half of the
+ * collectors are interested in deaths and half in births, and the events alternate between
+ * the two, so every event is dispatched to half of the collectors. The time moves to the
+ * next year every EVENTS_PER_YEAR events, which flushes the buffered events into the cubes. <br>
+ * 
+ * eventLinear is the baseline: it offers each event to every collector in turn, as ABMStats.event 
+ * did before its per-class dispatch table, so each collector checks the class of every event.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EventBenchmark {
+	private static final int EVENTS_PER_YEAR = 10000;
+	private static final int DISTINCT_EVENTS = 1 << 12;
+
+	@Param({"1", "2", "8", "32"})
+	int collectors;
+
+	@Param({"false", "true"})
+	boolean concurrent;
+
+	private ABMStats<SyntheticModel, Event> stats;
+	private List<EventStatisticsCollector<Event, ?>> observers;
+	private Event[] events;
+	private int next;
+	private double time;
+
+	@Setup
+	public void setup(){
+		stats = new ABMStats<SyntheticModel, Event>();
+		observers = new ArrayList<EventStatisticsCollector<Event, ?>>();
+		for (int c = 0; c < collectors; c++){
+			EventStatisticsCollector<Event, ?> collector = c % 2 == 0 ? collector(DeathEvent.class) : collector(BirthEvent.class);
+			stats.addEventCollector((c % 2 == 0 ? "Deaths" : "Births") + c, collector);
+			observers.add(collector);
+		}
+		stats.setConcurrentEvents(concurrent);
+		events = new SyntheticModel(0).events(DISTINCT_EVENTS, false);
+		next = 0;
+		time = 0;
+	}
+
+	@Benchmark
+	public void event(){
+		Event e = events[next++ & (DISTINCT_EVENTS - 1)];
+		time += 1.0 / EVENTS_PER_YEAR;
+		if (time >= SyntheticModel.END_TIME) time = 0;
+		stats.event(time, e);
+	}
+
+	@Benchmark
+	public void eventLinear(){
+		Event e = events[next++ & (DISTINCT_EVENTS - 1)];
+		time += 1.0 / EVENTS_PER_YEAR;
+		if (time >= SyntheticModel.END_TIME) time = 0;
+		for (EventStatisticsCollector<Event, ?> observer : observers) observer.update(time, e);
+	}
+
+	private static <E extends Event> EventStatisticsCollector<Event, E> collector(Class<E> eventClass){
+		ToDoubleFunction<E> age = new ToDoubleFunction<E>(){
+			public double applyAsDouble(E e) { return e.age; }
+		};
+		Partition<Double> yearly = Partitions.range(0, 1, SyntheticModel.END_TIME);
+		StatisticsSpec<E> spec = new StatisticsSpec<E>();
+		spec.addPartition("Age", Partitions.range(0, 5, 100).liftDouble(age));
+		spec.addTimePartition("Year", yearly);
+		spec.addStatistic("Count", Statistics.<E>count());
+		spec.addStatistic("Average age", Statistics.mean.onDouble(age));
+		return new EventStatisticsCollector<Event, E>(eventClass, spec, yearly);
+	}
+}
@@ -0,0 +1,85 @@
+package ca.usask.abm;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ca.usask.abm.SyntheticModel.Event;
+
+/**
+ * Measures the export of the THIM output tables after a full run of the synthetic model,
+ * to a spreadsheet and to CSV files. The size of the tables mostly depends on the cells
+ * that were filled, which grows with the number of agents. <br>
+ *
+ * The spreadsheet is written either in memory (XSSF) or streamed with a window of rows (SXSSF);
+ * the peak heap of each is reported by the {@link PeakHeapProfiler}, which the benchmark run
+ * enables by default.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class ExportBenchmark {
+	private static final int EVENTS_PER_YEAR = 100;
+
+	private static final int ROW_WINDOW = 100;
+
+	@Param({"10000", "100000"})
+	int agents;
+
+	@Param({"XSSF", "SXSSF"})
+	String workbook;
+
+	private ABMStats<SyntheticModel, Event> stats;
+	private File directory;
+
+	@Setup
+	public void setup() throws IOException {
+		SyntheticModel model = new SyntheticModel(agents);
+		stats = SyntheticModel.thimStats();
+		Event[] events = model.events(EVENTS_PER_YEAR, true);
+		for (int year = 0; year < SyntheticModel.END_TIME; year++){
+			stats.timeChanged(year, model);
+			for (int i = 0; i < events.length; i++){
+				stats.event(year + (double) i / events.length, events[i]);
+			}
+			model.age(1);
+		}
+		directory = File.createTempFile("abm-stats-export", "");
+		directory.delete();
+		directory.mkdirs();
+	}
+
+	@TearDown
+	public void tearDown(){
+		for (File f : directory.listFiles()) f.delete();
+		directory.delete();
+	}
+
+	@Benchmark
+	public void exportToSpreadsheet(){
+		String path = new File(directory, "stats.xlsx").getPath();
+		if (workbook.equals("SXSSF")) stats.exportToSpreadsheet(path, ROW_WINDOW);
+		else stats.exportToSpreadsheet(path);
+	}
+
+	@Benchmark
+	public void exportToCSV(){
+		stats.exportTo(directory.getPath(), ExportFormat.CSV);
+	}
+}
@@ -0,0 +1,201 @@
+package ca.usask.abm;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import ca.usask.abm.SyntheticModel.Sim;
+
+/**
+ * Measures the classification of a single value by each Partitions factory, as a function of
+ * the number of bins, through the primitive toID and through the boxed one (which allocates a
+ * Double or Integer per value, as a Function-based accessor would). Times are per value. <br>
+ * 
+ * The legacy benchmarks run copies of the boxed range (with its boxed eps and its maxID computed 
+ * on every call) and of the linear-scan between that the primitive partitions replaced, as baselines.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PartitionsBenchmark {
+	private static final int VALUES = 4096;
+	private static final double MAX = 100;
+
+	@Param({"10", "100", "10000"})
+	int bins;
+
+	private DoublePartition range;
+	private DoublePartition between;
+	private IntPartition intRange;
+	private Partition<Integer> fromIterable;
+	private Partition<Sim> lifted;
+	private Partition<Double> legacyRange;
+	private Partition<Double> legacyBetween;
+	private Partition<Sim> legacyLifted;
+	private double[] doubles;
+	private int[] ints;
+	private Sim[] sims;
+
+	@Setup
+	public void setup(){
+		range = Partitions.range(0, MAX / bins, MAX);
+		List<Double> endpoints = new ArrayList<Double>();
+		List<Integer> elements = new ArrayList<Integer>();
+		for (int i = 0; i <= bins; i++){
+			endpoints.add(MAX * i / bins);
+			elements.add(i);
+		}
+		between = Partitions.between(endpoints);
+		intRange = Partitions.intRange(0, bins - 1);
+		fromIterable = Partitions.fromIterable(elements);
+		lifted = range.liftDouble(SyntheticModel.AGE);
+		legacyRange = legacyRange(0, MAX / bins, MAX);
+		legacyBetween = legacyBetween(endpoints);
+		legacyLifted = legacyRange.lift(Functions.boxed(SyntheticModel.AGE));
+
+		Random random = new Random(SyntheticModel.SEED);
+		doubles = new double[VALUES];
+		ints = new int[VALUES];
+		for (int i = 0; i < VALUES; i++){
+			// a few values fall outside of the partitions, as in a model
+			doubles[i] = random.nextDouble() * MAX * 1.05;
+			ints[i] = random.nextInt(bins + bins / 20 + 1);
+		}
+		sims = new SyntheticModel(VALUES).sims().toArray(new Sim[VALUES]);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(VALUES)
+	public void range(Blackhole bh){
+		for (double x : doubles) bh.consume(range.toID(x));
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(VALUES)
+	public void rangeBoxed(Blackhole bh){
+		for (double x : doubles) bh.consume(range.toID(Double.valueOf(x)));
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(VALUES)
+	public void rangeLegacy(Blackhole bh){
+		for (double x : doubles) bh.consume(legacyRange.toID(Double.valueOf(x)));
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(VALUES)
+	public void rangeNextBoundary(Blackhole bh){
+		for (double x : doubles) bh.consume(range.nextBoundary(x));
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(VALUES)
+	public void rangeLifted(Blackhole bh){
+		for (Sim s : sims) bh.consume(lifted.toID(s));
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(VALUES)
+	public void rangeLiftedLegacy(Blackhole bh){
+		for (Sim s : sims) bh.consume(legacyLifted.toID(s));
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(VALUES)
+	public void between(Blackhole bh){
+		for (double x : doubles) bh.consume(between.toID(x));
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(VALUES)
+	public void betweenBoxed(Blackhole bh){
+		for (double x : doubles) bh.consume(between.toID(Double.valueOf(x)));
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(VALUES)
+	public void betweenLegacy(Blackhole bh){
+		for (double x : doubles) bh.consume(legacyBetween.toID(Double.valueOf(x)));
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(VALUES)
+	public void intRange(Blackhole bh){
+		for (int x : ints) bh.consume(intRange.toID(x));
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(VALUES)
+	public void intRangeBoxed(Blackhole bh){
+		for (int x : ints) bh.consume(intRange.toID(Integer.valueOf(x)));
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(VALUES)
+	public void fromIterable(Blackhole bh){
+		for (int x : ints) bh.consume(fromIterable.toID(Integer.valueOf(x)));
+	}
+
+	/**
+	 * Partitions.range as it was before DoublePartition
+	 */
+	private static Partition<Double> legacyRange(final double min, final double step, final double max) {
+		return new Partition<Double>() {
+			private Double eps = 1e-8;
+			@Override
+			public int toID(Double x){
+				if (x > max || x < min) return Partition.INVALID_ID;
+				else {
+					double basic = (x - min) / step; // the number of steps needed to get there
+					int rounded = (int) Math.floor(basic - eps); // the interval number
+					return Math.max(0, rounded); // make sure the answer is nonnegative
+				}
+			}
+			public int maxID() { return toID(max);}
+			public String idLabel(int id) { return String.valueOf(id); }
+		};
+	}
+
+	/**
+	 * Partitions.between as it was before DoublePartition, scanning its endpoints linearly
+	 */
+	private static Partition<Double> legacyBetween(final Collection<Double> es){
+		return new Partition<Double>(){
+			private ArrayList<Double> endpoints = new ArrayList<Double>(es);
+			@Override
+			public int maxID() {
+				return endpoints.size();
+			}
+			@Override
+			public int toID(Double elem) {
+				int index = 0;
+				for (double e : endpoints){
+					if (elem < e) return index;
+					index++;
+				}
+				// must be greater than any element in the collection
+				return maxID();
+			}
+			public String idLabel(int id) { return String.valueOf(id); }
+		};
+	}
+}
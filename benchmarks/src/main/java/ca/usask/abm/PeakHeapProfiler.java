@@ -0,0 +1,47 @@
+package ca.usask.abm;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.Collection;
+import java.util.Collections;
+
+import org.openjdk.jmh.infra.BenchmarkParams;
+import org.openjdk.jmh.infra.IterationParams;
+import org.openjdk.jmh.profile.InternalProfiler;
+import org.openjdk.jmh.results.AggregationPolicy;
+import org.openjdk.jmh.results.IterationResult;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.ScalarResult;
+
+/**
+ * Reports the peak heap use of each iteration, as the sum of the peak use of the heap memory pools
+ * (enable with -prof ca.usask.abm.PeakHeapProfiler). The heap is collected before each iteration,
+ * so the peak mostly reflects what the benchmark itself keeps alive, plus the garbage it creates
+ * between two collections; compare runs with the same heap settings.
+ */
+public class PeakHeapProfiler implements InternalProfiler {
+
+	@Override
+	public String getDescription() {
+		return "peak heap use of each iteration";
+	}
+
+	@Override
+	public void beforeIteration(BenchmarkParams benchmarkParams, IterationParams iterationParams) {
+		System.gc();
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()){
+			if (pool.getType() == MemoryType.HEAP) pool.resetPeakUsage();
+		}
+	}
+
+	@Override
+	public Collection<? extends Result> afterIteration(BenchmarkParams benchmarkParams,
+			IterationParams iterationParams, IterationResult result) {
+		long peak = 0;
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()){
+			if (pool.getType() == MemoryType.HEAP) peak += pool.getPeakUsage().getUsed();
+		}
+		return Collections.singletonList(new ScalarResult("·peak.heap", peak / (1024.0 * 1024.0), "MB", AggregationPolicy.MAX));
+	}
+}
@@ -0,0 +1,58 @@
+package ca.usask.abm;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ca.usask.abm.SyntheticModel.Sim;
+
+/**
+ * Measures StatisticsCollector.processStats (classification, accumulation and storage of the
+ * results) on a synthetic population, as a function of the number of partitions and statistics.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class ProcessStatsBenchmark {
+
+	@Param({"10000", "1000000"})
+	int agents;
+
+	@Param({"1", "3", "5"})
+	int partitions;
+
+	@Param({"1", "4", "8"})
+	int statistics;
+
+	private AgentStatisticsCollector<SyntheticModel, Sim> collector;
+	private List<Timed<Sim>> objects;
+
+	@Setup
+	public void setup(){
+		List<Sim> sims = new SyntheticModel(agents).sims();
+		objects = new ArrayList<Timed<Sim>>(sims.size());
+		for (Sim s : sims) objects.add(new Timed<Sim>(5, s));
+		collector = new AgentStatisticsCollector<SyntheticModel, Sim>(SyntheticModel.SIMS,
+				SyntheticModel.spec(partitions, statistics), Partitions.range(0, 10, SyntheticModel.END_TIME));
+	}
+
+	@Benchmark
+	public void processStats(){
+		collector.processStats(objects);
+	}
+}
@@ -0,0 +1,174 @@
+package ca.usask.abm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * A synthetic model shaped like THIM, for the benchmarks: a population of sims with an age,
+ * education, health, income, parent and neighborhood, and the events they produce. <br>
+ *
+ * The population is drawn from a seeded generator, so every benchmark fork sees the same sims.
+ */
+public class SyntheticModel {
+	public static final int NEIGHBORHOODS = 64;
+	public static final double END_TIME = 100;
+	public static final long SEED = 42;
+
+	/** the income groups used by THIMStats */
+	public static final List<Double> INCOME_GROUPS =
+			Arrays.<Double>asList(1.0,
+					5000.0, 10000.0, 15000.0, 20000.0, 25000.0, 30000.0, 35000.0, 40000.0, 45000.0, 50000.0, 55000.0,
+					60000.0, 65000.0, 70000.0, 75000.0,
+					80000.0, 90000.0, 100000.0, 110000.0, 120000.0, 130000.0, 140000.0,
+					150000.0, 175000.0,
+					200000.0, 250000.0, 300000.0, 350000.0, 400000.0);
+
+	public static class Sim {
+		double age, education, health, income;
+		boolean doneEducation;
+		Sim parent;
+		int neighborhood;
+	}
+
+	public static class Event {
+		final double age;
+		Event(double age){ this.age = age; }
+	}
+	public static class DeathEvent extends Event {
+		DeathEvent(double age){ super(age); }
+	}
+	public static class BirthEvent extends Event {
+		BirthEvent(double age){ super(age); }
+	}
+
+	public static final Function<SyntheticModel, Iterable<Sim>> SIMS = new Function<SyntheticModel, Iterable<Sim>>(){
+		public Iterable<Sim> apply(SyntheticModel m) { return m.sims; }
+	};
+	public static final ToDoubleFunction<Sim> AGE = new ToDoubleFunction<Sim>(){
+		public double applyAsDouble(Sim s) { return s.age; }
+	};
+	public static final ToDoubleFunction<Sim> EDUCATION = new ToDoubleFunction<Sim>(){
+		public double applyAsDouble(Sim s) { return s.education; }
+	};
+	public static final ToDoubleFunction<Sim> HEALTH = new ToDoubleFunction<Sim>(){
+		public double applyAsDouble(Sim s) { return s.health; }
+	};
+	public static final ToDoubleFunction<Sim> INCOME = new ToDoubleFunction<Sim>(){
+		public double applyAsDouble(Sim s) { return s.income; }
+	};
+	public static final Function<Sim, Boolean> DONE_EDUCATION = new Function<Sim, Boolean>(){
+		public Boolean apply(Sim s) { return s.doneEducation; }
+	};
+	public static final Function<Sim, Sim> PARENT = new Function<Sim, Sim>(){
+		public Sim apply(Sim s) { return s.parent; }
+	};
+	public static final Function<Sim, Integer> NEIGHBORHOOD = new Function<Sim, Integer>(){
+		public Integer apply(Sim s) { return s.neighborhood; }
+	};
+	public static final ToIntFunction<Sim> NEIGHBORHOOD_INT = new ToIntFunction<Sim>(){
+		public int applyAsInt(Sim s) { return s.neighborhood; }
+	};
+	public static final ToDoubleFunction<DeathEvent> AGE_AT_DEATH = new ToDoubleFunction<DeathEvent>(){
+		public double applyAsDouble(DeathEvent e) { return e.age; }
+	};
+
+	private final List<Sim> sims;
+	private final Random random = new Random(SEED);
+
+	/**
+	 * @param agents the number of sims
+	 */
+	public SyntheticModel(int agents){
+		sims = new ArrayList<Sim>(agents);
+		for (int i = 0; i < agents; i++){
+			Sim s = new Sim();
+			s.age = random.nextDouble() * 100;
+			s.education = Math.min(20, s.age / 4);
+			s.doneEducation = s.age >= 20;
+			s.health = Math.max(0, Math.min(0.999, 1 - s.age / 120 + random.nextGaussian() * 0.05));
+			s.income = s.doneEducation ? Math.exp(10.5 + random.nextGaussian() * 0.6) : 0;
+			s.neighborhood = random.nextInt(NEIGHBORHOODS);
+			// about a third of the sims have a parent still alive
+			if (i > 0 && random.nextInt(3) == 0) s.parent = sims.get(random.nextInt(i));
+			sims.add(s);
+		}
+	}
+
+	/**
+	 * @return the living sims
+	 */
+	public List<Sim> sims(){
+		return sims;
+	}
+
+	/**
+	 * Ages every sim, as a model would between two snapshots
+	 * @param years the time elapsed
+	 */
+	public void age(double years){
+		for (Sim s : sims){
+			s.age += years;
+			if (s.age >= 100) s.age -= 100;
+		}
+	}
+
+	/**
+	 * @param count the number of events
+	 * @param deathsOnly true to only create death events, false to alternate deaths and births
+	 * @return events drawn from the same generator as the population
+	 */
+	public Event[] events(int count, boolean deathsOnly){
+		Event[] events = new Event[count];
+		for (int i = 0; i < count; i++){
+			double age = random.nextDouble() * 100;
+			events[i] = (deathsOnly || i % 2 == 0) ? new DeathEvent(age) : new BirthEvent(age);
+		}
+		return events;
+	}
+
+	/**
+	 * @return the THIM output tables over this model's sims
+	 */
+	public static THIMStats<SyntheticModel, Event, DeathEvent, Sim> thimStats(){
+		return new THIMStats<SyntheticModel, Event, DeathEvent, Sim>(END_TIME, SIMS, NEIGHBORHOODS,
+				AGE, EDUCATION, HEALTH, INCOME, DONE_EDUCATION, PARENT, NEIGHBORHOOD,
+				DeathEvent.class, AGE_AT_DEATH);
+	}
+
+	/**
+	 * Builds a spec over sims with the given number of partitions and statistics, taken
+	 * in order from those used by the THIM tables (partitions beyond the fifth and statistics
+	 * beyond the eighth repeat the earlier ones)
+	 * @param partitions the number of partitions, besides the decade
+	 * @param statistics the number of statistics
+	 * @return the spec
+	 */
+	public static StatisticsSpec<Sim> spec(int partitions, int statistics){
+		StatisticsSpec<Sim> spec = new StatisticsSpec<Sim>();
+		List<Partition<Sim>> ps = Arrays.<Partition<Sim>>asList(
+				Partitions.range(0.0, 1.0, 100.0).liftDouble(AGE),
+				Partitions.between(INCOME_GROUPS).liftDouble(INCOME),
+				Partitions.intRange(0, NEIGHBORHOODS - 1).liftInt(NEIGHBORHOOD_INT),
+				Partitions.range(0.0, 0.1, 1.0).liftDouble(HEALTH),
+				Partitions.range(0.0, 1.0, 20.0).liftDouble(EDUCATION));
+		for (int p = 0; p < partitions; p++){
+			spec.addPartition("P" + p, ps.get(p % ps.size()));
+		}
+		spec.addTimePartition("Decade", Partitions.range(0, 10, END_TIME));
+		List<Statistic<Sim>> ss = Arrays.<Statistic<Sim>>asList(
+				Statistics.<Sim>count(),
+				Statistics.sum.onDouble(INCOME),
+				Statistics.mean.onDouble(AGE),
+				Statistics.mean.onDouble(HEALTH),
+				Statistics.count(DONE_EDUCATION),
+				Statistics.median.onDouble(INCOME),
+				Statistics.percentile(90).onDouble(INCOME),
+				Statistics.approxMedian.onDouble(INCOME));
+		for (int s = 0; s < statistics; s++){
+			spec.addStatistic("S" + s, ss.get(s % ss.size()));
+		}
+		return spec;
+	}
+}
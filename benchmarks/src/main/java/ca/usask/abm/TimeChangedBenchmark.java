@@ -0,0 +1,57 @@
+package ca.usask.abm;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ca.usask.abm.SyntheticModel.Event;
+import ca.usask.abm.SyntheticModel.Sim;
+
+/**
+ * Measures ABMStats.timeChanged on the THIM output tables: every call moves to the next year,
+ * so the yearly collector is updated on every call and the decade collectors on every tenth.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class TimeChangedBenchmark {
+
+	@Param({"10000", "100000", "1000000", "10000000"})
+	int agents;
+
+	@Param({"true", "false"})
+	boolean sharedSnapshots;
+
+	private SyntheticModel model;
+	private ABMStats<SyntheticModel, Event> stats;
+	private double time;
+
+	@Setup
+	public void setup(){
+		model = new SyntheticModel(agents);
+		THIMStats<SyntheticModel, Event, SyntheticModel.DeathEvent, Sim> thim = SyntheticModel.thimStats();
+		thim.setSharedSnapshots(sharedSnapshots);
+		stats = thim;
+		time = 0;
+	}
+
+	@Benchmark
+	public void timeChanged(){
+		time += 1;
+		if (time >= SyntheticModel.END_TIME) time = 0;
+		stats.timeChanged(time, model);
+	}
+}
@@ -3,11 +3,23 @@ package ca.usask.abm;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
 
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.poi.ss.usermodel.Workbook;
+import org.apache.poi.xssf.streaming.SXSSFWorkbook;
 import org.apache.poi.xssf.usermodel.XSSFWorkbook;
 
 
@@ -19,14 +31,22 @@ import org.apache.poi.xssf.usermodel.XSSFWorkbook;
  * 		using addAgentCollector and addEventCollector <br>
  *   2) as the model runs, call timeChanged() and event() as appropriate <br>
  *   3) after model terminates, use exportToSpreadsheet() 
- *   	to output all the statistics as an excel spreadsheet <br>
+ *   	to output all the statistics as an excel spreadsheet, or exportTo()
+ *   	to output them as CSV/TSV files <br>
  * @author isv452
  *
  */
 public class ABMStats<Model, Event> {
-	private HashMap<Observer<Model>, Integer> prevIDs = new HashMap<Observer<Model>, Integer>();
-	private List<Observer<Event>> eventObservers = new ArrayList<Observer<Event>>();
-	private LinkedHashMap<String, ExcelSheetExporter> exporters = new LinkedHashMap<String, ExcelSheetExporter>();
+	private TimePartitionScheduler<AgentStatisticsCollector<Model, ?>> agentObservers = 
+				new TimePartitionScheduler<AgentStatisticsCollector<Model, ?>>();
+	private List<EventStatisticsCollector<Event, ?>> eventObservers = new ArrayList<EventStatisticsCollector<Event, ?>>();
+	private boolean concurrentEvents = false;
+	private Executor asyncExecutor = null;
+	private int asyncMaxPending = 1;
+	private boolean sharedSnapshots = false;
+	private boolean metricsEnabled = false;
+	private List<ObjectName> registeredMetrics = new ArrayList<ObjectName>();
+	private LinkedHashMap<String, StatisticsCollector<?>> exporters = new LinkedHashMap<String, StatisticsCollector<?>>();
 	
 	/**
 	 * Add an agent statistics collector to the ABMStats object
@@ -35,7 +55,8 @@ public class ABMStats<Model, Event> {
 	 * @param <Agent> the type of agent being observed
 	 */
 	public <Agent> void addAgentCollector(String name, AgentStatisticsCollector<Model, Agent> observer){
-		prevIDs.put(observer, Partition.INVALID_ID);
+		if (metricsEnabled) observer.setMetricsEnabled(true);
+		agentObservers.add(observer.timePartition(), observer);
 		exporters.put(name, observer);
 	}
 	
@@ -46,25 +67,191 @@ public class ABMStats<Model, Event> {
 	 * @param <SpecificEvent> the type of event being observed, usually a subclass of Event
 	 */
 	public <SpecificEvent> void addEventCollector(String name, EventStatisticsCollector<Event,SpecificEvent> observer){
+		observer.setConcurrent(concurrentEvents);
+		if (asyncExecutor != null) observer.setAsync(asyncExecutor, asyncMaxPending);
+		if (metricsEnabled) observer.setMetricsEnabled(true);
 		eventObservers.add(observer);
 		exporters.put(name, observer);
+		dispatchTable = newDispatchTable(); // the interested collectors of each class may have changed
 	}
 	
 	/**
-	 * Must be called whenever the time changes, with the updated model state
+	 * for each runtime event class, the event collectors that accept it, computed on first sight of the class
+	 */
+	private volatile ClassValue<EventStatisticsCollector<Event, ?>[]> dispatchTable = newDispatchTable();
+	
+	private ClassValue<EventStatisticsCollector<Event, ?>[]> newDispatchTable(){
+		final List<EventStatisticsCollector<Event, ?>> observers = 
+					new ArrayList<EventStatisticsCollector<Event, ?>>(eventObservers);
+		return new ClassValue<EventStatisticsCollector<Event, ?>[]>(){
+			@Override
+			protected EventStatisticsCollector<Event, ?>[] computeValue(Class<?> eventClass) {
+				List<EventStatisticsCollector<Event, ?>> interested = new ArrayList<EventStatisticsCollector<Event, ?>>();
+				for (EventStatisticsCollector<Event, ?> observer : observers){
+					if (observer.accepts(eventClass)) interested.add(observer);
+				}
+				@SuppressWarnings("unchecked")
+				EventStatisticsCollector<Event, ?>[] array = 
+							(EventStatisticsCollector<Event, ?>[]) new EventStatisticsCollector<?, ?>[interested.size()];
+				return interested.toArray(array);
+			}
+		};
+	}
+	
+	/**
+	 * Must be called whenever the time changes, with the updated model state. <br>
+	 * 
+	 * The agent collectors that enter a new time partition and share the same agent accessor 
+	 * are driven from a single traversal of the agents: each agent is handed to every one of 
+	 * them in turn (except to collectors in parallel or sampled mode, which traverse the agents on their own).
 	 * @param time the new time
 	 * @param m the updated model state
 	 */
 	public void timeChanged(double time, Model m){
-		for (Observer<Model> observer : prevIDs.keySet()){
-			// if we've transitioned to a new time partition, let the observer know
-			int prevID = prevIDs.get(observer);
-			int curID = observer.timePartition().toID(time);
-			if (curID != prevID && curID != Partition.INVALID_ID){
-				observer.update(time, m);
+		// the observers that have transitioned to a new time partition must be updated
+		agentObservers.advance(time, due);
+		if (due.isEmpty()) return;
+		try {
+			updateGroups(time, m, due);
+		} finally {
+			due.clear();
+		}
+	}
+	
+	/**
+	 * the agent collectors due in the current call to timeChanged(), reused from one call to the next
+	 */
+	private final List<AgentStatisticsCollector<Model, ?>> due = new ArrayList<AgentStatisticsCollector<Model, ?>>();
+	
+	/**
+	 * Makes the agent collectors that share an agent accessor also read the attributes declared 
+	 * by their specs from a single snapshot per tick (see {@link Attribute}). The accessors 
+	 * of the declared attributes are then called once per agent and tick, instead of once per 
+	 * agent, tick and collector. Disabled by default. <br>
+	 * 
+	 * NOTE: the attributes of an agent must not change while the collectors are updated, 
+	 * i.e. during a call to timeChanged()
+	 * @param shared true to share snapshots between collectors
+	 */
+	public void setSharedSnapshots(boolean shared){
+		sharedSnapshots = shared;
+	}
+	
+	/**
+	 * @return the number of times the agents returned by an agent accessor were traversed so far
+	 */
+	public long traversalsPerformed(){
+		return traversalsPerformed;
+	}
+	
+	/**
+	 * @return the number of traversals of the agents avoided so far by updating several 
+	 * 			collectors from the same traversal
+	 */
+	public long traversalsSaved(){
+		return traversalsSaved;
+	}
+	
+	private long traversalsPerformed = 0;
+	private long traversalsSaved = 0;
+	
+	/**
+	 * Updates the given agent collectors, traversing the agents once per agent accessor
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private void updateGroups(double time, Model m, List<AgentStatisticsCollector<Model, ?>> due){
+		LinkedHashMap<Function<Model, ?>, List<AgentStatisticsCollector>> groups = 
+					new LinkedHashMap<Function<Model, ?>, List<AgentStatisticsCollector>>();
+		for (AgentStatisticsCollector<Model, ?> collector : due){
+			List<AgentStatisticsCollector> group = groups.get(collector.agentAccessor());
+			if (group == null){
+				group = new ArrayList<AgentStatisticsCollector>();
+				groups.put(collector.agentAccessor(), group);
+			}
+			group.add(collector);
+		}
+		for (List<AgentStatisticsCollector> group : groups.values()){
+			updateGroup(time, m, (List) group);
+		}
+	}
+	
+	/**
+	 * the snapshot of the agents returned by each agent accessor, taken again at every tick
+	 */
+	private final HashMap<Function<Model, ?>, AgentSnapshot<?>> snapshots = new HashMap<Function<Model, ?>, AgentSnapshot<?>>();
+	
+	private <Agent> AgentSnapshot<Agent> snapshot(Function<Model, Iterable<Agent>> agentAccessor){
+		// the snapshot was created for the same accessor, so it holds agents of the same type
+		@SuppressWarnings("unchecked")
+		AgentSnapshot<Agent> snapshot = (AgentSnapshot<Agent>) snapshots.get(agentAccessor);
+		if (snapshot == null){
+			snapshot = new AgentSnapshot<Agent>();
+			snapshots.put(agentAccessor, snapshot);
+		}
+		return snapshot;
+	}
+	
+	private <Agent> void updateGroup(double time, Model m, List<AgentStatisticsCollector<Model, Agent>> group){
+		List<AgentStatisticsCollector<Model, Agent>> fused = new ArrayList<AgentStatisticsCollector<Model, Agent>>();
+		List<AgentStatisticsCollector<Model, Agent>> separate = new ArrayList<AgentStatisticsCollector<Model, Agent>>();
+		List<Attribute<Agent>> attributes = new ArrayList<Attribute<Agent>>();
+		for (AgentStatisticsCollector<Model, Agent> collector : group){
+			(collector.isParallel() || collector.isSampled() ? separate : fused).add(collector);
+			attributes.addAll(collector.attributes());
+		}
+		Iterable<Agent> agents = group.get(0).agentAccessor().apply(m);
+		long performed = 0;
+		if (sharedSnapshots && !attributes.isEmpty()){
+			AgentSnapshot<Agent> snapshot = snapshot(group.get(0).agentAccessor());
+			snapshot.take(attributes, agents);
+			performed = 1;
+			try {
+				for (AgentStatisticsCollector<Model, Agent> collector : separate){
+					collector.update(time, snapshot);
+				}
+				AgentStatisticsCollector.updateFused(time, fused, snapshot.agents(), snapshot);
+			} finally {
+				snapshot.release();
+			}
+		} else {
+			for (AgentStatisticsCollector<Model, Agent> collector : separate){
+				collector.update(time, m);
+				performed++;
+			}
+			if (!fused.isEmpty()){
+				AgentStatisticsCollector.updateFused(time, fused, agents, null);
+				performed++;
 			}
-			// update prevIDs
-			prevIDs.put(observer, curID);
+		}
+		traversalsPerformed += performed;
+		traversalsSaved += group.size() - performed;
+	}
+	
+	/**
+	 * Allows event() to be called from several threads at once, by switching every event collector
+	 * (including ones added later) to concurrent mode; see {@link EventStatisticsCollector#setConcurrent}.
+	 * Must be called before any event is reported. 
+	 * @param concurrent true to allow concurrent calls to event()
+	 */
+	public void setConcurrentEvents(boolean concurrent){
+		concurrentEvents = concurrent;
+		for (EventStatisticsCollector<Event, ?> observer : eventObservers){
+			observer.setConcurrent(concurrent);
+		}
+	}
+	
+	/**
+	 * Makes every event collector (including ones added later) process its closed time partitions 
+	 * on the given executor, so that event() doesn't stall while they are processed; 
+	 * see {@link EventStatisticsCollector#setAsync}. The exports wait for the pending time partitions.
+	 * @param executor the executor, or null to process time partitions synchronously again
+	 * @param maxPending the maximum number of time partitions of each collector waiting to be processed
+	 */
+	public void setAsyncEvents(Executor executor, int maxPending){
+		asyncExecutor = executor;
+		asyncMaxPending = maxPending;
+		for (EventStatisticsCollector<Event, ?> observer : eventObservers){
+			observer.setAsync(executor, maxPending);
 		}
 	}
 	
@@ -74,8 +261,9 @@ public class ABMStats<Model, Event> {
 	 * @param e the event itself
 	 */
 	public void event(double time, Event e){
-		for (Observer<Event> observer : eventObservers){
-			observer.update(time, e);
+		// only the collectors interested in the class of the event are called
+		for (EventStatisticsCollector<Event, ?> observer : dispatchTable.get(e.getClass())){
+			observer.dispatch(time, e);
 		}
 	}
 	
@@ -85,16 +273,261 @@ public class ABMStats<Model, Event> {
 	 * @param filepath the path at which to generate the spreadsheet
 	 */
 	public void exportToSpreadsheet(String filepath){
+		writeWorkbook(new XSSFWorkbook(), filepath);
+	}
+	
+	/**
+	 * Same as {@link exportToSpreadsheet(String)}, but streams the rows to temporary files as they 
+	 * are created, keeping only the last rowWindow rows of each sheet in memory. Memory use 
+	 * is then independent of the size of the collectors' tables.
+	 * @param filepath the path at which to generate the spreadsheet
+	 * @param rowWindow the number of rows kept in memory per sheet (e.g. 100)
+	 */
+	public void exportToSpreadsheet(String filepath, int rowWindow){
+		SXSSFWorkbook wb = new SXSSFWorkbook(rowWindow);
+		wb.setCompressTempFiles(true);
+		try {
+			writeWorkbook(wb, filepath);
+		} finally {
+			wb.dispose(); // delete the temporary files
+		}
+	}
+	
+	/**
+	 * Makes every collector added so far append its finished cells to a file in the given directory
+	 * (named after the collector, e.g. AvgsByYear.cells) as soon as they are processed, instead of 
+	 * keeping them in memory until the export; see {@link StatisticsCollector#setSpillFile}. 
+	 * Must be called after adding the collectors, and before the model starts.
+	 * @param directory the directory in which to create the files (created if needed)
+	 * @throws IOException if a file cannot be created
+	 */
+	public void setSpillDirectory(String directory) throws IOException {
+		File dir = new File(directory);
+		dir.mkdirs();
+		for (String name : exporters.keySet()){
+			exporters.get(name).setSpillFile(new File(dir, name + ".cells"));
+		}
+	}
+	
+	/**
+	 * Export all the collectors' data as plain-text tables into the given directory, 
+	 * one file per collector named after it (e.g. AvgsByYear.csv)
+	 * @param directory the directory in which to generate the files (created if needed)
+	 * @param format the format of the files
+	 */
+	public void exportTo(String directory, ExportFormat format){
+		exportTables(exporters, directory, format);
+	}
+	
+	/**
+	 * Writes each of the given tables into its own file in the given directory
+	 * @param exporters the tables, by name
+	 * @param directory the directory in which to generate the files (created if needed)
+	 * @param format the format of the files
+	 */
+	static void exportTables(Map<String, ? extends TableExporter> exporters, String directory, ExportFormat format){
+		File dir = new File(directory);
+		dir.mkdirs();
+		for (String name : exporters.keySet()){
+			DelimitedTableWriter writer = null;
+			try {
+				writer = new DelimitedTableWriter(new File(dir, name + "." + format.extension()), format);
+				exporters.get(name).exportData(writer);
+			} catch (IOException e) {
+				e.printStackTrace();
+			} finally {
+				if (writer != null) {
+					try {
+						writer.close();
+					} catch (IOException e) {
+						e.printStackTrace();
+					}
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Turns the runtime metrics of every collector (added so far or later) on or off; 
+	 * see {@link StatisticsCollector#setMetricsEnabled(boolean)}
+	 * @param enabled true to collect metrics
+	 */
+	public void setMetricsEnabled(boolean enabled){
+		metricsEnabled = enabled;
+		for (StatisticsCollector<?> collector : exporters.values()){
+			collector.setMetricsEnabled(enabled);
+		}
+	}
+	
+	/**
+	 * @return a snapshot of the metrics of every collector whose metrics are enabled, by name, 
+	 * 			in the order the collectors were added
+	 */
+	public Map<String, CollectorMetrics.Snapshot> metrics(){
+		LinkedHashMap<String, CollectorMetrics.Snapshot> snapshots = new LinkedHashMap<String, CollectorMetrics.Snapshot>();
+		for (Map.Entry<String, StatisticsCollector<?>> collector : exporters.entrySet()){
+			CollectorMetrics m = collector.getValue().metrics();
+			if (m != null) snapshots.put(collector.getKey(), m.snapshot());
+		}
+		return snapshots;
+	}
+	
+	/**
+	 * Enables the metrics of every collector added so far, and publishes them as MXBeans on the 
+	 * platform MBean server, under the names ca.usask.abm:type=CollectorMetrics,stats=instance,name=collector 
+	 * (with the instance and collector names quoted). Must be called after adding the collectors.
+	 * @param instance a name telling this object apart from other ABMStats in the same JVM (e.g. a run number)
+	 * @throws JMException if the metrics cannot be registered (e.g. the instance name is already in use)
+	 */
+	public void registerMetrics(String instance) throws JMException {
+		setMetricsEnabled(true);
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		for (Map.Entry<String, StatisticsCollector<?>> collector : exporters.entrySet()){
+			ObjectName name = new ObjectName("ca.usask.abm:type=CollectorMetrics,stats=" + ObjectName.quote(instance)
+					+ ",name=" + ObjectName.quote(collector.getKey()));
+			server.registerMBean(collector.getValue().metrics(), name);
+			registeredMetrics.add(name);
+		}
+	}
+	
+	/**
+	 * Removes the MXBeans published by {@link registerMetrics(String)} (the metrics stay enabled)
+	 * @throws JMException if a bean cannot be unregistered
+	 */
+	public void unregisterMetrics() throws JMException {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		for (ObjectName name : registeredMetrics){
+			if (server.isRegistered(name)) server.unregisterMBean(name);
+		}
+		registeredMetrics.clear();
+	}
+	
+	/**
+	 * Saves the state of every collector into a binary file, so that a run can be resumed 
+	 * from this point by {@link restore(String)}: the statistics of each collector, the current 
+	 * time partition of each collector, and the events of the open time partition of each event 
+	 * collector, which are not processed (they are written with the collector's event codec, 
+	 * see {@link EventStatisticsCollector#setEventCodec}). <br>
+	 * 
+	 * The file is written next to the given path then renamed, so a run interrupted while 
+	 * checkpointing still has its previous checkpoint. Must not be called while events are being 
+	 * reported. The random generators of sampled collectors are not saved (see {@link Sampling}).
+	 * @param filepath the path of the checkpoint file
+	 * @throws IOException if the file cannot be written
+	 * @throws IllegalStateException if an event collector with pending events has no codec
+	 */
+	public void checkpoint(String filepath) throws IOException {
+		File file = new File(filepath);
+		if (file.getAbsoluteFile().getParentFile() != null) file.getAbsoluteFile().getParentFile().mkdirs();
+		File temp = new File(file.getPath() + ".tmp");
+		boolean written = false;
+		CheckpointWriter out = new CheckpointWriter(temp);
+		try {
+			out.putInt(exporters.size());
+			for (Map.Entry<String, StatisticsCollector<?>> collector : exporters.entrySet()){
+				out.putString(collector.getKey());
+				out.putLong(fingerprint(collector.getValue().layout()));
+			}
+			agentObservers.checkpoint(out);
+			for (StatisticsCollector<?> collector : exporters.values()){
+				collector.checkpoint(out);
+			}
+			written = true;
+		} finally {
+			try {
+				out.close();
+			} finally {
+				if (!written) temp.delete();
+			}
+		}
+		Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+	
+	/**
+	 * Loads the state saved by {@link checkpoint(String)} into this object, which must have been 
+	 * configured like the one checkpointed (the same collectors, added in the same order with the 
+	 * same names and specs), and must not have received any time change or event yet. The run 
+	 * then goes on from the time of the checkpoint. <br>
+	 * 
+	 * The whole file is read before any collector is changed, so a file that cannot be restored 
+	 * leaves every collector as it was.
+	 * @param filepath the path of the checkpoint file
+	 * @throws IOException if the file cannot be read, is truncated or corrupt, or was written for 
+	 * 			different collectors or specs
+	 * @throws IllegalStateException if the spill file of a collector cannot be recreated
+	 */
+	public void restore(String filepath) throws IOException {
+		CheckpointReader in = new CheckpointReader(new File(filepath));
+		try {
+			// check every collector before changing any of them
+			List<String> names = new ArrayList<String>(exporters.keySet());
+			int n = in.getInt();
+			List<String> saved = new ArrayList<String>(n);
+			long[] fingerprints = new long[n];
+			for (int i = 0; i < n; i++){
+				saved.add(in.getString());
+				fingerprints[i] = in.getLong();
+			}
+			if (!saved.equals(names)) 
+				throw new IOException(filepath + " has the collectors " + saved + ", expected " + names);
+			for (int i = 0; i < n; i++){
+				if (fingerprints[i] != fingerprint(exporters.get(names.get(i)).layout()))
+					throw new IOException(filepath + " was written for a different spec of " + names.get(i));
+			}
+			List<Runnable> restores = new ArrayList<Runnable>();
+			restores.add(agentObservers.restore(in));
+			for (StatisticsCollector<?> collector : exporters.values()){
+				restores.add(collector.restore(in));
+			}
+			if (!in.atEnd()) throw new IOException(filepath + " has trailing data");
+			for (Runnable restore : restores) restore.run();
+		} finally {
+			in.close();
+		}
+	}
+	
+	/**
+	 * @return a 64-bit FNV-1a hash of the layout of a collector
+	 */
+	private static long fingerprint(String layout){
+		long hash = 0xcbf29ce484222325L;
+		for (byte b : layout.getBytes(CheckpointWriter.UTF8)){
+			hash ^= b & 0xff;
+			hash *= 0x100000001b3L;
+		}
+		return hash;
+	}
+	
+	/**
+	 * @return the collectors, by name, in the order they were added
+	 */
+	Map<String, StatisticsCollector<?>> collectors(){
+		return Collections.unmodifiableMap(exporters);
+	}
+	
+	private void writeWorkbook(Workbook wb, String filepath){
+		writeWorkbook(wb, exporters, filepath);
+	}
+	
+	/**
+	 * Writes each of the given tables into its own sheet of the workbook, then saves the workbook
+	 * @param wb a blank workbook
+	 * @param exporters the tables, by (sheet) name
+	 * @param filepath the path at which to generate the spreadsheet
+	 */
+	static void writeWorkbook(Workbook wb, Map<String, ? extends TableExporter> exporters, String filepath){
 		File file = new File(filepath);
 		if (file.getParentFile() != null) {
 			file.getParentFile().mkdirs();
 		}
 		if (file.exists()) file.delete();
 		
-		XSSFWorkbook wb = new XSSFWorkbook();
 		for (String name : exporters.keySet()){
-			System.out.println(name);
-			exporters.get(name).exportData(wb.createSheet(name));
+			try {
+				exporters.get(name).exportData(new SheetTableWriter(wb.createSheet(name)));
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
 		}
 		FileOutputStream out = null;
 		try {
@@ -0,0 +1,23 @@
+package ca.usask.abm;
+
+import java.util.Collection;
+
+/**
+ * A statistic that is computed by streaming the data through an {@link Accumulator},
+ * so that it never needs the whole collection in memory at once.
+ *
+ * @param <T> the data type over which statistics are collected
+ */
+public abstract class AccumulatingStatistic<T> extends Statistic<T> {
+
+	@Override
+	public abstract Accumulator<T> createAccumulator();
+
+	@Override
+	public Double apply(Collection<T> data) {
+		Accumulator<T> acc = createAccumulator();
+		for (T t : data) acc.add(t);
+		return acc.result();
+	}
+
+}
@@ -0,0 +1,32 @@
+package ca.usask.abm;
+
+/**
+ * Computes a statistic incrementally, one value at a time. <br>
+ *
+ * Two accumulators created by the same statistic can be merged, so partial
+ * results over disjoint parts of a collection combine into the result over the
+ * whole collection.
+ *
+ * @param <T> the data type over which statistics are collected
+ */
+public abstract class Accumulator<T> {
+
+	/**
+	 * Adds a single value to the accumulated data
+	 * @param value the value
+	 */
+	public abstract void add(T value);
+
+	/**
+	 * Adds all the data accumulated by other to this accumulator.
+	 * PRECONDITION: other was created by the same statistic as this accumulator
+	 * @param other the accumulator to merge into this one (left unchanged)
+	 */
+	public abstract void merge(Accumulator<T> other);
+
+	/**
+	 * @return the statistic over all values added or merged so far
+	 */
+	public abstract double result();
+
+}
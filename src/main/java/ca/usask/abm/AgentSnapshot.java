@@ -0,0 +1,103 @@
+package ca.usask.abm;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * The values of a set of attributes over a population of agents at one point in time, 
+ * stored as one primitive column per attribute. A snapshot is taken again at every tick, 
+ * reusing the columns of the previous ticks. <br>
+ * 
+ * While a snapshot is taken, its attributes read their values from it; a collector traversing
+ * the snapshot's agents moves the cursor to each agent before evaluating its spec on it.
+ *
+ * @param <Agent> the agent type
+ */
+final class AgentSnapshot<Agent> {
+	/**
+	 * the attributes of the snapshot being taken
+	 */
+	private final List<Attribute<Agent>> attributes = new ArrayList<Attribute<Agent>>();
+	/**
+	 * the column of every attribute snapshot so far, grown as needed
+	 */
+	private final HashMap<Attribute<Agent>, double[]> columns = new HashMap<Attribute<Agent>, double[]>();
+	/**
+	 * the agents of populations that are not random access lists
+	 */
+	private final List<Agent> copy = new ArrayList<Agent>();
+	private List<Agent> agents = null;
+	private Agent current = null;
+	private int row = 0;
+
+	/**
+	 * Reads the given attributes of every agent, and makes them read from this snapshot
+	 * until {@link release} is called
+	 * @param attributes the attributes to snapshot (duplicates are ignored)
+	 * @param population the agents
+	 */
+	@SuppressWarnings("unchecked")
+	void take(Collection<Attribute<Agent>> attributes, Iterable<Agent> population) {
+		this.attributes.clear();
+		for (Attribute<Agent> a : attributes){
+			if (!this.attributes.contains(a)) this.attributes.add(a);
+		}
+		if (population instanceof List && population instanceof RandomAccess){
+			agents = (List<Agent>) population;
+		} else {
+			for (Agent agent : population) copy.add(agent);
+			agents = copy;
+		}
+		int n = agents.size();
+		for (Attribute<Agent> a : this.attributes){
+			double[] column = columns.get(a);
+			if (column == null || column.length < n){
+				column = new double[n];
+				columns.put(a, column);
+			}
+			ToDoubleFunction<Agent> accessor = a.accessor();
+			for (int i = 0; i < n; i++) column[i] = accessor.applyAsDouble(agents.get(i));
+		}
+		current = null;
+		for (Attribute<Agent> a : this.attributes) a.bind(this, columns.get(a));
+	}
+
+	/**
+	 * Drops the agents and makes the attributes call their accessors again (the columns are kept 
+	 * for the next snapshot)
+	 */
+	void release() {
+		for (Attribute<Agent> a : attributes) a.bind(null, null);
+		copy.clear();
+		agents = null;
+		current = null;
+	}
+
+	/**
+	 * @return the agents of the snapshot, in row order
+	 */
+	List<Agent> agents() { return agents; }
+
+	/**
+	 * Moves the cursor to the given row
+	 * @param i the row
+	 * @return the agent in that row
+	 */
+	Agent moveTo(int i) {
+		row = i;
+		current = agents.get(i);
+		return current;
+	}
+
+	/**
+	 * Moves the cursor off the agents, so that attributes call their accessors
+	 */
+	void clearCursor() { current = null; }
+
+	Agent current() { return current; }
+
+	int row() { return row; }
+}
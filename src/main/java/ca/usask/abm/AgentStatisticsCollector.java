@@ -1,55 +1,264 @@
 package ca.usask.abm;
 
+import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.RandomAccess;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 
 /**
  * Collects statistics over a particular
  * set of agents in a model. Every time its update() gets called, it will
  * process statistics for all agents indicated by agentAccessor()
- * 
+ *
  *
  * @param <Model> the model type
  * @param <Agent> the agent type
  */
-public class AgentStatisticsCollector<Model, Agent> extends StatisticsCollector<Agent> 
-													implements Observer<Model> 
+public class AgentStatisticsCollector<Model, Agent> extends StatisticsCollector<Agent>
+													implements Observer<Model>
 {
+	/**
+	 * the number of agents processed sequentially by each parallel task, unless specified otherwise
+	 */
+	public static final int DEFAULT_CHUNK_SIZE = 16384;
 
 	private Function<Model, Iterable<Agent>> agentAccessor;
 	private Partition<Double> timePartition;
-	
+	private ForkJoinPool pool = null;
+	private int chunkSize = DEFAULT_CHUNK_SIZE;
+	private Sampling sampling = null;
+
 	/**
-	 * Creates a new agent statistics collector. 
-	 *  NOTE: the timePartition provided to the constructor must be at least 
+	 * Creates a new agent statistics collector.
+	 *  NOTE: the timePartition provided to the constructor must be at least
      *    as discriminant as the partitions in spec (no agent category should belong to more
      *    than one identifier in timePartition)
 	 * @param agentAccessor a function that extracts the needed set of agents from the model
 	 * @param spec the statistics collection specification
 	 * @param timePartition a partition of time which is used to implement Observer's timePartition
-	 * 			
+	 *
 	 */
-	public AgentStatisticsCollector(Function<Model, Iterable<Agent>> agentAccessor, 
-									StatisticsSpec<Agent> spec, 
+	public AgentStatisticsCollector(Function<Model, Iterable<Agent>> agentAccessor,
+									StatisticsSpec<Agent> spec,
 									Partition<Double> timePartition) {
 		super(spec);
 		this.timePartition = timePartition;
 		this.agentAccessor = agentAccessor;
 	}
 
+	/**
+	 * Makes update() process the agents in parallel on the given pool. <br>
+	 *
+	 * The agents are split into chunks of at most chunkSize agents; each chunk is accumulated
+	 * separately and the partial results are merged in agent order. The split only depends on
+	 * the number of agents, so results are reproducible regardless of the number of threads
+	 * (although floating-point sums may differ in the last bits from a sequential pass). <br>
+	 *
+	 * NOTE: the accessors used by the spec's partitions and statistics are then called
+	 * concurrently, so they must be thread-safe.
+	 * @param pool the pool to run on, or null to go back to processing agents sequentially
+	 * @param chunkSize the maximum number of agents processed by a single task
+	 */
+	public void setParallel(ForkJoinPool pool, int chunkSize) {
+		if (chunkSize < 1) throw new IllegalArgumentException("chunkSize must be positive, was " + chunkSize);
+		this.pool = pool;
+		this.chunkSize = chunkSize;
+	}
+
+	/**
+	 * Same as {@link setParallel(ForkJoinPool, int)} with the default chunk size
+	 * @param pool the pool to run on, or null to go back to processing agents sequentially
+	 */
+	public void setParallel(ForkJoinPool pool) {
+		setParallel(pool, DEFAULT_CHUNK_SIZE);
+	}
+
+	/**
+	 * Makes update() only process a random sample of the agents, for populations too large to 
+	 * process in full at every update. Counts and sums are scaled to estimate their values over 
+	 * the whole population, and every statistic is followed by a column with its estimated 
+	 * standard error (see {@link StatisticsCollector#processSample}). Sampling takes precedence 
+	 * over parallel processing. Must be called before the first update.
+	 * @param sampling how to draw the samples, or null to process all agents again
+	 */
+	public void setSampling(Sampling sampling) {
+		this.sampling = sampling;
+		setStandardErrors(sampling != null);
+	}
+
+	/**
+	 * @return true if update() only processes a sample of the agents
+	 */
+	public boolean isSampled() {
+		return sampling != null;
+	}
+
 	@Override
 	public Partition<Double> timePartition() {
 		return timePartition;
 	}
 
+	/**
+	 * @return true if update() processes the agents in parallel
+	 */
+	public boolean isParallel() {
+		return pool != null;
+	}
+
+	/**
+	 * @return the function that extracts the agents from the model
+	 */
+	public Function<Model, Iterable<Agent>> agentAccessor() {
+		return agentAccessor;
+	}
+
+	/**
+	 * @return the attributes declared by the spec
+	 */
+	public List<Attribute<Agent>> attributes() {
+		return spec.attributes();
+	}
+
 	@Override
-	public void update(double time, Model e) {
-		Iterable<Agent> agents = agentAccessor.apply(e);
-		// add times to each agent //TODO optimize away this memory-intensive copy
-		ArrayList<Timed<Agent>> timedAgents = new ArrayList<Timed<Agent>>();
-		for (Agent agent : agents){
-			timedAgents.add(new Timed<Agent>(time, agent));
+	public void update(final double time, Model e) {
+		updateAgents(time, agentAccessor.apply(e));
+	}
+
+	/**
+	 * Same as update(), over the agents of a snapshot taken from the model (only used in parallel mode;
+	 * sequential collectors are updated through {@link updateFused})
+	 * @param time the time of the change
+	 * @param snapshot the snapshot of the agents and their attributes
+	 */
+	void update(double time, AgentSnapshot<Agent> snapshot) {
+		snapshot.clearCursor(); // chunks are processed concurrently, so attributes use their accessors
+		updateAgents(time, snapshot.agents());
+	}
+
+	/**
+	 * Updates several sequential collectors from a single traversal of the agents, handing 
+	 * each agent to every collector in turn. The results are the same as calling update() on 
+	 * each collector.
+	 * @param time the time of the change
+	 * @param collectors the collectors to update
+	 * @param agents the agents
+	 * @param snapshot the snapshot whose agents are traversed (and whose cursor is moved to each 
+	 * 			of them), or null
+	 * @param <Model> the model type
+	 * @param <Agent> the agent type
+	 */
+	static <Model, Agent> void updateFused(double time, List<AgentStatisticsCollector<Model, Agent>> collectors,
+										Iterable<Agent> agents, AgentSnapshot<Agent> snapshot) {
+		int n = collectors.size();
+		HashMap<Long, List<Accumulator<Agent>>>[] cells = StatisticsCollector.<Agent>newCellMaps(n);
+		CollectorMetrics.Tally[] tallies = new CollectorMetrics.Tally[n];
+		for (int c = 0; c < n; c++) tallies[c] = collectors.get(c).newTally();
+		if (snapshot != null){
+			int size = snapshot.agents().size();
+			for (int i = 0; i < size; i++){
+				Timed<Agent> obj = new Timed<Agent>(time, snapshot.moveTo(i));
+				for (int c = 0; c < n; c++) collectors.get(c).accumulate(obj, cells[c], tallies[c]);
+			}
+			snapshot.clearCursor();
+		} else {
+			for (Agent agent : agents){
+				Timed<Agent> obj = new Timed<Agent>(time, agent);
+				for (int c = 0; c < n; c++) collectors.get(c).accumulate(obj, cells[c], tallies[c]);
+			}
+		}
+		for (int c = 0; c < n; c++){
+			collectors.get(c).publish(tallies[c]);
+			collectors.get(c).storeResults(cells[c]);
+		}
+	}
+
+	private void updateAgents(final double time, final Iterable<Agent> agents) {
+		if (sampling != null){
+			updateSampled(time, agents);
+			return;
+		}
+		if (pool != null){
+			updateParallel(time, agents);
+			return;
+		}
+		// attach the time to each agent as it is processed, rather than copying the population
+		this.processStats(new Iterable<Timed<Agent>>(){
+			public Iterator<Timed<Agent>> iterator() {
+				final Iterator<Agent> it = agents.iterator();
+				return new Iterator<Timed<Agent>>(){
+					public boolean hasNext() { return it.hasNext(); }
+					public Timed<Agent> next() { return new Timed<Agent>(time, it.next()); }
+					public void remove() { throw new UnsupportedOperationException(); }
+				};
+			}
+		});
+	}
+
+	private void updateSampled(final double time, Iterable<Agent> agents){
+		final List<Agent> sample = new ArrayList<Agent>();
+		double weight = sampling.sample(agents, sample);
+		processSample(new AbstractList<Timed<Agent>>(){
+			@Override
+			public Timed<Agent> get(int index) { return new Timed<Agent>(time, sample.get(index)); }
+			@Override
+			public int size() { return sample.size(); }
+		}, weight, sampling.random());
+	}
+
+	@SuppressWarnings("unchecked")
+	private void updateParallel(double time, Iterable<Agent> agents){
+		// chunks need random access; only copy the agents if they don't already provide it
+		List<Agent> indexed;
+		if (agents instanceof List && agents instanceof RandomAccess){
+			indexed = (List<Agent>) agents;
+		} else {
+			indexed = new ArrayList<Agent>();
+			for (Agent agent : agents) indexed.add(agent);
+		}
+		storeResults(pool.invoke(new ChunkTask(indexed, 0, indexed.size(), time)));
+	}
+
+	/**
+	 * Accumulates the agents in [from, to), splitting in halves until chunks are small enough
+	 */
+	private class ChunkTask extends RecursiveTask<HashMap<Long, List<Accumulator<Agent>>>> {
+		private static final long serialVersionUID = 1L;
+		private final List<Agent> agents;
+		private final int from, to;
+		private final double time;
+
+		ChunkTask(List<Agent> agents, int from, int to, double time){
+			this.agents = agents;
+			this.from = from;
+			this.to = to;
+			this.time = time;
+		}
+
+		@Override
+		protected HashMap<Long, List<Accumulator<Agent>>> compute() {
+			if (to - from <= chunkSize){
+				HashMap<Long, List<Accumulator<Agent>>> cells = new HashMap<Long, List<Accumulator<Agent>>>();
+				CollectorMetrics.Tally tally = newTally();
+				for (int i = from; i < to; i++){
+					accumulate(new Timed<Agent>(time, agents.get(i)), cells, tally);
+				}
+				publish(tally); // once per chunk, so that workers don't contend on the shared counters
+				return cells;
+			}
+			int mid = (from + to) >>> 1;
+			ChunkTask left = new ChunkTask(agents, from, mid, time);
+			ChunkTask right = new ChunkTask(agents, mid, to, time);
+			left.fork();
+			HashMap<Long, List<Accumulator<Agent>>> rightCells = right.compute();
+			HashMap<Long, List<Accumulator<Agent>>> leftCells = left.join();
+			// always merge right into left, so the result doesn't depend on scheduling
+			mergeAccumulators(leftCells, rightCells);
+			return leftCells;
 		}
-		this.processStats(timedAgents);
 	}
 
 }
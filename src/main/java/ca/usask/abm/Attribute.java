@@ -0,0 +1,63 @@
+package ca.usask.abm;
+
+/**
+ * A named numeric attribute of an agent, which several collectors can share. <br>
+ *
+ * Used as a plain accessor, it simply calls the underlying function. When the specs that use it
+ * declare it (see {@link StatisticsSpec#addAttribute}) and shared snapshots are enabled in 
+ * {@link ABMStats#setSharedSnapshots}, the attribute is read once per agent and tick into a 
+ * column, and every collector due on that tick reads the column instead of calling the accessor.
+ *
+ * @param <T> the agent type
+ */
+public class Attribute<T> implements ToDoubleFunction<T> {
+	private final String name;
+	private final ToDoubleFunction<T> accessor;
+	
+	/**
+	 * the snapshot the attribute is currently read from, or null, and the column of the attribute in it
+	 */
+	private AgentSnapshot<T> snapshot = null;
+	private double[] column = null;
+
+	/**
+	 * @param name the name of the attribute (e.g. "income")
+	 * @param accessor reads the attribute from an agent
+	 */
+	public Attribute(String name, ToDoubleFunction<T> accessor) {
+		this.name = name;
+		this.accessor = accessor;
+	}
+
+	/**
+	 * @return the name of the attribute
+	 */
+	public String getName() { return name; }
+
+	/**
+	 * @return the function that reads the attribute from an agent
+	 */
+	public ToDoubleFunction<T> accessor() { return accessor; }
+
+	@Override
+	public double applyAsDouble(T agent) {
+		AgentSnapshot<T> s = snapshot;
+		// only the agent at the snapshot's cursor is read from the column; 
+		// any other agent (e.g. a parent) goes through the accessor
+		if (s != null && s.current() == agent) return column[s.row()];
+		return accessor.applyAsDouble(agent);
+	}
+
+	/**
+	 * Makes the attribute read the agents of the given snapshot from the given column
+	 * @param s the snapshot, or null to go back to calling the accessor
+	 * @param values the column of the attribute in s
+	 */
+	void bind(AgentSnapshot<T> s, double[] values) {
+		snapshot = s;
+		column = values;
+	}
+
+	@Override
+	public String toString() { return name; }
+}
@@ -0,0 +1,206 @@
+package ca.usask.abm;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A statistic with several named outputs computed together, e.g. the quartiles of a collection,
+ * which all come from a single sort. Added to a spec with {@link StatisticsSpec#addStatistics},
+ * it contributes one column per output, but the columns of a category share a single
+ * accumulator, so the data is only stored and processed once.
+ *
+ * @param <T> the data type over which statistics are collected
+ */
+public abstract class BatchStatistic<T> {
+	private final List<String> names;
+	private final List<Statistic<T>> columns;
+
+	/**
+	 * @param names the name of each output, in order
+	 */
+	protected BatchStatistic(List<String> names){
+		this.names = Collections.unmodifiableList(new ArrayList<String>(names));
+		List<Statistic<T>> cs = new ArrayList<Statistic<T>>(names.size());
+		for (int i = 0; i < names.size(); i++) cs.add(new Column<T>(this, i, false));
+		this.columns = Collections.unmodifiableList(cs);
+	}
+
+	/**
+	 * @return the name of each output, in order
+	 */
+	public List<String> names(){
+		return names;
+	}
+
+	/**
+	 * @return a fresh, empty accumulator
+	 */
+	public abstract BatchAccumulator<T> createAccumulator();
+
+	/**
+	 * @param data the data over which to collect the statistics
+	 * @return the value of each output
+	 */
+	public double[] apply(Collection<T> data){
+		BatchAccumulator<T> acc = createAccumulator();
+		for (T t : data) acc.add(t);
+		double[] results = new double[names.size()];
+		acc.results(results);
+		return results;
+	}
+
+	/**
+	 * @return a statistic for each output; the statistics share their accumulators when they
+	 * 		are created together by {@link #createAccumulators}, and are independent otherwise
+	 */
+	public List<Statistic<T>> columns(){
+		return columns;
+	}
+
+	/**
+	 * @param index the index of an output
+	 * @param extensive whether the output is extensive (see {@link Statistic#isExtensive()})
+	 * @return a statistic for the output, which shares its accumulator like the statistics of columns()
+	 */
+	Statistic<T> column(int index, boolean extensive){
+		return new Column<T>(this, index, extensive);
+	}
+
+	/**
+	 * Computes all the outputs of a batch statistic incrementally
+	 *
+	 * @param <T> the data type over which statistics are collected
+	 */
+	public static abstract class BatchAccumulator<T> {
+
+		/**
+		 * Adds a single value to the accumulated data
+		 * @param value the value
+		 */
+		public abstract void add(T value);
+
+		/**
+		 * Adds all the data accumulated by other to this accumulator.
+		 * PRECONDITION: other was created by the same statistic as this accumulator
+		 * @param other the accumulator to merge into this one (left unchanged)
+		 */
+		public abstract void merge(BatchAccumulator<T> other);
+
+		/**
+		 * @param out receives the value of each output over all values added or merged so far
+		 */
+		public abstract void results(double[] out);
+	}
+
+	/**
+	 * Creates an accumulator for each of the given statistics, in order. Consecutive columns
+	 * of the same batch statistic share a single batch accumulator, whose outputs are computed
+	 * at most once between two additions.
+	 * @param statistics the statistics
+	 * @param <T> the data type over which statistics are collected
+	 * @return the accumulators
+	 */
+	@SuppressWarnings("unchecked")
+	static <T> List<Accumulator<T>> createAccumulators(Statistic<T>[] statistics){
+		ArrayList<Accumulator<T>> accs = new ArrayList<Accumulator<T>>(statistics.length);
+		Shared<T> shared = null;
+		int lastIndex = -1;
+		for (Statistic<T> stat : statistics){
+			if (!(stat instanceof Column)){
+				accs.add(stat.createAccumulator());
+				shared = null;
+				continue;
+			}
+			Column<T> column = (Column<T>) stat;
+			if (shared != null && shared.batch == column.batch && column.index > lastIndex){
+				accs.add(new ColumnAccumulator<T>(shared, column.index, false));
+			} else {
+				shared = new Shared<T>(column.batch);
+				accs.add(new ColumnAccumulator<T>(shared, column.index, true));
+			}
+			lastIndex = column.index;
+		}
+		return accs;
+	}
+
+	/**
+	 * One output of a batch statistic
+	 */
+	private static class Column<T> extends AccumulatingStatistic<T> {
+		final BatchStatistic<T> batch;
+		final int index;
+		private final boolean extensive;
+
+		Column(BatchStatistic<T> batch, int index, boolean extensive){
+			this.batch = batch;
+			this.index = index;
+			this.extensive = extensive;
+		}
+
+		@Override
+		public Accumulator<T> createAccumulator() {
+			return new ColumnAccumulator<T>(new Shared<T>(batch), index, true);
+		}
+
+		@Override
+		public boolean isExtensive() { return extensive; }
+	}
+
+	/**
+	 * The batch accumulator of a category, and its outputs once computed
+	 */
+	private static class Shared<T> {
+		final BatchStatistic<T> batch;
+		final BatchAccumulator<T> acc;
+		double[] results = null;
+
+		Shared(BatchStatistic<T> batch){
+			this.batch = batch;
+			this.acc = batch.createAccumulator();
+		}
+
+		double result(int index){
+			if (results == null){
+				results = new double[batch.names.size()];
+				acc.results(results);
+			}
+			return results[index];
+		}
+	}
+
+	/**
+	 * The accumulator of one column; only the first column of a shared accumulator (its owner)
+	 * feeds values into it
+	 */
+	private static class ColumnAccumulator<T> extends Accumulator<T> {
+		private final Shared<T> shared;
+		private final int index;
+		private final boolean owner;
+
+		ColumnAccumulator(Shared<T> shared, int index, boolean owner){
+			this.shared = shared;
+			this.index = index;
+			this.owner = owner;
+		}
+
+		@Override
+		public void add(T value) {
+			if (!owner) return;
+			shared.acc.add(value);
+			shared.results = null;
+		}
+
+		@SuppressWarnings("unchecked")
+		@Override
+		public void merge(Accumulator<T> other) {
+			if (!owner) return;
+			shared.acc.merge(((ColumnAccumulator<T>) other).shared.acc);
+			shared.results = null;
+		}
+
+		@Override
+		public double result() { return shared.result(index); }
+	}
+}
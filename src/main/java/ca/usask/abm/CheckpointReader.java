@@ -0,0 +1,102 @@
+package ca.usask.abm;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads a checkpoint file written by a {@link CheckpointWriter}, through a direct buffer
+ */
+final class CheckpointReader {
+	private static final int BUFFER_SIZE = 1 << 20;
+
+	private final File file;
+	private final FileChannel channel;
+	private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+	private boolean eof = false;
+
+	/**
+	 * Opens the given file, and checks its header
+	 * @param file the file
+	 * @throws IOException if the file cannot be read, or is not a checkpoint of this version
+	 */
+	CheckpointReader(File file) throws IOException {
+		this.file = file;
+		channel = new FileInputStream(file).getChannel();
+		buffer.flip(); // empty
+		try {
+			if (available(8) < 8 || buffer.getInt() != CheckpointWriter.MAGIC)
+				throw new IOException(file + " is not a checkpoint");
+			int version = buffer.getInt();
+			if (version != CheckpointWriter.VERSION)
+				throw new IOException(file + " is a checkpoint of version " + version + ", expected " + CheckpointWriter.VERSION);
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * @return the file being read
+	 */
+	File file() { return file; }
+
+	/**
+	 * Reads ahead, so that the given number of bytes is buffered unless the end of the file is reached first
+	 * @param bytes a number of bytes, at most the size of the buffer
+	 * @return the number of bytes buffered, less than bytes only at the end of the file
+	 * @throws IOException if reading fails
+	 */
+	int available(int bytes) throws IOException {
+		if (buffer.remaining() < bytes && !eof){
+			buffer.compact();
+			while (buffer.position() < bytes){
+				if (channel.read(buffer) < 0){
+					eof = true;
+					break;
+				}
+			}
+			buffer.flip();
+		}
+		return buffer.remaining();
+	}
+
+	/**
+	 * @param bytes the number of bytes about to be read
+	 * @return the buffer, with at least that many bytes remaining
+	 * @throws IOException if reading fails, or the file ends first
+	 */
+	ByteBuffer require(int bytes) throws IOException {
+		if (available(bytes) < bytes) throw new EOFException(file + " is truncated");
+		return buffer;
+	}
+
+	int getInt() throws IOException { return require(4).getInt(); }
+
+	long getLong() throws IOException { return require(8).getLong(); }
+
+	double getDouble() throws IOException { return require(8).getDouble(); }
+
+	String getString() throws IOException {
+		int length = getInt();
+		if (length < 0 || length > BUFFER_SIZE) throw new IOException(file + " is corrupt");
+		byte[] bytes = new byte[length];
+		require(length).get(bytes);
+		return new String(bytes, CheckpointWriter.UTF8);
+	}
+
+	/**
+	 * @return true if the whole file was read
+	 * @throws IOException if reading fails
+	 */
+	boolean atEnd() throws IOException {
+		return available(1) == 0;
+	}
+
+	void close() throws IOException {
+		channel.close();
+	}
+}
@@ -0,0 +1,77 @@
+package ca.usask.abm;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+/**
+ * Writes a checkpoint file (see {@link ABMStats#checkpoint}) through a direct buffer, in big-endian order. <br>
+ * 
+ * The file starts with a magic number and a format version; the rest is laid out by the objects 
+ * being checkpointed, and read back in the same order by a {@link CheckpointReader}.
+ */
+final class CheckpointWriter {
+	static final int MAGIC = 0x41424d43; // "ABMC"
+	static final int VERSION = 2;
+	static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final int BUFFER_SIZE = 1 << 20;
+
+	private final FileChannel channel;
+	private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+	/**
+	 * Creates (or truncates) the given file, and writes its header
+	 * @param file the file
+	 * @throws IOException if the file cannot be opened
+	 */
+	CheckpointWriter(File file) throws IOException {
+		channel = new FileOutputStream(file).getChannel();
+		buffer.putInt(MAGIC);
+		buffer.putInt(VERSION);
+	}
+
+	/**
+	 * @param bytes the number of bytes about to be written, at most the size of the buffer
+	 * @return the buffer, with at least that many bytes remaining
+	 * @throws IOException if writing fails
+	 */
+	ByteBuffer reserve(int bytes) throws IOException {
+		if (bytes > BUFFER_SIZE) throw new IllegalArgumentException(bytes + " bytes don't fit in a buffer of " + BUFFER_SIZE);
+		if (buffer.remaining() < bytes) drain();
+		return buffer;
+	}
+
+	void putInt(int value) throws IOException { reserve(4).putInt(value); }
+
+	void putLong(long value) throws IOException { reserve(8).putLong(value); }
+
+	void putDouble(double value) throws IOException { reserve(8).putDouble(value); }
+
+	void putString(String value) throws IOException {
+		byte[] bytes = value.getBytes(UTF8);
+		putInt(bytes.length);
+		reserve(bytes.length).put(bytes);
+	}
+
+	private void drain() throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining()) channel.write(buffer);
+		buffer.clear();
+	}
+
+	/**
+	 * Writes the rest of the buffer, forces it to the storage device and closes the file
+	 * @throws IOException if writing fails
+	 */
+	void close() throws IOException {
+		try {
+			drain();
+			channel.force(false);
+		} finally {
+			channel.close();
+		}
+	}
+}
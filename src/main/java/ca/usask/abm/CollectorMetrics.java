@@ -0,0 +1,152 @@
+package ca.usask.abm;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The live runtime metrics of a statistics collector, created by
+ * {@link StatisticsCollector#setMetricsEnabled(boolean)}. <br>
+ *
+ * Counters are updated as the collector works (possibly from several threads, for parallel
+ * and concurrent collectors), so the getters of this object may be read at any time, e.g.
+ * through JMX. {@link #snapshot()} returns an immutable copy for programmatic use. <br>
+ *
+ * The objects of a pass (or of a parallel chunk) are counted in plain local counters, which are
+ * added to the shared ones once the pass is over; the counts of a pass in progress are not visible yet.
+ */
+public final class CollectorMetrics implements CollectorMetricsMXBean {
+	/**
+	 * one object in this many (a power of two) has its classification and accumulation timed; 
+	 * the times are scaled accordingly
+	 */
+	public static final int TIMING_INTERVAL = 64;
+
+	private final StatisticsCollector<?> collector;
+	final AtomicLong objectsIngested = new AtomicLong();
+	final AtomicLong rejectedByCondition = new AtomicLong();
+	final AtomicLong rejectedInvalid = new AtomicLong();
+	final AtomicLong cellsTouched = new AtomicLong();
+	final AtomicLong classificationNanos = new AtomicLong();
+	final AtomicLong statisticsNanos = new AtomicLong();
+	final AtomicLong exportNanos = new AtomicLong();
+
+	CollectorMetrics(StatisticsCollector<?> collector){
+		this.collector = collector;
+	}
+
+	@Override
+	public long getObjectsIngested() { return objectsIngested.get(); }
+
+	@Override
+	public long getRejectedByCondition() { return rejectedByCondition.get(); }
+
+	@Override
+	public long getRejectedInvalid() { return rejectedInvalid.get(); }
+
+	@Override
+	public long getCellsTouched() { return cellsTouched.get(); }
+
+	@Override
+	public long getClassificationNanos() { return classificationNanos.get(); }
+
+	@Override
+	public long getStatisticsNanos() { return statisticsNanos.get(); }
+
+	@Override
+	public long getExportNanos() { return exportNanos.get(); }
+
+	@Override
+	public long getCubeMemoryBytes() { return collector.partitionedStats.memoryBytes(); }
+
+	/**
+	 * Adds the counts of a pass to the metrics
+	 * @param tally the counts of the pass
+	 */
+	void publish(Tally tally){
+		objectsIngested.addAndGet(tally.objectsIngested);
+		rejectedByCondition.addAndGet(tally.rejectedByCondition);
+		rejectedInvalid.addAndGet(tally.rejectedInvalid);
+		classificationNanos.addAndGet(tally.classificationNanos);
+		statisticsNanos.addAndGet(tally.statisticsNanos);
+	}
+
+	/**
+	 * Sets every counter back to zero
+	 */
+	public void reset(){
+		objectsIngested.set(0);
+		rejectedByCondition.set(0);
+		rejectedInvalid.set(0);
+		cellsTouched.set(0);
+		classificationNanos.set(0);
+		statisticsNanos.set(0);
+		exportNanos.set(0);
+	}
+
+	/**
+	 * @return a copy of the current values of the metrics
+	 */
+	public Snapshot snapshot(){
+		return new Snapshot(this);
+	}
+
+	/**
+	 * The counts of a single pass over some objects, updated by a single thread 
+	 * (see {@link StatisticsCollector#newTally()})
+	 */
+	public static final class Tally {
+		long objectsIngested, rejectedByCondition, rejectedInvalid, classificationNanos, statisticsNanos;
+
+		Tally(){}
+	}
+
+	/**
+	 * An immutable copy of the metrics of a collector at some point in time
+	 */
+	public static final class Snapshot implements CollectorMetricsMXBean {
+		private final long objectsIngested, rejectedByCondition, rejectedInvalid, cellsTouched;
+		private final long classificationNanos, statisticsNanos, exportNanos, cubeMemoryBytes;
+
+		private Snapshot(CollectorMetricsMXBean m){
+			objectsIngested = m.getObjectsIngested();
+			rejectedByCondition = m.getRejectedByCondition();
+			rejectedInvalid = m.getRejectedInvalid();
+			cellsTouched = m.getCellsTouched();
+			classificationNanos = m.getClassificationNanos();
+			statisticsNanos = m.getStatisticsNanos();
+			exportNanos = m.getExportNanos();
+			cubeMemoryBytes = m.getCubeMemoryBytes();
+		}
+
+		@Override
+		public long getObjectsIngested() { return objectsIngested; }
+
+		@Override
+		public long getRejectedByCondition() { return rejectedByCondition; }
+
+		@Override
+		public long getRejectedInvalid() { return rejectedInvalid; }
+
+		@Override
+		public long getCellsTouched() { return cellsTouched; }
+
+		@Override
+		public long getClassificationNanos() { return classificationNanos; }
+
+		@Override
+		public long getStatisticsNanos() { return statisticsNanos; }
+
+		@Override
+		public long getExportNanos() { return exportNanos; }
+
+		@Override
+		public long getCubeMemoryBytes() { return cubeMemoryBytes; }
+
+		@Override
+		public String toString() {
+			return String.format("%d objects (%d rejected by condition, %d invalid), %d cells, "
+					+ "classification %.3f ms, statistics %.3f ms, export %.3f ms, cube %d bytes",
+					objectsIngested, rejectedByCondition, rejectedInvalid, cellsTouched,
+					classificationNanos / 1e6, statisticsNanos / 1e6, exportNanos / 1e6, cubeMemoryBytes);
+		}
+	}
+}
@@ -0,0 +1,53 @@
+package ca.usask.abm;
+
+/**
+ * The runtime metrics of a statistics collector, as published through JMX
+ * (see {@link ABMStats#registerMetrics(String)}). All times are in nanoseconds, and
+ * all counts are totals since the metrics were enabled or last reset.
+ */
+public interface CollectorMetricsMXBean {
+
+	/**
+	 * @return the number of objects (agents or events) handed to the collector, including rejected ones
+	 */
+	long getObjectsIngested();
+
+	/**
+	 * @return the number of objects that did not satisfy the spec's condition
+	 */
+	long getRejectedByCondition();
+
+	/**
+	 * @return the number of objects that satisfied the condition, but that one of the partitions
+	 * 		mapped to INVALID_ID
+	 */
+	long getRejectedInvalid();
+
+	/**
+	 * @return the number of cells written (a cell written at several times counts every time)
+	 */
+	long getCellsTouched();
+
+	/**
+	 * @return the time spent classifying objects into their cells (estimated from one object 
+	 * 		in {@link CollectorMetrics#TIMING_INTERVAL}, so that most objects cost no clock reads)
+	 */
+	long getClassificationNanos();
+
+	/**
+	 * @return the time spent folding objects into accumulators (estimated like the classification 
+	 * 		time) and computing their results
+	 */
+	long getStatisticsNanos();
+
+	/**
+	 * @return the time spent exporting the statistics (not counting the objects still buffered
+	 * 		that are processed first)
+	 */
+	long getExportNanos();
+
+	/**
+	 * @return an estimate of the memory currently used by the collector's statistics cube, in bytes
+	 */
+	long getCubeMemoryBytes();
+}
@@ -0,0 +1,114 @@
+package ca.usask.abm;
+
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * An immutable, precomputed form of a {@link StatisticsSpec}, created by {@link StatisticsSpec#compile()}.
+ * Classifies an object straight into the linear index of its cell (in the lexicographic order
+ * of partition IDs, like {@link StatisticsCube}), without allocating anything.
+ *
+ * @param <T> the basic data type over which statistics are collected
+ */
+public final class CompiledStatisticsSpec<T> {
+	/**
+	 * the cell index of an object that is not part of the statistics collection
+	 */
+	public static final long EXCLUDED = -1;
+
+	/**
+	 * the result of classify() for an object that satisfies the condition, but is not part of
+	 * one of the partitions
+	 */
+	static final long INVALID = -2;
+
+	private final Function<T, Boolean> condition;
+	private final Partition<Timed<T>>[] partitions;
+	private final Statistic<T>[] statistics;
+	private final int[] dims;
+	private final long[] strides;
+	private final long cells;
+
+	CompiledStatisticsSpec(Function<T, Boolean> condition,
+			Collection<Named<Partition<Timed<T>>>> partitions,
+			Collection<Named<Statistic<T>>> statistics) {
+		this.condition = condition;
+		@SuppressWarnings("unchecked")
+		Partition<Timed<T>>[] ps = (Partition<Timed<T>>[]) new Partition<?>[partitions.size()];
+		int i = 0;
+		for (Named<Partition<Timed<T>>> p : partitions) ps[i++] = p.getValue();
+		this.partitions = ps;
+		@SuppressWarnings("unchecked")
+		Statistic<T>[] ss = (Statistic<T>[]) new Statistic<?>[statistics.size()];
+		i = 0;
+		for (Named<Statistic<T>> s : statistics) ss[i++] = s.getValue();
+		this.statistics = ss;
+
+		dims = new int[this.partitions.length];
+		strides = new long[this.partitions.length];
+		long product = 1;
+		for (i = dims.length - 1; i >= 0; i--){
+			dims[i] = this.partitions[i].maxID() + 1; // +1 because maxID is inclusive
+			strides[i] = product;
+			product *= dims[i];
+		}
+		cells = product;
+	}
+
+	/**
+	 * @param t the timed value
+	 * @return the linear index of the cell of the element, or EXCLUDED if the element either
+	 * 			1) does not satisfy the "condition"
+	 * 			2) is not part of any one of the partitions.
+	 */
+	public long cellIndex(Timed<T> t){
+		long index = classify(t);
+		return index < 0 ? EXCLUDED : index;
+	}
+
+	/**
+	 * Same as cellIndex(), but tells apart the two reasons for excluding an element
+	 * @param t the timed value
+	 * @return the linear index of the cell of the element, EXCLUDED if the element does not satisfy
+	 * 			the "condition", or INVALID if one of the partitions maps it to INVALID_ID
+	 */
+	long classify(Timed<T> t){
+		if (!condition.apply(t.getValue())) return EXCLUDED;
+		long index = 0;
+		for (int p = 0; p < partitions.length; p++){
+			int id = partitions[p].toID(t);
+			if (id == Partition.INVALID_ID) return INVALID;
+			index += strides[p] * id;
+		}
+		return index;
+	}
+
+	/**
+	 * @return a fresh accumulator for each of the statistics, in order (the outputs of a 
+	 * 			{@link BatchStatistic} share a single accumulator)
+	 */
+	public List<Accumulator<T>> createAccumulators(){
+		return BatchStatistic.createAccumulators(statistics);
+	}
+
+	/**
+	 * @param statistic the index of a statistic
+	 * @return true if the statistic must be scaled up when computed over a sample (see {@link Statistic#isExtensive()})
+	 */
+	public boolean isExtensive(int statistic) { return statistics[statistic].isExtensive(); }
+
+	/**
+	 * @return the number of cells (the product of all partition dimensions)
+	 */
+	public long cells() { return cells; }
+
+	/**
+	 * @return the number of statistics in each cell
+	 */
+	public int statistics() { return statistics.length; }
+
+	/**
+	 * @return a copy of the partition dimensions
+	 */
+	public int[] dimensions() { return dims.clone(); }
+}
@@ -0,0 +1,139 @@
+package ca.usask.abm;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.IdentityHashMap;
+
+/**
+ * Writes a table as delimited UTF-8 text (CSV or TSV) through a buffered file channel. <br>
+ *
+ * Numbers are encoded directly into the buffer, without going through String.format, and
+ * the encoded bytes of each label are cached by identity, so that labels taken from precomputed
+ * tables are only encoded once.
+ */
+public class DelimitedTableWriter implements TableWriter {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	private final FileChannel channel;
+	private final ExportFormat format;
+	private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+	private final IdentityHashMap<String, byte[]> encodedLabels = new IdentityHashMap<String, byte[]>();
+	private final byte[] digits = new byte[20];
+	private boolean firstInRow = true;
+
+	/**
+	 * Creates (or truncates) the given file and prepares to write a table into it
+	 * @param file the destination file
+	 * @param format the text format
+	 * @throws IOException if the file cannot be opened
+	 */
+	public DelimitedTableWriter(File file, ExportFormat format) throws IOException {
+		this(new FileOutputStream(file).getChannel(), format);
+	}
+
+	/**
+	 * @param channel the channel to write to; closed by {@link #close()}
+	 * @param format the text format
+	 */
+	public DelimitedTableWriter(FileChannel channel, ExportFormat format) {
+		this.channel = channel;
+		this.format = format;
+	}
+
+	@Override
+	public void label(String text) throws IOException {
+		byte[] bytes = encodedLabels.get(text);
+		if (bytes == null){
+			bytes = escape(text).getBytes(UTF8);
+			encodedLabels.put(text, bytes);
+		}
+		separate();
+		ensure(bytes.length);
+		if (bytes.length > buffer.capacity()) {
+			channel.write(ByteBuffer.wrap(bytes));
+		} else {
+			buffer.put(bytes);
+		}
+	}
+
+	@Override
+	public void value(double value) throws IOException {
+		separate();
+		long whole = (long) value;
+		if (whole == value && Math.abs(value) < 1e15){
+			// most statistics are counts; write them as integers, without allocating
+			ensure(digits.length);
+			if (whole < 0) { buffer.put((byte) '-'); whole = -whole; }
+			int i = digits.length;
+			do {
+				digits[--i] = (byte) ('0' + (whole % 10));
+				whole /= 10;
+			} while (whole != 0);
+			buffer.put(digits, i, digits.length - i);
+		} else {
+			String s = Double.toString(value);
+			ensure(s.length());
+			for (int i = 0; i < s.length(); i++) buffer.put((byte) s.charAt(i));
+		}
+	}
+
+	@Override
+	public void endRow() throws IOException {
+		ensure(1);
+		buffer.put((byte) '\n');
+		firstInRow = true;
+	}
+
+	/**
+	 * Writes any buffered data and closes the underlying channel
+	 * @throws IOException if writing fails
+	 */
+	public void close() throws IOException {
+		try {
+			drain();
+		} finally {
+			channel.close();
+		}
+	}
+
+	private void separate() throws IOException {
+		if (firstInRow) {
+			firstInRow = false;
+		} else {
+			ensure(1);
+			buffer.put((byte) format.delimiter());
+		}
+	}
+
+	/**
+	 * Makes room for n bytes in the buffer (if they fit in it at all)
+	 */
+	private void ensure(int n) throws IOException {
+		if (buffer.remaining() < n) drain();
+	}
+
+	private void drain() throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining()) channel.write(buffer);
+		buffer.clear();
+	}
+
+	/**
+	 * @return the text as it must appear in a cell of this format
+	 */
+	private String escape(String text){
+		char delimiter = format.delimiter();
+		if (format == ExportFormat.TSV){
+			// TSV has no quoting; tabs and line breaks can't appear in a cell
+			return text.replace('\t', ' ').replace('\n', ' ').replace('\r', ' ');
+		}
+		if (text.indexOf(delimiter) < 0 && text.indexOf('"') < 0
+				&& text.indexOf('\n') < 0 && text.indexOf('\r') < 0) return text;
+		return '"' + text.replace("\"", "\"\"") + '"';
+	}
+}
@@ -0,0 +1,61 @@
+package ca.usask.abm;
+
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * A statistics cube that stores every cell. All values live in a single double[], 
+ * with the statistics of a cell next to each other, so the cube takes 8 bytes per value
+ * (plus one bit per cell to track empty cells).
+ */
+public class DenseStatisticsCube extends StatisticsCube {
+	private final double[] values;
+	private final BitSet filled;
+
+	/**
+	 * Creates a new cube in which every cell is empty
+	 * @param ds the dimensions (positive integers) of the cube
+	 * @param initial the statistic values of empty cells
+	 */
+	public DenseStatisticsCube(List<Integer> ds, List<Double> initial){
+		super(ds, initial);
+		if (cells() * statistics > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("cube of dimensions " + ds + " with " + statistics + " statistics is too large");
+		values = new double[(int) cells() * statistics];
+		filled = new BitSet((int) cells());
+		for (int s = 0; s < statistics; s++){
+			for (int i = s; i < values.length; i += statistics) values[i] = initialValues[s];
+		}
+	}
+
+	@Override
+	public double get(long cell, int statistic) { return values[(int) cell * statistics + statistic]; }
+
+	@Override
+	public void set(long cell, int statistic, double value) {
+		values[(int) cell * statistics + statistic] = value;
+		filled.set((int) cell);
+	}
+
+	@Override
+	public boolean isEmpty(long cell) { return !filled.get((int) cell); }
+
+	@Override
+	public void clear() {
+		for (int i = filled.nextSetBit(0); i >= 0; i = filled.nextSetBit(i + 1)){
+			System.arraycopy(initialValues, 0, values, i * statistics, statistics);
+		}
+		filled.clear();
+	}
+
+	@Override
+	public long[] nonEmptyCells() {
+		long[] cells = new long[filled.cardinality()];
+		int n = 0;
+		for (int i = filled.nextSetBit(0); i >= 0; i = filled.nextSetBit(i + 1)) cells[n++] = i;
+		return cells;
+	}
+
+	@Override
+	public long memoryBytes() { return 8L * values.length + cells() / 8; }
+}
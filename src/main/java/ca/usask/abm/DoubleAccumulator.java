@@ -0,0 +1,20 @@
+package ca.usask.abm;
+
+/**
+ * An accumulator over primitive doubles. Values added through {@link #add(double)} 
+ * are never boxed.
+ */
+public abstract class DoubleAccumulator extends Accumulator<Double> {
+
+	/**
+	 * Adds a single value to the accumulated data
+	 * @param value the value
+	 */
+	public abstract void add(double value);
+
+	@Override
+	public final void add(Double value) {
+		add(value.doubleValue());
+	}
+
+}
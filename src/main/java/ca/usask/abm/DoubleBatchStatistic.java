@@ -0,0 +1,78 @@
+package ca.usask.abm;
+
+import java.util.List;
+
+/**
+ * A batch statistic over doubles whose accumulators work on primitive values,
+ * so that values read through a {@link ToDoubleFunction} are never boxed or copied.
+ */
+public abstract class DoubleBatchStatistic extends BatchStatistic<Double> {
+
+	/**
+	 * @param names the name of each output, in order
+	 */
+	protected DoubleBatchStatistic(List<String> names){
+		super(names);
+	}
+
+	@Override
+	public abstract DoubleBatchAccumulator createAccumulator();
+
+	/**
+	 * Creates a batch statistic over values of type U by applying a primitive accessor to each value,
+	 * then applying this statistic to the results.
+	 * @param <U> the type of the resulting statistic
+	 * @param accessor the accessor function
+	 * @return the resulting statistic, with the same outputs
+	 */
+	public <U> BatchStatistic<U> on(final ToDoubleFunction<U> accessor){
+		final DoubleBatchStatistic outer = this;
+		return new BatchStatistic<U>(names()){
+			@Override
+			public BatchAccumulator<U> createAccumulator(){
+				return new MappedAccumulator<U>(accessor, outer.createAccumulator());
+			}
+		};
+	}
+
+	/**
+	 * A batch accumulator over primitive doubles. Values added through {@link #add(double)}
+	 * are never boxed.
+	 */
+	public static abstract class DoubleBatchAccumulator extends BatchAccumulator<Double> {
+
+		/**
+		 * Adds a single value to the accumulated data
+		 * @param value the value
+		 */
+		public abstract void add(double value);
+
+		@Override
+		public final void add(Double value) {
+			add(value.doubleValue());
+		}
+	}
+
+	/**
+	 * A batch accumulator over U that feeds each value through a primitive accessor into a double batch accumulator
+	 */
+	private static class MappedAccumulator<U> extends BatchAccumulator<U> {
+		private final ToDoubleFunction<U> accessor;
+		private final DoubleBatchAccumulator inner;
+
+		MappedAccumulator(ToDoubleFunction<U> accessor, DoubleBatchAccumulator inner){
+			this.accessor = accessor;
+			this.inner = inner;
+		}
+
+		@Override
+		public void add(U value) { inner.add(accessor.applyAsDouble(value)); }
+
+		@SuppressWarnings("unchecked")
+		@Override
+		public void merge(BatchAccumulator<U> other) { inner.merge(((MappedAccumulator<U>) other).inner); }
+
+		@Override
+		public void results(double[] out) { inner.results(out); }
+	}
+}
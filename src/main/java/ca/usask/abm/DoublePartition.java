@@ -0,0 +1,52 @@
+package ca.usask.abm;
+
+/**
+ * A partition of the real line that identifies primitive doubles without boxing them.
+ * NaN plays the role of null: lifted partitions map it to INVALID_ID.
+ *
+ */
+public abstract class DoublePartition extends Partition<Double> {
+
+	/**
+	 * @param x the given element
+	 * @return the identifier corresponding to the given element, or INVALID_ID if there is no such identifier
+	 */
+	public abstract int toID(double x);
+
+	/**
+	 * Used to skip ID computations over values that are known to fall into the same subset,
+	 * e.g. times between two boundaries of a time partition. The default implementation only 
+	 * knows that x falls into the subset of x.
+	 * @param x the given element
+	 * @return a value b greater than x such that every value in [x, b) has the same identifier 
+	 * 			as x (+Infinity if there is no such boundary)
+	 */
+	public double nextBoundary(double x) {
+		return Math.nextUp(x);
+	}
+
+	@Override
+	public final int toID(Double elem) {
+		if (elem == null) return INVALID_ID;
+		return toID(elem.doubleValue());
+	}
+
+	/**
+	 * Creates a partition of type U by applying a primitive accessor to each U, so that
+	 * no double is ever boxed
+	 * @param accessor the accessor function; a NaN result means there is no ID
+	 * @return the partition resulting conceptually from applying the accessor to each U
+	 * @param <U> result partition type
+	 */
+	public final <U> Partition<U> liftDouble(final ToDoubleFunction<U> accessor){
+		final DoublePartition outer = this;
+		return new Partition<U>() {
+			public int maxID(){ return outer.maxID();}
+			public int toID(U b) { if (b == null) return INVALID_ID;
+								   double x = accessor.applyAsDouble(b);
+								   if (x != x) return INVALID_ID; // NaN
+								   return outer.toID(x);}
+			public String idLabel(int id) { return outer.idLabel(id);}
+		};
+	}
+}
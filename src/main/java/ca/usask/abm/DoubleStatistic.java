@@ -0,0 +1,91 @@
+package ca.usask.abm;
+
+/**
+ * A statistic over doubles whose accumulators work on primitive values, 
+ * so that values read through a {@link ToDoubleFunction} are never boxed or copied.
+ */
+public abstract class DoubleStatistic extends AccumulatingStatistic<Double> {
+
+	@Override
+	public abstract DoubleAccumulator createAccumulator();
+
+	/**
+	 * Creates a statistic over values of type U by applying a primitive accessor to each value, 
+	 * then applying this statistic to the results.
+	 * @param <U> the type of the resulting statistic
+	 * @param accessor the accessor function
+	 * @return the resulting statistic
+	 */
+	public <U> Statistic<U> onDouble(final ToDoubleFunction<U> accessor){
+		final DoubleStatistic outer = this;
+		return new AccumulatingStatistic<U>(){
+			@Override
+			public Accumulator<U> createAccumulator(){
+				return new MappedAccumulator<U>(accessor, outer.createAccumulator());
+			}
+			@Override
+			public boolean isExtensive(){ return outer.isExtensive(); }
+		};
+	}
+
+	/**
+	 * Creates a statistic whose result is this statistic's result transformed by f
+	 * @param f the function applied to the result (once per collection, not per value)
+	 * @return the resulting statistic
+	 */
+	public DoubleStatistic map(final Function<Double, Double> f){
+		final DoubleStatistic outer = this;
+		return new DoubleStatistic(){
+			@Override
+			public DoubleAccumulator createAccumulator(){
+				return new ResultMappedAccumulator(outer.createAccumulator(), f);
+			}
+		};
+	}
+
+	/**
+	 * An accumulator over U that feeds each value through a primitive accessor into a double accumulator
+	 */
+	private static class MappedAccumulator<U> extends Accumulator<U> {
+		private final ToDoubleFunction<U> accessor;
+		private final DoubleAccumulator inner;
+
+		MappedAccumulator(ToDoubleFunction<U> accessor, DoubleAccumulator inner){
+			this.accessor = accessor;
+			this.inner = inner;
+		}
+
+		@Override
+		public void add(U value) { inner.add(accessor.applyAsDouble(value)); }
+
+		@SuppressWarnings("unchecked")
+		@Override
+		public void merge(Accumulator<U> other) { inner.merge(((MappedAccumulator<U>) other).inner); }
+
+		@Override
+		public double result() { return inner.result(); }
+	}
+
+	/**
+	 * A double accumulator that transforms the result of another
+	 */
+	private static class ResultMappedAccumulator extends DoubleAccumulator {
+		private final DoubleAccumulator inner;
+		private final Function<Double, Double> f;
+
+		ResultMappedAccumulator(DoubleAccumulator inner, Function<Double, Double> f){
+			this.inner = inner;
+			this.f = f;
+		}
+
+		@Override
+		public void add(double value) { inner.add(value); }
+
+		@Override
+		public void merge(Accumulator<Double> other) { inner.merge(((ResultMappedAccumulator) other).inner); }
+
+		@Override
+		public double result() { return f.apply(inner.result()); }
+	}
+
+}
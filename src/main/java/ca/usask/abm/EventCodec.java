@@ -0,0 +1,34 @@
+package ca.usask.abm;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes events to bytes and back, so that the events of a time partition can be kept outside
+ * of the heap (see {@link EventStatisticsCollector#setEventSpill}) or written into checkpoints
+ * (see {@link EventStatisticsCollector#setEventCodec}). Only the values read by the
+ * collector's spec need to be encoded: a decoded event only has to give the same partition IDs
+ * and statistics as the original one.
+ *
+ * @param <E> the event type
+ */
+public interface EventCodec<E> {
+
+	/**
+	 * @return the largest number of bytes written by encode() for a single event
+	 */
+	int maxEncodedSize();
+
+	/**
+	 * Writes an event at the current position of the buffer, advancing it
+	 * @param event the event
+	 * @param out the buffer, with at least maxEncodedSize() bytes remaining
+	 */
+	void encode(E event, ByteBuffer out);
+
+	/**
+	 * Reads an event written by encode() at the current position of the buffer, advancing it
+	 * @param in the buffer
+	 * @return the event
+	 */
+	E decode(ByteBuffer in);
+}
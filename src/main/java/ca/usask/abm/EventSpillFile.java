@@ -0,0 +1,124 @@
+package ca.usask.abm;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * An append-only file of timed events, written and read through memory-mapped regions, so that
+ * the events live in the page cache rather than in the heap. Each record is the time (a double)
+ * followed by the event encoded by an {@link EventCodec}; records never straddle two regions.
+ *
+ * @param <E> the event type
+ */
+final class EventSpillFile<E> {
+	/**
+	 * the size of a mapped region, in bytes
+	 */
+	static final int DEFAULT_REGION_SIZE = 1 << 26;
+
+	private final File file;
+	private final FileChannel channel;
+	private final EventCodec<E> codec;
+	private final int regionSize;
+	private final int maxRecordSize;
+	private final List<MappedByteBuffer> regions = new ArrayList<MappedByteBuffer>();
+	private final List<Integer> ends = new ArrayList<Integer>(); // the end of the records of each full region
+	private MappedByteBuffer current = null;
+	private long size = 0;
+
+	/**
+	 * Creates a new, empty file in the given directory
+	 * @param directory the directory
+	 * @param codec encodes the events
+	 * @param regionSize the size of a mapped region, in bytes
+	 * @throws IOException if the file cannot be created
+	 */
+	EventSpillFile(File directory, EventCodec<E> codec, int regionSize) throws IOException {
+		maxRecordSize = 8 + codec.maxEncodedSize();
+		if (maxRecordSize > regionSize)
+			throw new IllegalArgumentException("events of " + codec.maxEncodedSize() + " bytes don't fit in regions of " + regionSize);
+		this.codec = codec;
+		this.regionSize = regionSize;
+		file = File.createTempFile("events", ".spill", directory);
+		channel = new RandomAccessFile(file, "rw").getChannel();
+	}
+
+	/**
+	 * @return the file
+	 */
+	File file() { return file; }
+
+	/**
+	 * @return the number of events appended
+	 */
+	long size() { return size; }
+
+	/**
+	 * @param time the time of the event
+	 * @param event the event
+	 * @throws IOException if the file cannot be extended
+	 */
+	void append(double time, E event) throws IOException {
+		if (current == null || current.remaining() < maxRecordSize){
+			if (current != null) ends.add(current.position());
+			current = channel.map(FileChannel.MapMode.READ_WRITE, (long) regions.size() * regionSize, regionSize);
+			regions.add(current);
+		}
+		current.putDouble(time);
+		codec.encode(event, current);
+		size++;
+	}
+
+	/**
+	 * PRECONDITION: no event is appended while the events are read
+	 * @return the events, in the order they were appended (decoded anew on every pass)
+	 */
+	Iterable<Timed<E>> events(){
+		return new Iterable<Timed<E>>(){
+			public Iterator<Timed<E>> iterator() {
+				return new Iterator<Timed<E>>(){
+					int region = -1;
+					ByteBuffer records = null;
+					public boolean hasNext() {
+						while ((records == null || !records.hasRemaining()) && region + 1 < regions.size()){
+							region++;
+							records = regions.get(region).duplicate();
+							records.position(0);
+							records.limit(region < ends.size() ? ends.get(region) : current.position());
+						}
+						return records != null && records.hasRemaining();
+					}
+					public Timed<E> next() {
+						if (!hasNext()) throw new NoSuchElementException();
+						double time = records.getDouble();
+						return new Timed<E>(time, codec.decode(records));
+					}
+					public void remove() { throw new UnsupportedOperationException(); }
+				};
+			}
+		};
+	}
+
+	/**
+	 * Closes and deletes the file (the mapped regions are released once they are garbage collected)
+	 */
+	void delete(){
+		regions.clear();
+		ends.clear();
+		current = null;
+		try {
+			channel.close();
+		} catch (IOException e) {
+			// nothing left to write; the file is deleted anyway
+		}
+		if (!file.delete()) file.deleteOnExit();
+	}
+}
@@ -1,23 +1,38 @@
 package ca.usask.abm;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
 /**
- * Collects statistics over a particular type of events in the model. 
- * Every time update() is called with an event whose runtime class 
- * is actually SpecificEvent, the event is added to the statistics 
- * collection to be processed later. 
- * 
+ * Collects statistics over a particular type of events in the model.
+ * Every time update() is called with an event whose runtime class
+ * is actually SpecificEvent (or a subclass of it, see {@link setMatchSubclasses}), 
+ * the event is added to the statistics collection to be processed later.
+ *
  * @author isv452
  *
  * @param <Event> the most general model event type. MUST be a value (immutable) object
  * @param <SpecificEvent> the specific event type that this event collector is concerned with
  * 						(usually a subtype of Event)
  */
-public class EventStatisticsCollector<Event, SpecificEvent> 
-						extends StatisticsCollector<SpecificEvent> 
+public class EventStatisticsCollector<Event, SpecificEvent>
+						extends StatisticsCollector<SpecificEvent>
 						implements Observer<Event> {
 	private Class<SpecificEvent> specificClass;
 	private Partition<Double> timePartition;
-	
+	private boolean matchSubclasses = false;
+
 	/**
 	 * Creates a new collector
 	 * @param specificClass the class of the specific event this collector is concerned with
@@ -27,8 +42,8 @@ public class EventStatisticsCollector<Event, SpecificEvent>
 	 * 			time partition, so no agent category according to spec should fit into more than one
 	 * 			time partition)
 	 */
-	public EventStatisticsCollector(Class<SpecificEvent> specificClass, 
-									StatisticsSpec<SpecificEvent> spec, 
+	public EventStatisticsCollector(Class<SpecificEvent> specificClass,
+									StatisticsSpec<SpecificEvent> spec,
 									Partition<Double> timePartition) {
 		super(spec);
 		this.specificClass = specificClass;
@@ -38,26 +53,560 @@ public class EventStatisticsCollector<Event, SpecificEvent>
 
 	@Override
 	public Partition<Double> timePartition() {
-		return timePartition();
+		return timePartition;
 	}
 
 	private int prevID = Partition.INVALID_ID;
+
+	/**
+	 * the buffer of the open time partition in concurrent mode, or null in the default single-threaded mode
+	 */
+	private volatile Segment segment = null;
+	private final ThreadLocal<ThreadBuffer> threadBuffer = new ThreadLocal<ThreadBuffer>();
+
+	/**
+	 * Switches between the default single-threaded mode and a concurrent mode, in which update()
+	 * may be called from several threads at once. Must be called before any event is reported. <br>
+	 *
+	 * In concurrent mode, each thread appends events to its own buffer without locking; the buffers
+	 * of a time partition are merged and processed when an event from another time partition arrives.
+	 * Every event of a time partition must therefore be reported before any event of the next one
+	 * (e.g. by having the worker threads wait for each other at time partition boundaries).
+	 * @param concurrent true to allow concurrent calls to update()
+	 */
+	public synchronized void setConcurrent(boolean concurrent){
+		if (concurrent == (segment != null)) return;
+		if (concurrent && spillDirectory != null) 
+			throw new IllegalStateException("events cannot be spilled in concurrent mode");
+		if (concurrent){
+			Segment s = new Segment(prevID);
+			s.buffers.add(new ThreadBuffer(s, objectBuffer));
+			objectBuffer = new ArrayList<Timed<SpecificEvent>>();
+			segment = s;
+		} else {
+			Segment s = segment;
+			segment = null;
+			s.close();
+			prevID = s.id;
+			for (Timed<SpecificEvent> event : s.events()) objectBuffer.add(event);
+		}
+	}
+
+	/**
+	 * the executor that processes closed time partitions in asynchronous mode, or null
+	 */
+	private Executor executor = null;
+	private int maxPending = 0;
+	private Semaphore pending = null; // one permit per time partition that may be processed in the background
+	private final Object processLock = new Object(); // processStats is never run twice at once
+	private volatile Throwable asyncFailure = null;
+	
+	/**
+	 * Switches between the default synchronous mode and an asynchronous mode, in which the events
+	 * of a time partition are handed to the given executor to be processed when the next time partition 
+	 * starts, while update() goes on appending events to a fresh buffer. Time partitions are processed 
+	 * one at a time, in any order. <br>
+	 * 
+	 * At most maxPending time partitions are waiting for, or being processed by, the executor; 
+	 * update() blocks when it would need to hand over one more (back-pressure). Exports wait for all 
+	 * pending time partitions to be processed, and rethrow any failure that occurred while processing them.
+	 * @param executor the executor (e.g. a single thread executor), or null to go back to processing 
+	 * 			each time partition in the thread that reports the event that closes it
+	 * @param maxPending the maximum number of time partitions handed to the executor and not yet processed
+	 */
+	public synchronized void setAsync(Executor executor, int maxPending){
+		if (maxPending < 1) throw new IllegalArgumentException("maxPending must be positive, was " + maxPending);
+		awaitFlushes();
+		this.executor = executor;
+		this.maxPending = maxPending;
+		this.pending = executor == null ? null : new Semaphore(maxPending);
+	}
+	
+	/**
+	 * @return true if time partitions are processed in the background
+	 */
+	public synchronized boolean isAsync(){
+		return executor != null;
+	}
+	
+	/**
+	 * Waits until every time partition handed to the executor has been processed
+	 * @throws IllegalStateException if processing a time partition failed
+	 */
+	public synchronized void awaitFlushes(){
+		if (pending != null){
+			pending.acquireUninterruptibly(maxPending);
+			pending.release(maxPending);
+		}
+		Throwable failure = asyncFailure;
+		if (failure != null){
+			asyncFailure = null;
+			throw new IllegalStateException("processing a time partition failed", failure);
+		}
+	}
+	
+	/**
+	 * Processes the given events, in the background in asynchronous mode
+	 * @param events the events of a time partition
+	 * @param done run once the events have been processed, or null
+	 */
+	private void process(final Iterable<Timed<SpecificEvent>> events, final Runnable done){
+		if (executor == null){
+			synchronized (processLock){
+				processStats(events);
+			}
+			if (done != null) done.run();
+			return;
+		}
+		final Semaphore permits = pending;
+		permits.acquireUninterruptibly(); // back-pressure: wait for the executor to catch up
+		try {
+			executor.execute(new Runnable(){
+				public void run() {
+					try {
+						synchronized (processLock){
+							processStats(events);
+						}
+						if (done != null) done.run();
+					} catch (Throwable t) {
+						if (asyncFailure == null) asyncFailure = t;
+					} finally {
+						permits.release();
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			permits.release();
+			throw e;
+		}
+	}
 	
+	/**
+	 * the directory in which the events of a time partition are spilled, or null to keep them in the heap
+	 */
+	private File spillDirectory = null;
+	private EventCodec<SpecificEvent> codec = null;
+	private int spillThreshold = 0;
+	private int spillRegionSize = EventSpillFile.DEFAULT_REGION_SIZE;
+	private EventSpillFile<SpecificEvent> eventSpill = null; // the events of the open time partition, once spilled
+	
+	/**
+	 * Makes the collector move the events of a time partition out of the heap once there are more 
+	 * than threshold of them: the buffered events, then every further event of the time partition, 
+	 * are encoded into an append-only memory-mapped file, which is read back (one event at a time) 
+	 * when the time partition is processed, then deleted. Heap use then no longer grows with the 
+	 * number of events per time partition. Only available in the default single-threaded mode; 
+	 * must be called before any event is reported.
+	 * @param directory the directory in which to create the files (created if needed), or null to 
+	 * 			keep every event in the heap
+	 * @param codec encodes the values of the events that the spec needs
+	 * @param threshold the number of events of a time partition kept in the heap
+	 */
+	public synchronized void setEventSpill(File directory, EventCodec<SpecificEvent> codec, int threshold){
+		setEventSpill(directory, codec, threshold, EventSpillFile.DEFAULT_REGION_SIZE);
+	}
+	
+	/**
+	 * Same as {@link setEventSpill(File, EventCodec, int)}, with the size of the mapped regions of the files
+	 */
+	synchronized void setEventSpill(File directory, EventCodec<SpecificEvent> codec, int threshold, int regionSize){
+		if (threshold < 0) throw new IllegalArgumentException("threshold must not be negative, was " + threshold);
+		if (directory != null && segment != null) 
+			throw new IllegalStateException("events cannot be spilled in concurrent mode");
+		if (directory != null) directory.mkdirs();
+		this.spillDirectory = directory;
+		this.codec = codec;
+		this.spillThreshold = threshold;
+		this.spillRegionSize = regionSize;
+	}
+	
+	/**
+	 * Sets the codec used to write the events of the open time partition into checkpoints 
+	 * (see {@link ABMStats#checkpoint}), when the collector doesn't spill events already
+	 * @param codec encodes the values of the events that the spec needs
+	 */
+	public synchronized void setEventCodec(EventCodec<SpecificEvent> codec){
+		this.codec = codec;
+	}
+	
+	/**
+	 * @return the number of events of the open time partition that were moved out of the heap
+	 */
+	public synchronized long spilledEvents(){
+		return eventSpill == null ? 0 : eventSpill.size();
+	}
+	
+	/**
+	 * @return true if update() may be called concurrently
+	 */
+	public boolean isConcurrent(){
+		return segment != null;
+	}
+
+	/**
+	 * Makes the collector also accept events whose runtime class is a subclass of SpecificEvent
+	 * (by default, only events of exactly that class are accepted). Must be called before the 
+	 * collector is added to an {@link ABMStats}, which caches the collectors interested in each event class.
+	 * @param matchSubclasses true to accept subclasses of SpecificEvent
+	 */
+	public void setMatchSubclasses(boolean matchSubclasses){
+		this.matchSubclasses = matchSubclasses;
+	}
+	
+	/**
+	 * @return true if the collector accepts subclasses of SpecificEvent
+	 */
+	public boolean isMatchSubclasses(){
+		return matchSubclasses;
+	}
+	
+	/**
+	 * @param eventClass the runtime class of an event
+	 * @return true if update() processes the events of the given class
+	 */
+	public boolean accepts(Class<?> eventClass){
+		if (matchSubclasses) return specificClass.isAssignableFrom(eventClass);
+		return eventClass.equals(specificClass);
+	}
+
 	@Override
 	public void update(double time, Event e) {
-		if (! e.getClass().equals(specificClass)) return; // wrong event type
-		SpecificEvent se = specificClass.cast(e);
-		
+		if (! accepts(e.getClass())) return; // wrong event type
+		dispatch(time, e);
+	}
+	
+	/**
+	 * Same as update(), for an event already known to be accepted
+	 * @param time the time of the event
+	 * @param e the event, whose runtime class is accepted by this collector
+	 */
+	@SuppressWarnings("unchecked")
+	void dispatch(double time, Event e) {
+		SpecificEvent se = (SpecificEvent) e;
+		if (segment != null){
+			concurrentUpdate(time, se);
+			return;
+		}
+
 		// flush the buffer if we've transitioned into a new time partition
 		int newID = timePartition.toID(time);
 		if (newID != prevID){
 			prevID = newID;
 			this.flushBuffer();
 		}
-		
+
 		// add the event to the buffer
+		if (eventSpill != null){
+			spill(time, se);
+			return;
+		}
 		this.objectBuffer.add(new Timed<SpecificEvent>(time, se));
+		if (spillDirectory != null && objectBuffer.size() > spillThreshold) startSpill();
+	}
+	
+	/**
+	 * Moves the buffered events of the open time partition to a new spill file
+	 */
+	private void startSpill(){
+		try {
+			eventSpill = new EventSpillFile<SpecificEvent>(spillDirectory, codec, spillRegionSize);
+		} catch (IOException e) {
+			throw new IllegalStateException("cannot create a spill file in " + spillDirectory, e);
+		}
+		for (Timed<SpecificEvent> event : objectBuffer) spill(event.getTime(), event.getValue());
+		objectBuffer = new ArrayList<Timed<SpecificEvent>>(); // drop the large array along with the events
+	}
+	
+	private void spill(double time, SpecificEvent se){
+		try {
+			eventSpill.append(time, se);
+		} catch (IOException e) {
+			throw new IllegalStateException("cannot write to " + eventSpill.file(), e);
+		}
+	}
+
+	private void concurrentUpdate(double time, SpecificEvent se){
+		int newID = timePartition.toID(time);
+		while (true){
+			Segment s = segment;
+			if (s.id != newID){
+				advance(s, newID);
+				continue;
+			}
+			if (!s.enter()){
+				// lost the race against a flush: wait for the next segment, without holding up the flush
+				while (segment == s) Thread.yield();
+				continue;
+			}
+			try {
+				ThreadBuffer buffer = threadBuffer.get();
+				if (buffer == null || buffer.segment != s){
+					buffer = new ThreadBuffer(s, new ArrayList<Timed<SpecificEvent>>());
+					s.buffers.add(buffer);
+					threadBuffer.set(buffer);
+				}
+				buffer.events.add(new Timed<SpecificEvent>(time, se));
+				return;
+			} finally {
+				s.exit();
+			}
+		}
+	}
+
+	/**
+	 * Closes the given segment, opens a segment for the given time partition, and processes
+	 * the events of the closed segment. Does nothing if another thread got there first.
+	 */
+	private synchronized void advance(final Segment s, int newID){
+		if (segment != s) return;
+		s.close();
+		segment = new Segment(newID);
+		process(s.events(), new Runnable(){
+			public void run() { s.release(); }
+		});
+	}
+
+	@Override
+	String layout() {
+		return super.layout() + specificClass.getName();
+	}
+	
+	/**
+	 * Also writes the ID of the open time partition and its events, which are not processed. 
+	 * PRECONDITION: no event is being reported
+	 */
+	@Override
+	synchronized void checkpoint(CheckpointWriter out) throws IOException {
+		awaitFlushes();
+		synchronized (processLock){
+			super.checkpoint(out);
+		}
+		Segment s = segment;
+		out.putInt(s != null ? s.id : prevID);
+		for (Timed<SpecificEvent> event : pendingObjects()){
+			if (codec == null) 
+				throw new IllegalStateException("a codec is needed to checkpoint the events of the open time partition; see setEventCodec()");
+			ByteBuffer b = out.reserve(13 + codec.maxEncodedSize());
+			b.put((byte) 1);
+			b.putDouble(event.getTime());
+			int length = b.position();
+			b.putInt(0); // the length of the encoded event, once known
+			codec.encode(event.getValue(), b);
+			b.putInt(length, b.position() - length - 4);
+		}
+		out.reserve(1).put((byte) 0); // no more events
+	}
+	
+	/**
+	 * Also waits for the time partitions handed to the executor, if any. 
+	 * PRECONDITION: no event is being reported
+	 */
+	@Override
+	public synchronized StatisticsQuery query() throws IOException {
+		awaitFlushes();
+		synchronized (processLock){
+			return super.query();
+		}
 	}
 	
+	/**
+	 * @return the events of the open time partition
+	 */
+	@Override
+	Iterable<Timed<SpecificEvent>> pendingObjects(){
+		Segment s = segment;
+		return s != null ? s.events() : eventSpill != null ? eventSpill.events() : objectBuffer;
+	}
 	
+	/**
+	 * Also reads the ID of the open time partition and its events
+	 */
+	@Override
+	Runnable restore(CheckpointReader in) throws IOException {
+		final Runnable statistics = super.restore(in);
+		final int id = in.getInt();
+		final List<Timed<SpecificEvent>> events = new ArrayList<Timed<SpecificEvent>>();
+		while (in.require(1).get() != 0){
+			if (codec == null) 
+				throw new IllegalStateException("a codec is needed to restore the events of the open time partition; see setEventCodec()");
+			double time = in.getDouble();
+			events.add(new Timed<SpecificEvent>(time, decode(in)));
+		}
+		return new Runnable(){
+			public void run() {
+				restoreState(statistics, id, events);
+			}
+		};
+	}
+	
+	/**
+	 * Decodes an event written by checkpoint(), after its length
+	 */
+	private SpecificEvent decode(CheckpointReader in) throws IOException {
+		int length = in.getInt();
+		if (length < 0 || length > codec.maxEncodedSize()) 
+			throw new IOException(in.file() + " is corrupt: an event of " + length + " bytes");
+		ByteBuffer b = in.require(length);
+		ByteBuffer encoded = b.slice();
+		encoded.limit(length);
+		SpecificEvent event;
+		try {
+			event = codec.decode(encoded);
+		} catch (BufferUnderflowException e) {
+			throw new IOException(in.file() + " is corrupt: an event needs more than its " + length + " bytes", e);
+		}
+		if (encoded.hasRemaining()) 
+			throw new IOException(in.file() + " is corrupt: an event of " + length + " bytes was decoded from " + encoded.position());
+		b.position(b.position() + length);
+		return event;
+	}
+	
+	private synchronized void restoreState(Runnable statistics, int id, List<Timed<SpecificEvent>> events){
+		awaitFlushes();
+		synchronized (processLock){
+			statistics.run();
+		}
+		if (eventSpill != null){
+			eventSpill.delete();
+			eventSpill = null;
+		}
+		if (segment != null){
+			segment = new Segment(id);
+			if (!events.isEmpty()) segment.buffers.add(new ThreadBuffer(segment, events));
+			return;
+		}
+		prevID = id;
+		objectBuffer = events;
+		if (spillDirectory != null && objectBuffer.size() > spillThreshold) startSpill();
+	}
+	
+	@Override
+	protected synchronized void flushBuffer(){
+		Segment s = segment;
+		if (s != null) advance(s, s.id);
+		if (eventSpill != null){
+			// the buffer is empty; hand the file over, and delete it once processed
+			final EventSpillFile<SpecificEvent> spilled = eventSpill;
+			eventSpill = null;
+			process(spilled.events(), new Runnable(){
+				public void run() { spilled.delete(); }
+			});
+			return;
+		}
+		if (objectBuffer.isEmpty()) return;
+		// hand the buffer over, and start a fresh one
+		List<Timed<SpecificEvent>> events = objectBuffer;
+		objectBuffer = new ArrayList<Timed<SpecificEvent>>();
+		process(events, null);
+	}
+	
+	@Override
+	protected void finish(){
+		flushBuffer();
+		awaitFlushes();
+	}
+
+	/**
+	 * The events of one time partition in concurrent mode, in one buffer per thread
+	 */
+	private class Segment {
+		private static final int CLOSED = 1 << 30;
+		final int id;
+		final ConcurrentLinkedQueue<ThreadBuffer> buffers = new ConcurrentLinkedQueue<ThreadBuffer>();
+		/**
+		 * the number of appends in progress, plus CLOSED once the segment is closed
+		 */
+		final AtomicInteger state = new AtomicInteger();
+		/**
+		 * counted down by the last append in progress when the segment is closed
+		 */
+		final CountDownLatch drained = new CountDownLatch(1);
+
+		Segment(int id){ this.id = id; }
+
+		/**
+		 * Starts an append, unless the segment is closed
+		 * @return true if the append may proceed, in which case exit() must follow
+		 */
+		boolean enter(){
+			while (true){
+				int current = state.get();
+				if (current >= CLOSED) return false;
+				if (state.compareAndSet(current, current + 1)) return true;
+			}
+		}
+
+		/**
+		 * Ends an append started by enter()
+		 */
+		void exit(){
+			if (state.decrementAndGet() == CLOSED) drained.countDown();
+		}
+
+		/**
+		 * Stops any further appends, and waits for the appends in progress to complete. 
+		 * Must be called once.
+		 */
+		void close(){
+			if (state.addAndGet(CLOSED) == CLOSED) return; // no append in progress
+			boolean interrupted = false;
+			while (true){
+				try {
+					drained.await();
+					break;
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+			if (interrupted) Thread.currentThread().interrupt();
+		}
+
+		/**
+		 * Drops the events of a processed segment (threads may still refer to their stale buffers)
+		 */
+		void release(){
+			for (ThreadBuffer buffer : buffers) buffer.events = null;
+			buffers.clear();
+		}
+
+		/**
+		 * PRECONDITION: the segment is closed
+		 * @return all the events of the segment, thread by thread
+		 */
+		Iterable<Timed<SpecificEvent>> events(){
+			return new Iterable<Timed<SpecificEvent>>(){
+				public Iterator<Timed<SpecificEvent>> iterator() {
+					final Iterator<ThreadBuffer> bs = buffers.iterator();
+					return new Iterator<Timed<SpecificEvent>>(){
+						Iterator<Timed<SpecificEvent>> current = null;
+						public boolean hasNext() {
+							while ((current == null || !current.hasNext()) && bs.hasNext()){
+								current = bs.next().events.iterator();
+							}
+							return current != null && current.hasNext();
+						}
+						public Timed<SpecificEvent> next() {
+							hasNext();
+							return current.next();
+						}
+						public void remove() { throw new UnsupportedOperationException(); }
+					};
+				}
+			};
+		}
+	}
+
+	/**
+	 * The events appended by a single thread to a segment
+	 */
+	private class ThreadBuffer {
+		final Segment segment;
+		List<Timed<SpecificEvent>> events;
+
+		ThreadBuffer(Segment segment, List<Timed<SpecificEvent>> events){
+			this.segment = segment;
+			this.events = events;
+		}
+	}
+
 }
@@ -1,11 +1,13 @@
 package ca.usask.abm;
 
-import org.apache.poi.xssf.usermodel.XSSFSheet;
+import org.apache.poi.ss.usermodel.Sheet;
 
 public interface ExcelSheetExporter {
 	/**
-	  * Adds all internally collected data to the given Excel sheet
+	  * Adds all internally collected data to the given Excel sheet. 
+	  * Rows are created in increasing order and never revisited, so the sheet may be
+	  * a streaming sheet that only keeps a window of rows in memory.
 	  * @param sheet a blank Excel sheet
 	  */
-	void exportData(XSSFSheet sheet);
+	void exportData(Sheet sheet);
 }
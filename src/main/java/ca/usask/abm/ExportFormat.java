@@ -0,0 +1,29 @@
+package ca.usask.abm;
+
+/**
+ * The plain-text formats that collectors can be exported to
+ */
+public enum ExportFormat {
+	/** comma-separated values (RFC 4180 quoting) */
+	CSV(',', "csv"),
+	/** tab-separated values */
+	TSV('\t', "tsv");
+
+	private final char delimiter;
+	private final String extension;
+
+	private ExportFormat(char delimiter, String extension){
+		this.delimiter = delimiter;
+		this.extension = extension;
+	}
+
+	/**
+	 * @return the character separating cells in a row
+	 */
+	public char delimiter() { return delimiter; }
+
+	/**
+	 * @return the usual file extension, without the dot
+	 */
+	public String extension() { return extension; }
+}
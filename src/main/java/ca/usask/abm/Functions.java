@@ -0,0 +1,37 @@
+package ca.usask.abm;
+
+/**
+ * Consists entirely of static methods used to convert between boxed and primitive functions
+ *
+ */
+public class Functions {
+
+	/**
+	 * @param f a function returning boxed doubles
+	 * @param <T> the argument type
+	 * @return the equivalent primitive function; null results become NaN
+	 */
+	public static <T> ToDoubleFunction<T> unboxed(final Function<T, Double> f){
+		return new ToDoubleFunction<T>(){
+			public double applyAsDouble(T argument) {
+				Double d = f.apply(argument);
+				return d == null ? Double.NaN : d;
+			}
+		};
+	}
+
+	/**
+	 * @param f a primitive function
+	 * @param <T> the argument type
+	 * @return the equivalent boxed function; NaN results become null
+	 */
+	public static <T> Function<T, Double> boxed(final ToDoubleFunction<T> f){
+		return new Function<T, Double>(){
+			public Double apply(T argument) {
+				double d = f.applyAsDouble(argument);
+				return Double.isNaN(d) ? null : d;
+			}
+		};
+	}
+
+}
@@ -0,0 +1,37 @@
+package ca.usask.abm;
+
+/**
+ * A partition of the integers that identifies primitive ints without boxing them
+ *
+ */
+public abstract class IntPartition extends Partition<Integer> {
+
+	/**
+	 * @param x the given element
+	 * @return the identifier corresponding to the given element, or INVALID_ID if there is no such identifier
+	 */
+	public abstract int toID(int x);
+
+	@Override
+	public final int toID(Integer elem) {
+		if (elem == null) return INVALID_ID;
+		return toID(elem.intValue());
+	}
+
+	/**
+	 * Creates a partition of type U by applying a primitive accessor to each U, so that
+	 * no int is ever boxed
+	 * @param accessor the accessor function
+	 * @return the partition resulting conceptually from applying the accessor to each U
+	 * @param <U> result partition type
+	 */
+	public final <U> Partition<U> liftInt(final ToIntFunction<U> accessor){
+		final IntPartition outer = this;
+		return new Partition<U>() {
+			public int maxID(){ return outer.maxID();}
+			public int toID(U b) { if (b == null) return INVALID_ID;
+								   return outer.toID(accessor.applyAsInt(b));}
+			public String idLabel(int id) { return outer.idLabel(id);}
+		};
+	}
+}
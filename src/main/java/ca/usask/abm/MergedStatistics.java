@@ -0,0 +1,223 @@
+package ca.usask.abm;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+import org.apache.commons.math3.distribution.TDistribution;
+
+/**
+ * The statistics of one collector, merged cell by cell over a number of replications: for every 
+ * cell and statistic, the mean, the sample variance and a confidence interval of the mean across 
+ * replications. <br>
+ * 
+ * Replications are merged one at a time with Welford's online algorithm, so only the running 
+ * moments are kept. NaN values (e.g. the average of an empty cell) are left out. A cell that a 
+ * replication left empty counts as the statistics of an empty cell (e.g. a count of 0).
+ */
+public class MergedStatistics implements TableExporter {
+	private final List<String> partitionNames;
+	private final List<String> statisticNames;
+	private final String[][] labels;
+	private final int[] dims;
+	private final int statistics;
+	private final double[] initial;
+
+	// per cell: the number of non-NaN values of each statistic, then the number of replications that filled the cell
+	private final StatisticsCube counts;
+	private final StatisticsCube means;
+	private final StatisticsCube m2s; // sums of squared differences from the mean
+	private int replications = 0;
+
+	private double confidenceLevel = 0.95;
+	private final HashMap<Long, Double> tQuantiles = new HashMap<Long, Double>();
+	private boolean exportEmptyCells = true;
+
+	/**
+	 * Creates an empty merge with the layout (partitions and statistics) of the given collector
+	 * @param layout a collector
+	 */
+	MergedStatistics(StatisticsCollector<?> layout) {
+		partitionNames = layout.spec.partitionNames();
+		statisticNames = layout.statisticNames();
+		labels = layout.spec.partitionLabelTables();
+		List<Integer> ds = layout.spec.partitionDimensions();
+		dims = layout.partitionedStats.dimensions();
+		statistics = layout.partitionedStats.statistics();
+		initial = layout.partitionedStats.initialValues();
+		Double[] zeros = new Double[statistics];
+		Arrays.fill(zeros, 0.0);
+		Double[] countZeros = new Double[statistics + 1];
+		Arrays.fill(countZeros, 0.0);
+		counts = StatisticsCube.create(ds, Arrays.asList(countZeros), StatisticsCollector.SPARSE_THRESHOLD);
+		means = StatisticsCube.create(ds, Arrays.asList(zeros), StatisticsCollector.SPARSE_THRESHOLD);
+		m2s = StatisticsCube.create(ds, Arrays.asList(zeros), StatisticsCollector.SPARSE_THRESHOLD);
+	}
+
+	/**
+	 * Merges the statistics of one more replication
+	 * @param collector the collector of the replication
+	 * @throws IllegalArgumentException if the collector doesn't have the same layout
+	 * @throws IOException if the collector's spill file cannot be read
+	 */
+	synchronized void merge(StatisticsCollector<?> collector) throws IOException {
+		if (!Arrays.equals(dims, collector.partitionedStats.dimensions())
+				|| !statisticNames.equals(collector.statisticNames())
+				|| !partitionNames.equals(collector.spec.partitionNames()))
+			throw new IllegalArgumentException("the collector's partitions or statistics differ from the other replications'");
+		replications++;
+		collector.forEachNonEmptyCell(new StatisticsCollector.CellVisitor(){
+			public void visit(long cell, double[] values) {
+				for (int s = 0; s < statistics; s++){
+					double x = values[s];
+					if (Double.isNaN(x)) continue;
+					double n = counts.get(cell, s) + 1;
+					double mean = means.get(cell, s);
+					double delta = x - mean;
+					mean += delta / n;
+					counts.set(cell, s, n);
+					means.set(cell, s, mean);
+					m2s.set(cell, s, m2s.get(cell, s) + delta * (x - mean));
+				}
+				counts.set(cell, statistics, counts.get(cell, statistics) + 1);
+			}
+		});
+	}
+
+	/**
+	 * @return the number of replications merged so far
+	 */
+	public synchronized int replications() { return replications; }
+
+	/**
+	 * @return the number of cells
+	 */
+	public long cells() { return counts.cells(); }
+
+	/**
+	 * @param level the confidence level of the intervals, in (0, 1) (0.95 by default)
+	 */
+	public synchronized void setConfidenceLevel(double level) {
+		if (!(level > 0 && level < 1)) throw new IllegalArgumentException("confidence level must be in (0, 1), was " + level);
+		confidenceLevel = level;
+		tQuantiles.clear();
+	}
+
+	/**
+	 * @param exportEmptyCells if false, the export skips the cells that no replication ever filled
+	 */
+	public void setExportEmptyCells(boolean exportEmptyCells) {
+		this.exportEmptyCells = exportEmptyCells;
+	}
+
+	/**
+	 * @param cell a linear cell index
+	 * @param statistic the index of the statistic
+	 * @return the number of replications with a (non-NaN) value of the statistic
+	 */
+	public synchronized double count(long cell, int statistic) {
+		return moments(cell, statistic)[0];
+	}
+
+	/**
+	 * @param cell a linear cell index
+	 * @param statistic the index of the statistic
+	 * @return the mean of the statistic across replications, or NaN if there is no value
+	 */
+	public synchronized double mean(long cell, int statistic) {
+		double[] m = moments(cell, statistic);
+		return m[0] == 0 ? Double.NaN : m[1];
+	}
+
+	/**
+	 * @param cell a linear cell index
+	 * @param statistic the index of the statistic
+	 * @return the sample variance of the statistic across replications, or NaN if there are fewer than 2 values
+	 */
+	public synchronized double variance(long cell, int statistic) {
+		double[] m = moments(cell, statistic);
+		return m[0] < 2 ? Double.NaN : m[2] / (m[0] - 1);
+	}
+
+	/**
+	 * @param cell a linear cell index
+	 * @param statistic the index of the statistic
+	 * @return the half-width of the confidence interval of the mean of the statistic (Student's t), 
+	 * 			or NaN if there are fewer than 2 values
+	 */
+	public synchronized double confidenceHalfWidth(long cell, int statistic) {
+		double[] m = moments(cell, statistic);
+		if (m[0] < 2) return Double.NaN;
+		long n = (long) m[0];
+		Double t = tQuantiles.get(n);
+		if (t == null){
+			t = new TDistribution(null, n - 1).inverseCumulativeProbability(0.5 + confidenceLevel / 2);
+			tQuantiles.put(n, t);
+		}
+		return t * Math.sqrt(m[2] / (m[0] - 1) / m[0]);
+	}
+
+	/**
+	 * @return {count, mean, sum of squared differences}, including the replications that left the cell empty
+	 */
+	private double[] moments(long cell, int s) {
+		double n = counts.get(cell, s);
+		double mean = means.get(cell, s);
+		double m2 = m2s.get(cell, s);
+		double empty = replications - counts.get(cell, statistics);
+		if (empty > 0 && !Double.isNaN(initial[s])){
+			// merge in the empty replications: that many copies of the initial value
+			double total = n + empty;
+			double delta = initial[s] - mean;
+			mean = n == 0 ? initial[s] : mean + delta * empty / total;
+			m2 = n == 0 ? 0 : m2 + delta * delta * n * empty / total;
+			n = total;
+		}
+		return new double[]{ n, mean, m2 };
+	}
+
+	/**
+	 * Writes, for every cell, the mean, variance and confidence interval of each statistic
+	 */
+	@Override
+	public synchronized void exportData(TableWriter out) throws IOException {
+		for (String name : partitionNames) out.label(name);
+		for (String name : statisticNames){
+			out.label(name + " (mean)");
+			out.label(name + " (variance)");
+			out.label(name + " (CI low)");
+			out.label(name + " (CI high)");
+		}
+		out.endRow();
+		int[] coord = new int[dims.length];
+		if (!exportEmptyCells){
+			for (long cell : counts.nonEmptyCells()){
+				counts.fromLinearIndex(cell, coord);
+				exportRow(out, coord, cell);
+			}
+			return;
+		}
+		for (long i = 0; i < counts.cells(); i++){
+			exportRow(out, coord, i);
+			for (int p = coord.length - 1; p >= 0 && ++coord[p] == dims[p]; p--){
+				coord[p] = 0;
+			}
+		}
+	}
+
+	private void exportRow(TableWriter out, int[] coord, long cell) throws IOException {
+		for (int p = 0; p < coord.length; p++){
+			out.label(labels[p][coord[p]]);
+		}
+		for (int s = 0; s < statistics; s++){
+			double mean = mean(cell, s);
+			double halfWidth = confidenceHalfWidth(cell, s);
+			out.value(mean);
+			out.value(variance(cell, s));
+			out.value(mean - halfWidth);
+			out.value(mean + halfWidth);
+		}
+		out.endRow();
+	}
+}
@@ -1,6 +1,5 @@
 package ca.usask.abm;
 
-import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 
@@ -18,10 +17,10 @@ public class Partitions {
 	 * @param max the maximum integer of the range
 	 * @return the resulting partition object
 	 */
-	public static Partition<Integer> intRange(final int min, final int max) {
-		return new Partition<Integer>(){
+	public static IntPartition intRange(final int min, final int max) {
+		return new IntPartition(){
 			public int maxID() { return max - min; }
-			public int toID(Integer x) { 
+			public int toID(int x) { 
 				if (x >= min && x <= max) return x - min;
 				else return Partition.INVALID_ID;
 			}
@@ -36,29 +35,79 @@ public class Partitions {
 	 * @param max the range maximum
 	 * @return the resulting partition object
 	 */
-	 public static Partition<Double> range(final double min, final double step, final double max) { 
-		 return new Partition<Double>() {
-		    private Double eps = 1e-8;
-		    @Override
-		    public int toID(Double x){
-		      if (x > max || x < min) return Partition.INVALID_ID;
-		      else { 
-		        double basic = (x - min) / step; // the number of steps needed to get there
-		        int rounded = (int) Math.floor(basic - eps); // the interval number
-		        return Math.max(0, rounded); // make sure the answer is nonnegative
-		      }
-		    }  
-		    public int maxID() { return toID(max);}
-		    
-		    public String idLabel(int id) {
-		        double lowerBound = min + step * id;
-		        double upperBound = lowerBound + step;
-		        if (id == maxID())
-		        	return String.format("[%f, %f]", lowerBound, upperBound);
-		        else 
-		        	return String.format("[%f, %f)", lowerBound, upperBound);
-		    }    
-		 };
+	 public static DoublePartition range(final double min, final double step, final double max) { 
+		 return new Range(min, step, max);
+	 }
+
+	 /**
+	  * The partition created by range(); two ranges with the same bounds and step are equal
+	  */
+	 private static final class Range extends DoublePartition {
+		private static final double EPS = 1e-8;
+		private final double min, step, max;
+		private final int maxID;
+
+		Range(double min, double step, double max){
+			this.min = min;
+			this.step = step;
+			this.max = max;
+			this.maxID = toID(max);
+		}
+
+		@Override
+		public int toID(double x){
+			if (x > max || x < min) return Partition.INVALID_ID;
+			double basic = (x - min) / step; // the number of steps needed to get there
+			int rounded = (int) Math.floor(basic - EPS); // the interval number
+			return Math.max(0, rounded); // make sure the answer is nonnegative
+		}
+
+		public int maxID() { return maxID;}
+
+		@Override
+		public double nextBoundary(double x){
+			if (x < min) return min;
+			int id = toID(x);
+			if (id == Partition.INVALID_ID) return Double.POSITIVE_INFINITY; // above max
+			if (id == maxID) return Math.nextUp(max);
+			// start from the first value of the next interval as computed, then bisect to the exact
+			// value at which toID changes, since rounding may put that value on either side
+			double lo = x;
+			double hi = min + (id + 1 + EPS) * step;
+			if (hi <= lo) hi = lo + step;
+			while (toID(hi) == id) hi += hi - lo;
+			while (true){
+				double mid = lo + (hi - lo) / 2;
+				if (mid <= lo || mid >= hi) return hi;
+				if (toID(mid) == id) lo = mid;
+				else hi = mid;
+			}
+		}
+
+		public String idLabel(int id) {
+			double lowerBound = min + step * id;
+			double upperBound = lowerBound + step;
+			if (id == maxID())
+				return String.format("[%f, %f]", lowerBound, upperBound);
+			else 
+				return String.format("[%f, %f)", lowerBound, upperBound);
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Range)) return false;
+			Range r = (Range) o;
+			return Double.compare(min, r.min) == 0 && Double.compare(step, r.step) == 0
+					&& Double.compare(max, r.max) == 0;
+		}
+
+		@Override
+		public int hashCode() {
+			long h = Double.doubleToLongBits(min);
+			h = 31 * h + Double.doubleToLongBits(step);
+			h = 31 * h + Double.doubleToLongBits(max);
+			return (int) (h ^ (h >>> 32));
+		}
 	 }
 	 
 	 /**
@@ -67,31 +116,40 @@ public class Partitions {
 	  * @param es the endpoints of the intervals, in increasing order
 	  * @return the resulting partition
 	  */
-	 public static Partition<Double> between(final Collection<Double> es){
-		 return new Partition<Double>(){
-			private ArrayList<Double> endpoints = new ArrayList<Double>(es);
-			
+	 public static DoublePartition between(final Collection<Double> es){
+		 final double[] endpoints = new double[es.size()];
+		 int n = 0;
+		 for (double e : es) endpoints[n++] = e;
+		 return new DoublePartition(){
+
 			@Override
 			public int maxID() {
-				return endpoints.size();
+				return endpoints.length;
 			}
 
 			@Override
-			public int toID(Double elem) {
-				int index = 0;
-				for (double e : endpoints){
-					if (elem < e) return index;
-					index++;
+			public int toID(double elem) {
+				// binary search for the first endpoint greater than elem
+				int lo = 0, hi = endpoints.length;
+				while (lo < hi){
+					int mid = (lo + hi) >>> 1;
+					if (elem < endpoints[mid]) hi = mid;
+					else lo = mid + 1;
 				}
-				// must be greater than any element in the collection
-				return maxID();
+				return lo;
+			}
+
+			@Override
+			public double nextBoundary(double x) {
+				int id = toID(x);
+				return id < endpoints.length ? endpoints[id] : Double.POSITIVE_INFINITY;
 			}
 
 			@Override
 			public String idLabel(int id) {
-				if (id == maxID()) return String.format("[%f, max)", endpoints.get(id-1));
-			    else if (id == 0) return String.format("[min, %f)", endpoints.get(0));
-			    else return String.format("[%f, %f)", endpoints.get(id-1), endpoints.get(id));
+				if (id == maxID()) return String.format("[%f, max)", endpoints[id-1]);
+			    else if (id == 0) return String.format("[min, %f)", endpoints[0]);
+			    else return String.format("[%f, %f)", endpoints[id-1], endpoints[id]);
 			}
 			 
 		 };
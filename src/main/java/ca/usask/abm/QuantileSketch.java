@@ -0,0 +1,205 @@
+package ca.usask.abm;
+
+import java.util.Arrays;
+
+/**
+ * A mergeable, bounded-memory summary of a stream of doubles that answers approximate
+ * quantile queries (a KLL sketch). <br>
+ *
+ * The sketch keeps a hierarchy of compactors: level h holds values that each stand for 2^h
+ * of the original values. When a level fills up, it is sorted and every other value is promoted
+ * to the next level. The top level holds up to k values, and each level below holds 2/3 as many,
+ * so the sketch never keeps more than about 3k values no matter how many are added. <br>
+ *
+ * The rank of a quantile returned by the sketch is within roughly 1.7/k of the requested rank
+ * (e.g. 1% for k = 200), with high probability. Compaction uses a fixed pseudo-random sequence,
+ * so the same input always produces the same sketch.
+ */
+public class QuantileSketch {
+	/**
+	 * the accuracy parameter used when none is specified
+	 */
+	public static final int DEFAULT_K = 200;
+
+	private static final double DECAY = 2.0 / 3.0;
+	private static final int MIN_CAPACITY = 2;
+
+	private final int k;
+	private double[][] levels = new double[0][];
+	private int[] sizes = new int[0];
+	private long count = 0;
+	private double min = Double.NaN;
+	private double max = Double.NaN;
+	private long random = 0x9E3779B97F4A7C15L;
+
+	/**
+	 * Creates an empty sketch
+	 * @param k the accuracy parameter (at least 8); memory grows linearly and rank error
+	 * 			shrinks linearly with k
+	 */
+	public QuantileSketch(int k){
+		if (k < 8) throw new IllegalArgumentException("k must be at least 8, was " + k);
+		this.k = k;
+		addLevel();
+	}
+
+	/**
+	 * Creates an empty sketch with the default accuracy parameter
+	 */
+	public QuantileSketch(){
+		this(DEFAULT_K);
+	}
+
+	/**
+	 * @return the accuracy parameter of this sketch
+	 */
+	public int k() { return k; }
+
+	/**
+	 * @return the number of values summarized by the sketch
+	 */
+	public long count() { return count; }
+
+	/**
+	 * Adds a value to the sketch. NaN values are ignored.
+	 * @param value the value
+	 */
+	public void add(double value){
+		if (Double.isNaN(value)) return;
+		append(0, value);
+		count++;
+		updateBounds(value, value);
+		compress();
+	}
+
+	/**
+	 * Adds all the values summarized by other to this sketch
+	 * PRECONDITION: other.k() == k()
+	 * @param other the sketch to merge (left unchanged)
+	 */
+	public void merge(QuantileSketch other){
+		if (other.k != k) throw new IllegalArgumentException("cannot merge sketches with k = " + k + " and k = " + other.k);
+		if (other.count == 0) return;
+		for (int h = 0; h < other.levels.length; h++){
+			while (levels.length <= h) addLevel();
+			for (int i = 0; i < other.sizes[h]; i++){
+				append(h, other.levels[h][i]);
+			}
+		}
+		count += other.count;
+		updateBounds(other.min, other.max);
+		compress();
+	}
+
+	/**
+	 * @param q the quantile to find, in [0, 1]
+	 * @return an approximation of the value at quantile q, or NaN if the sketch is empty.
+	 * 		The minimum (q = 0) and maximum (q = 1) are exact.
+	 */
+	public double quantile(double q){
+		if (count == 0) return Double.NaN;
+		if (q <= 0) return min;
+		if (q >= 1) return max;
+		// target rank, following the Apache Commons Math Percentile convention of pos = q * (n + 1)
+		double rank = Math.max(1, Math.min(count, q * (count + 1)));
+
+		// merge the sorted levels, walking up the cumulative weight
+		double[][] sorted = new double[levels.length][];
+		int[] heads = new int[levels.length];
+		for (int h = 0; h < levels.length; h++){
+			sorted[h] = Arrays.copyOf(levels[h], sizes[h]);
+			Arrays.sort(sorted[h]);
+		}
+		long weight = 0;
+		while (true){
+			int best = -1;
+			for (int h = 0; h < sorted.length; h++){
+				if (heads[h] < sorted[h].length && (best == -1 || sorted[h][heads[h]] < sorted[best][heads[best]]))
+					best = h;
+			}
+			if (best == -1) return max;
+			double value = sorted[best][heads[best]++];
+			weight += 1L << best;
+			if (weight >= rank) return value;
+		}
+	}
+
+	/**
+	 * @return the number of values currently retained by the sketch
+	 */
+	public int retained(){
+		int total = 0;
+		for (int size : sizes) total += size;
+		return total;
+	}
+
+	private void updateBounds(double lo, double hi){
+		if (Double.isNaN(min) || lo < min) min = lo;
+		if (Double.isNaN(max) || hi > max) max = hi;
+	}
+
+	private int capacity(int level){
+		int depth = levels.length - 1 - level;
+		return Math.max(MIN_CAPACITY, (int) Math.ceil(k * Math.pow(DECAY, depth)));
+	}
+
+	private void addLevel(){
+		int n = levels.length;
+		levels = Arrays.copyOf(levels, n + 1);
+		sizes = Arrays.copyOf(sizes, n + 1);
+		levels[n] = new double[MIN_CAPACITY];
+	}
+
+	private void append(int level, double value){
+		double[] buffer = levels[level];
+		if (sizes[level] == buffer.length) {
+			buffer = Arrays.copyOf(buffer, 2 * buffer.length);
+			levels[level] = buffer;
+		}
+		buffer[sizes[level]++] = value;
+	}
+
+	/**
+	 * Compacts every level that has reached its capacity, from the bottom up
+	 */
+	private void compress(){
+		for (int h = 0; h < levels.length; h++){
+			if (sizes[h] >= capacity(h)){
+				if (h + 1 == levels.length) addLevel();
+				compact(h);
+			}
+		}
+	}
+
+	/**
+	 * Sorts the given level and promotes every other value (starting at a random offset)
+	 * to the next level. With an odd number of values, the largest one stays behind.
+	 */
+	private void compact(int level){
+		double[] buffer = levels[level];
+		int size = sizes[level];
+		Arrays.sort(buffer, 0, size);
+		int pairs = size / 2;
+		int offset = nextBit();
+		for (int i = 0; i < pairs; i++){
+			append(level + 1, buffer[2 * i + offset]);
+		}
+		if (size % 2 == 1){
+			buffer[0] = buffer[size - 1];
+			sizes[level] = 1;
+		} else {
+			sizes[level] = 0;
+		}
+	}
+
+	/**
+	 * @return the next bit of a xorshift pseudo-random sequence
+	 */
+	private int nextBit(){
+		random ^= random << 13;
+		random ^= random >>> 7;
+		random ^= random << 17;
+		return (int) (random >>> 63);
+	}
+
+}
@@ -0,0 +1,19 @@
+package ca.usask.abm;
+
+/**
+ * A single stochastic replication of a model, run by {@link Replications}
+ *
+ * @param <Model> the main model type
+ * @param <Event> the most general event type
+ */
+public interface Replication<Model, Event> {
+	/**
+	 * Creates a fresh model instance and its own ABMStats (with the same collectors, in the same
+	 * order and with the same specs as every other replication), and runs the model to the end. 
+	 * Called concurrently for different replications.
+	 * @param index the index of the replication, in [0, number of replications) (e.g. to seed its random numbers)
+	 * @return the statistics collected during the run
+	 * @throws Exception if the run fails
+	 */
+	ABMStats<Model, Event> run(int index) throws Exception;
+}
@@ -0,0 +1,104 @@
+package ca.usask.abm;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+
+/**
+ * The statistics of every collector of a model, merged over a number of replications 
+ * (see {@link Replications} and {@link MergedStatistics})
+ */
+public class ReplicationResults {
+	private LinkedHashMap<String, MergedStatistics> merged = null;
+	private int replications = 0;
+	private double confidenceLevel = 0.95;
+
+	/**
+	 * Merges the statistics of one more replication; the first replication fixes the layout 
+	 * (collectors, partitions and statistics) that every other replication must have
+	 * @param stats the statistics of the replication
+	 * @throws IllegalArgumentException if the layout differs from the first replication's
+	 * @throws IOException if a spill file cannot be read
+	 */
+	public void merge(ABMStats<?, ?> stats) throws IOException {
+		Map<String, StatisticsCollector<?>> collectors = stats.collectors();
+		LinkedHashMap<String, MergedStatistics> m;
+		synchronized (this){
+			if (merged == null){
+				merged = new LinkedHashMap<String, MergedStatistics>();
+				for (Map.Entry<String, StatisticsCollector<?>> c : collectors.entrySet()){
+					MergedStatistics collector = new MergedStatistics(c.getValue());
+					collector.setConfidenceLevel(confidenceLevel);
+					merged.put(c.getKey(), collector);
+				}
+			} else if (!new ArrayList<String>(merged.keySet()).equals(new ArrayList<String>(collectors.keySet()))){
+				throw new IllegalArgumentException("the collectors " + collectors.keySet() 
+						+ " differ from the other replications' " + merged.keySet());
+			}
+			m = merged;
+			replications++;
+		}
+		// collectors are merged independently, so replications finishing together can merge in parallel
+		for (Map.Entry<String, StatisticsCollector<?>> c : collectors.entrySet()){
+			try {
+				m.get(c.getKey()).merge(c.getValue());
+			} catch (IllegalArgumentException e){
+				throw new IllegalArgumentException("collector " + c.getKey() + ": " + e.getMessage(), e);
+			}
+		}
+	}
+
+	/**
+	 * @return the number of replications merged so far
+	 */
+	public synchronized int replications() { return replications; }
+
+	/**
+	 * @return the names of the collectors, in the order they were added to ABMStats
+	 */
+	public synchronized List<String> names() {
+		return merged == null ? new ArrayList<String>() : new ArrayList<String>(merged.keySet());
+	}
+
+	/**
+	 * @param name the name of a collector
+	 * @return its merged statistics, or null if there is no such collector
+	 */
+	public synchronized MergedStatistics get(String name) {
+		return merged == null ? null : merged.get(name);
+	}
+
+	/**
+	 * @param level the confidence level of the intervals of every collector, in (0, 1) (0.95 by default), 
+	 * 			including the collectors of replications merged later
+	 */
+	public synchronized void setConfidenceLevel(double level) {
+		if (!(level > 0 && level < 1)) throw new IllegalArgumentException("confidence level must be in (0, 1), was " + level);
+		confidenceLevel = level;
+		if (merged == null) return;
+		for (MergedStatistics m : merged.values()) m.setConfidenceLevel(level);
+	}
+
+	/**
+	 * Export the merged statistics of every collector into an excel spreadsheet at the given path, 
+	 * one sheet per collector
+	 * @param filepath the path at which to generate the spreadsheet
+	 */
+	public synchronized void exportToSpreadsheet(String filepath) {
+		ABMStats.writeWorkbook(new XSSFWorkbook(), merged, filepath);
+	}
+
+	/**
+	 * Export the merged statistics of every collector as plain-text tables into the given directory, 
+	 * one file per collector named after it (e.g. AvgsByYear.csv)
+	 * @param directory the directory in which to generate the files (created if needed)
+	 * @param format the format of the files
+	 */
+	public synchronized void exportTo(String directory, ExportFormat format) {
+		ABMStats.exportTables(merged, directory, format);
+	}
+}
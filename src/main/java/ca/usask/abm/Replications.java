@@ -0,0 +1,88 @@
+package ca.usask.abm;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Runs a number of stochastic replications of a model in parallel, each with its own ABMStats,
+ * and merges their statistics cell by cell (see {@link ReplicationResults}). <br>
+ * 
+ * Each replication is merged as soon as it finishes and then dropped, so only the replications
+ * in progress (at most one per thread) and the merged statistics are ever in memory. Replications
+ * are merged in the order they finish, so the last bits of the merged moments may vary from one 
+ * run to the next.
+ *
+ * @param <Model> the main model type
+ * @param <Event> the most general event type
+ */
+public class Replications<Model, Event> {
+	private final Replication<Model, Event> replication;
+
+	/**
+	 * @param replication runs one replication of the model
+	 */
+	public Replications(Replication<Model, Event> replication) {
+		this.replication = replication;
+	}
+
+	/**
+	 * Runs the replications 0 .. count - 1 on a pool of the given number of threads
+	 * @param count the number of replications
+	 * @param threads the number of replications run at once
+	 * @return the merged statistics
+	 * @throws ExecutionException if a replication failed (the remaining ones are cancelled)
+	 * @throws InterruptedException if interrupted while waiting for the replications
+	 */
+	public ReplicationResults run(int count, int threads) throws ExecutionException, InterruptedException {
+		if (threads < 1) throw new IllegalArgumentException("threads must be positive, was " + threads);
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		try {
+			return run(count, pool);
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	/**
+	 * Runs the replications 0 .. count - 1 on the given pool (whose size bounds the number of 
+	 * replications in memory at once)
+	 * @param count the number of replications
+	 * @param pool the pool
+	 * @return the merged statistics
+	 * @throws ExecutionException if a replication failed (the remaining ones are cancelled)
+	 * @throws InterruptedException if interrupted while waiting for the replications
+	 */
+	public ReplicationResults run(int count, ExecutorService pool) throws ExecutionException, InterruptedException {
+		final ReplicationResults results = new ReplicationResults();
+		CompletionService<Void> done = new ExecutorCompletionService<Void>(pool);
+		List<Future<Void>> futures = new ArrayList<Future<Void>>();
+		for (int i = 0; i < count; i++){
+			final int index = i;
+			futures.add(done.submit(new Callable<Void>(){
+				public Void call() throws Exception {
+					results.merge(replication.run(index));
+					return null;
+				}
+			}));
+		}
+		boolean finished = false;
+		try {
+			for (int i = 0; i < count; i++){
+				done.take().get();
+			}
+			finished = true;
+		} finally {
+			if (!finished){
+				for (Future<Void> future : futures) future.cancel(true);
+			}
+		}
+		return results;
+	}
+}
@@ -0,0 +1,139 @@
+package ca.usask.abm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.RandomAccess;
+
+/**
+ * How an {@link AgentStatisticsCollector} draws a random sample of the agents at every update,
+ * instead of processing all of them (see {@link AgentStatisticsCollector#setSampling}). <br>
+ *
+ * When the agents are given as a random-access list, drawing a sample only costs time in
+ * proportion to the size of the sample; otherwise, the agents are still iterated over, but only
+ * the sampled ones are classified and accumulated. <br>
+ *
+ * A sampling holds the state of its random number generator, so each collector should have
+ * its own; runs with the same seeds and the same agents draw the same samples.
+ */
+public abstract class Sampling {
+	final Random random;
+
+	/**
+	 * @param seed the seed of the random number generator
+	 */
+	Sampling(long seed){
+		this.random = new Random(seed);
+	}
+
+	/**
+	 * Includes each agent independently with the given probability; the expected sample size
+	 * is proportional to the population
+	 * @param probability the probability of including an agent, in (0, 1]
+	 * @param seed the seed of the random number generator
+	 * @return the sampling
+	 */
+	public static Sampling bernoulli(final double probability, long seed){
+		if (!(probability > 0 && probability <= 1))
+			throw new IllegalArgumentException("probability must be in (0, 1], was " + probability);
+		return new Sampling(seed){
+			@Override
+			<A> double sample(Iterable<A> agents, List<A> out) {
+				if (probability == 1){
+					for (A agent : agents) out.add(agent);
+					return 1;
+				}
+				double logq = Math.log(1 - probability);
+				if (agents instanceof List && agents instanceof RandomAccess){
+					List<A> list = (List<A>) agents;
+					for (long i = skip(logq); i < list.size(); i += 1 + skip(logq)) out.add(list.get((int) i));
+				} else {
+					long next = skip(logq);
+					for (A agent : agents){
+						if (next-- == 0){
+							out.add(agent);
+							next = skip(logq);
+						}
+					}
+				}
+				return 1 / probability;
+			}
+		};
+	}
+
+	/**
+	 * Includes a fixed number of agents, chosen uniformly among all the agents (or every agent,
+	 * if there are fewer of them); the sample size does not depend on the population
+	 * @param size the number of agents in the sample
+	 * @param seed the seed of the random number generator
+	 * @return the sampling
+	 */
+	public static Sampling reservoir(final int size, long seed){
+		if (size < 1) throw new IllegalArgumentException("size must be positive, was " + size);
+		return new Sampling(seed){
+			@Override
+			<A> double sample(Iterable<A> agents, List<A> out) {
+				if (agents instanceof List && agents instanceof RandomAccess){
+					List<A> list = (List<A>) agents;
+					int n = list.size();
+					if (n <= size){
+						out.addAll(list);
+						return 1;
+					}
+					// Floyd's algorithm: size distinct indices, kept in population order
+					HashSet<Integer> chosen = new HashSet<Integer>();
+					for (int j = n - size; j < n; j++){
+						int t = random.nextInt(j + 1);
+						if (!chosen.add(t)) chosen.add(j);
+					}
+					int[] indices = new int[size];
+					int i = 0;
+					for (int index : chosen) indices[i++] = index;
+					Arrays.sort(indices);
+					for (int index : indices) out.add(list.get(index));
+					return (double) n / size;
+				}
+				// Algorithm R, over a single pass of the agents
+				ArrayList<A> reservoir = new ArrayList<A>(size);
+				long n = 0;
+				for (A agent : agents){
+					if (n < size){
+						reservoir.add(agent);
+					} else {
+						long j = (long) (random.nextDouble() * (n + 1));
+						if (j < size) reservoir.set((int) j, agent);
+					}
+					n++;
+				}
+				out.addAll(reservoir);
+				return n <= size ? 1 : (double) n / size;
+			}
+		};
+	}
+
+	/**
+	 * Draws a sample of the agents
+	 * @param agents the population
+	 * @param out receives the sampled agents
+	 * @param <A> the agent type
+	 * @return the weight of each sampled agent, i.e. the inverse of its probability of inclusion
+	 */
+	abstract <A> double sample(Iterable<A> agents, List<A> out);
+
+	/**
+	 * @return the generator used for drawing samples, also used to split them into random groups
+	 */
+	Random random(){
+		return random;
+	}
+
+	/**
+	 * @return the number of agents to skip before the next included one, for an inclusion
+	 * 		probability p such that logq = log(1 - p) (a geometric variate)
+	 */
+	long skip(double logq){
+		return (long) Math.floor(Math.log(1 - random.nextDouble()) / logq);
+	}
+}
@@ -0,0 +1,44 @@
+package ca.usask.abm;
+
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+
+/**
+ * Writes a table into an Excel sheet, starting at the first row
+ */
+public class SheetTableWriter implements TableWriter {
+	private final Sheet sheet;
+	private Row row = null;
+	private int rowIndex = 0;
+	private int col = 0;
+
+	/**
+	 * @param sheet a blank Excel sheet
+	 */
+	public SheetTableWriter(Sheet sheet) {
+		this.sheet = sheet;
+	}
+
+	private Row row(){
+		if (row == null) row = sheet.createRow(rowIndex);
+		return row;
+	}
+
+	@Override
+	public void label(String text) {
+		row().createCell(col++).setCellValue(text);
+	}
+
+	@Override
+	public void value(double value) {
+		row().createCell(col++).setCellValue(value);
+	}
+
+	@Override
+	public void endRow() {
+		row();
+		row = null;
+		rowIndex++;
+		col = 0;
+	}
+}
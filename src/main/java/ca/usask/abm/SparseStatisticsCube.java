@@ -0,0 +1,139 @@
+package ca.usask.abm;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A statistics cube that only stores non-empty cells, for cubes whose number of cells
+ * (the product of all partition dimensions) is much larger than the number of cells
+ * that are actually filled. <br>
+ *
+ * Cells are found through an open-addressing hash table from cell index (a long) to
+ * a slot; the statistics of slot i are stored at [i * statistics, (i + 1) * statistics)
+ * of a single double[]. Cells are only removed all at once, by clear().
+ */
+public class SparseStatisticsCube extends StatisticsCube {
+	private static final long FREE = -1;
+	private static final int INITIAL_CAPACITY = 64; // a power of two
+
+	private long[] keys;    // cell index in each bucket, or FREE
+	private int[] slots;    // slot of the cell in each bucket
+	private double[] values;
+	private int size = 0;
+
+	/**
+	 * Creates a new cube in which every cell is empty
+	 * @param ds the dimensions (positive integers) of the cube
+	 * @param initial the statistic values of empty cells
+	 */
+	public SparseStatisticsCube(List<Integer> ds, List<Double> initial){
+		super(ds, initial);
+		allocate(INITIAL_CAPACITY);
+		values = new double[INITIAL_CAPACITY / 2 * statistics];
+	}
+
+	/**
+	 * @return the number of non-empty cells
+	 */
+	public int size() { return size; }
+
+	@Override
+	public double get(long cell, int statistic) {
+		int slot = find(cell);
+		if (slot < 0) return initialValues[statistic];
+		return values[slot * statistics + statistic];
+	}
+
+	@Override
+	public void set(long cell, int statistic, double value) {
+		int slot = find(cell);
+		if (slot < 0) slot = insert(cell);
+		values[slot * statistics + statistic] = value;
+	}
+
+	@Override
+	public boolean isEmpty(long cell) { return find(cell) < 0; }
+
+	@Override
+	public void clear() {
+		allocate(INITIAL_CAPACITY);
+		values = new double[INITIAL_CAPACITY / 2 * statistics];
+		size = 0;
+	}
+
+	@Override
+	public long[] nonEmptyCells() {
+		long[] cells = new long[size];
+		int n = 0;
+		for (long key : keys){
+			if (key != FREE) cells[n++] = key;
+		}
+		Arrays.sort(cells);
+		return cells;
+	}
+
+	@Override
+	public long memoryBytes() { return 12L * keys.length + 8L * values.length; }
+
+	/**
+	 * @return the slot of the given cell, or -1 if the cell is empty
+	 */
+	private int find(long cell){
+		int mask = keys.length - 1;
+		for (int b = bucket(cell, mask); ; b = (b + 1) & mask){
+			if (keys[b] == cell) return slots[b];
+			if (keys[b] == FREE) return -1;
+		}
+	}
+
+	/**
+	 * Adds a cell holding the initial statistics
+	 * @return its slot
+	 */
+	private int insert(long cell){
+		if (2 * (size + 1) > keys.length) rehash(2 * keys.length);
+		int slot = size++;
+		if ((slot + 1) * statistics > values.length)
+			values = Arrays.copyOf(values, Math.max(2 * values.length, (slot + 1) * statistics));
+		System.arraycopy(initialValues, 0, values, slot * statistics, statistics);
+		put(cell, slot);
+		return slot;
+	}
+
+	private void put(long cell, int slot){
+		int mask = keys.length - 1;
+		int b = bucket(cell, mask);
+		while (keys[b] != FREE) b = (b + 1) & mask;
+		keys[b] = cell;
+		slots[b] = slot;
+	}
+
+	private void allocate(int capacity){
+		keys = new long[capacity];
+		Arrays.fill(keys, FREE);
+		slots = new int[capacity];
+	}
+
+	private void rehash(int capacity){
+		long[] oldKeys = keys;
+		int[] oldSlots = slots;
+		allocate(capacity);
+		for (int b = 0; b < oldKeys.length; b++){
+			if (oldKeys[b] != FREE) put(oldKeys[b], oldSlots[b]);
+		}
+	}
+
+	/**
+	 * @return the home bucket of a cell (the finalizer of MurmurHash3, so that
+	 * 		neighbouring cells don't cluster)
+	 */
+	private static int bucket(long cell, int mask){
+		long h = cell;
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return (int) h & mask;
+	}
+}
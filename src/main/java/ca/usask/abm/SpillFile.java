@@ -0,0 +1,221 @@
+package ca.usask.abm;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * An append-only file of finished statistics cells. <br>
+ * 
+ * Each record is a cell index (a long) followed by the statistics of the cell (doubles), in big-endian 
+ * order. Every append is a run of records in increasing cell order, so the file can be read back in 
+ * cell order by merging the runs (see {@link #merge()}), with one small buffer per run.
+ */
+final class SpillFile {
+	private static final int BUFFER_SIZE = 1 << 16;
+	private static final int RUN_BUFFER_SIZE = 1 << 12;
+
+	private final File file;
+	private final FileChannel channel;
+	private final int statistics;
+	private final int recordSize;
+	private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+	private long[] runStarts = new long[16];
+	private int runs = 0;
+	private long size = 0; // the number of bytes written
+
+	/**
+	 * Creates (or truncates) the given file
+	 * @param file the file
+	 * @param statistics the number of statistics of each cell
+	 * @throws IOException if the file cannot be opened
+	 */
+	SpillFile(File file, int statistics) throws IOException {
+		this.file = file;
+		this.statistics = statistics;
+		this.recordSize = 8 + 8 * statistics;
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		raf.setLength(0);
+		this.channel = raf.getChannel();
+	}
+
+	/**
+	 * @return the file written to
+	 */
+	File file() { return file; }
+
+	/**
+	 * Appends the given cells of the cube as a single run, and writes it to the file
+	 * @param cells the cells, in increasing order
+	 * @param cube the cube holding their statistics
+	 * @throws IOException if writing fails
+	 */
+	void append(long[] cells, StatisticsCube cube) throws IOException {
+		if (cells.length == 0) return;
+		if (runs == runStarts.length) runStarts = Arrays.copyOf(runStarts, 2 * runs);
+		runStarts[runs++] = size;
+		for (long cell : cells){
+			if (buffer.remaining() < recordSize) drain();
+			buffer.putLong(cell);
+			for (int s = 0; s < statistics; s++) buffer.putDouble(cube.get(cell, s));
+		}
+		drain();
+	}
+
+	private void drain() throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining()) size += channel.write(buffer, size);
+		buffer.clear();
+	}
+
+	/**
+	 * Closes the file
+	 * @throws IOException if closing fails
+	 */
+	void close() throws IOException {
+		channel.close();
+	}
+
+	/**
+	 * @return a reader of every record appended so far, in cell order
+	 */
+	Merger merge() {
+		return new Merger();
+	}
+
+	/**
+	 * Reads the records of all runs in cell order (a k-way merge, with a min-heap of runs 
+	 * keyed by their next cell). Usage: while (merger.next()) { merger.cell(); merger.values(); } <br>
+	 * 
+	 * A cell written by several runs (e.g. a time partition processed again after an export in 
+	 * the middle of it) is read once, with the values of its latest run, just as a cell of the cube 
+	 * holds the values last set.
+	 */
+	final class Merger {
+		private final long[] positions;   // position of the next unread byte of each run
+		private final long[] ends;        // end of each run
+		private final ByteBuffer[] buffers;
+		private final long[] heapCells;   // next cell of each run in the heap
+		private final int[] heapRuns;
+		private int heapSize = 0;
+		private boolean started = false;
+		private long cell = -1;
+		private final double[] values = new double[statistics];
+
+		Merger() {
+			positions = new long[runs];
+			ends = new long[runs];
+			buffers = new ByteBuffer[runs];
+			heapCells = new long[runs];
+			heapRuns = new int[runs];
+			for (int r = 0; r < runs; r++){
+				positions[r] = runStarts[r];
+				ends[r] = r + 1 < runs ? runStarts[r + 1] : size;
+				buffers[r] = ByteBuffer.allocate(Math.max(recordSize, RUN_BUFFER_SIZE / recordSize * recordSize));
+				buffers[r].flip(); // empty
+			}
+		}
+
+		/**
+		 * Moves to the next record
+		 * @return false if there are no more records
+		 * @throws IOException if reading fails
+		 */
+		boolean next() throws IOException {
+			if (!started){
+				// first call: position every run on its first record
+				started = true;
+				for (int r = 0; r < positions.length; r++){
+					if (fill(r)) push(buffers[r].getLong(buffers[r].position()), r);
+				}
+			}
+			if (heapSize == 0) return false;
+			cell = heapCells[0];
+			int latest = -1;
+			while (heapSize > 0 && heapCells[0] == cell){
+				int r = heapRuns[0];
+				ByteBuffer b = buffers[r];
+				b.getLong();
+				if (r > latest){
+					latest = r;
+					for (int s = 0; s < statistics; s++) values[s] = b.getDouble();
+				} else {
+					b.position(b.position() + 8 * statistics); // superseded by a later run
+				}
+				if (fill(r)){
+					heapCells[0] = b.getLong(b.position());
+				} else {
+					heapSize--;
+					heapCells[0] = heapCells[heapSize];
+					heapRuns[0] = heapRuns[heapSize];
+				}
+				siftDown();
+			}
+			return true;
+		}
+
+		/**
+		 * @return the cell index of the current record
+		 */
+		long cell() { return cell; }
+
+		/**
+		 * @return the statistics of the current record (overwritten by next())
+		 */
+		double[] values() { return values; }
+
+		/**
+		 * Makes sure the buffer of the given run holds a whole record
+		 * @return false if the run is exhausted
+		 */
+		private boolean fill(int r) throws IOException {
+			ByteBuffer b = buffers[r];
+			if (b.remaining() >= recordSize) return true;
+			if (positions[r] >= ends[r]) return false;
+			b.compact();
+			int limit = (int) Math.min(b.remaining(), ends[r] - positions[r]);
+			b.limit(b.position() + limit);
+			while (b.hasRemaining()){
+				int n = channel.read(b, positions[r]);
+				if (n < 0) throw new IOException("unexpected end of " + file);
+				positions[r] += n;
+			}
+			b.flip();
+			return b.remaining() >= recordSize;
+		}
+
+		private void push(long key, int run){
+			int i = heapSize++;
+			while (i > 0){
+				int parent = (i - 1) >>> 1;
+				if (heapCells[parent] <= key) break;
+				heapCells[i] = heapCells[parent];
+				heapRuns[i] = heapRuns[parent];
+				i = parent;
+			}
+			heapCells[i] = key;
+			heapRuns[i] = run;
+		}
+
+		private void siftDown(){
+			if (heapSize == 0) return;
+			long key = heapCells[0];
+			int run = heapRuns[0];
+			int i = 0;
+			while (true){
+				int child = 2 * i + 1;
+				if (child >= heapSize) break;
+				if (child + 1 < heapSize && heapCells[child + 1] < heapCells[child]) child++;
+				if (heapCells[child] >= key) break;
+				heapCells[i] = heapCells[child];
+				heapRuns[i] = heapRuns[child];
+				i = child;
+			}
+			heapCells[i] = key;
+			heapRuns[i] = run;
+		}
+	}
+}
@@ -15,7 +15,45 @@ public abstract class Statistic<T> implements Function<Collection<T>, Double> {
 	 * @return the statistic
 	 */
 	public abstract Double apply(Collection<T> data);
-	
+
+	/**
+	 * @return true if the statistic grows in proportion to the size of the collection (e.g. counts and sums), 
+	 * 		so that over a random sample it must be scaled up to estimate the statistic over the whole 
+	 * 		population (see {@link Sampling}); false by default
+	 */
+	public boolean isExtensive(){
+		return false;
+	}
+
+	/**
+	 * Creates an accumulator that computes this statistic incrementally. <br>
+	 *
+	 * By default, the accumulator buffers every value and calls apply() on the buffer
+	 * when the result is requested; statistics that can do better (see {@link AccumulatingStatistic})
+	 * override this method.
+	 * @return a new, empty accumulator
+	 */
+	public Accumulator<T> createAccumulator(){
+		return new BufferingAccumulator();
+	}
+
+	/**
+	 * The default accumulator: keeps every value, then applies the statistic to all of them
+	 */
+	private class BufferingAccumulator extends Accumulator<T> {
+		private ArrayList<T> values = new ArrayList<T>();
+
+		@Override
+		public void add(T value) { values.add(value); }
+
+		@SuppressWarnings("unchecked")
+		@Override
+		public void merge(Accumulator<T> other) { values.addAll(((BufferingAccumulator) other).values); }
+
+		@Override
+		public double result() { return apply(values); }
+	}
+
 	/**
 	 * Creates a statistic over values of type U by applying an accessor to extract a
 	 * values of type T, then applying a statistic over T on the result.
@@ -23,17 +61,39 @@ public abstract class Statistic<T> implements Function<Collection<T>, Double> {
 	 * @param accessor the accessor function
 	 * @return the resulting statistic
 	 */
-	public <U> Statistic<U> on(final Function<U, T> accessor){ 
+	public <U> Statistic<U> on(final Function<U, T> accessor){
 		final Statistic<T> outer = this;
-		return new Statistic<U>(){
+		return new AccumulatingStatistic<U>(){
 			@Override
-			public Double apply(Collection<U> data){
-				ArrayList<T> ts = new ArrayList<T>(data.size());
-				for (U datum : data) ts.add(accessor.apply(datum));
-				return outer.apply(ts);
+			public Accumulator<U> createAccumulator(){
+				return new MappedAccumulator<U, T>(accessor, outer.createAccumulator());
 			}
+			@Override
+			public boolean isExtensive(){ return outer.isExtensive(); }
 		};
 	}
 
+	/**
+	 * An accumulator over U that feeds each value through an accessor into an accumulator over T
+	 */
+	private static class MappedAccumulator<U, T> extends Accumulator<U> {
+		private final Function<U, T> accessor;
+		private final Accumulator<T> inner;
+
+		MappedAccumulator(Function<U, T> accessor, Accumulator<T> inner){
+			this.accessor = accessor;
+			this.inner = inner;
+		}
+
+		@Override
+		public void add(U value) { inner.add(accessor.apply(value)); }
+
+		@SuppressWarnings("unchecked")
+		@Override
+		public void merge(Accumulator<U> other) { inner.merge(((MappedAccumulator<U, T>) other).inner); }
+
+		@Override
+		public double result() { return inner.result(); }
+	}
 
 }
@@ -1,11 +1,12 @@
 package ca.usask.abm;
 
-import java.util.Collection;
+import java.util.Arrays;
+import java.util.List;
 
 import org.apache.commons.math3.stat.descriptive.rank.Percentile;
 
 /**
- * Contains only static methods that 
+ * Contains only static methods that
  * create / combine a set of common statistics
  * @author isv452
  *
@@ -14,106 +15,368 @@ public class Statistics {
    /**
     * @return a statistic that simply counts the number of elements in the collection
     */
-   public static <T> Statistic<T> count() { 
-	   return new Statistic<T>(){
+   public static <T> Statistic<T> count() {
+	   return new AccumulatingStatistic<T>(){
 		   @Override
-		   public Double apply(Collection<T> data) { return (double) data.size(); }
+		   public Accumulator<T> createAccumulator() {
+			   return new CountAccumulator<T>(){
+				   @Override
+				   public void add(T value) { count++; }
+			   };
+		   }
+		   @Override
+		   public boolean isExtensive() { return true; }
 	   };
    }
-   
-   
+
+
    /**
     * @param predicate a predicate
     * @return a statistic that counts the number of elements in the collection satisfying the given predicate
     */
-   public static <T> Statistic<T> count(final Function<T, Boolean> predicate) { 
-	   return new Statistic<T>(){
+   public static <T> Statistic<T> count(final Function<T, Boolean> predicate) {
+	   return new AccumulatingStatistic<T>(){
 		   @Override
-		   public Double apply(Collection<T> data) { 
-			   int count = 0;
-			   for (T t : data) {
-				   if (predicate.apply(t)) count++;
-			   }
-			   return (double) count;
+		   public Accumulator<T> createAccumulator() {
+			   return new CountAccumulator<T>(){
+				   @Override
+				   public void add(T value) { if (predicate.apply(value)) count++; }
+			   };
 		   }
+		   @Override
+		   public boolean isExtensive() { return true; }
 	   };
    }
-   
+
    /**
     * @param predicate a predicate
     * @return a statistic that counts the number of elements in the collection NOT satisfying the given predicate
     */
-   public static <T> Statistic<T> countNot(final Function<T, Boolean> predicate) { 
-	   return new Statistic<T>(){
+   public static <T> Statistic<T> countNot(final Function<T, Boolean> predicate) {
+	   return new AccumulatingStatistic<T>(){
 		   @Override
-		   public Double apply(Collection<T> data) { 
-			   int count = 0;
-			   for (T t : data) {
-				   if (! predicate.apply(t)) count++;
-			   }
-			   return (double) count;
+		   public Accumulator<T> createAccumulator() {
+			   return new CountAccumulator<T>(){
+				   @Override
+				   public void add(T value) { if (! predicate.apply(value)) count++; }
+			   };
 		   }
+		   @Override
+		   public boolean isExtensive() { return true; }
 	   };
    }
-   
+
    /**
     * A statistic that computes the sum of all elements in the collection
     */
-   public static Statistic<Double> sum = new Statistic<Double>(){
+   public static DoubleStatistic sum = new DoubleStatistic(){
 
 	@Override
-	public Double apply(Collection<Double> data) {
-		double sum = 0;
-		for (double d : data) sum += d;
-		return sum;
+	public DoubleAccumulator createAccumulator() {
+		return new MomentAccumulator(){
+			@Override
+			public double result() { return sum; }
+		};
 	}
-	   
+
+	@Override
+	public boolean isExtensive() { return true; }
+
    };
-   
+
    /**
     * a statistic that computes the mean of all elements in the collection,
     * or returns 0 if the collection is empty.
     */
-   public static Statistic<Double> mean = new Statistic<Double>() {
-		@Override
-		public Double apply(Collection<Double> data){
-			double sum = 0;
-			int count = 0;
-			for (double d : data) { sum += d; count++; }
-			if (count == 0) return 0.0;
-			return sum / count;
+   public static DoubleStatistic mean = new DoubleStatistic() {
+		@Override
+		public DoubleAccumulator createAccumulator() {
+			return new MomentAccumulator(){
+				@Override
+				public double result() {
+					if (count == 0) return 0.0;
+					return sum / count;
+				}
+			};
+		}
+	};
+
+	/**
+	 * A statistic that computes the sum of the squares of all elements in the collection.
+	 * Together with sum and count, it lets the variance of any union of categories be derived
+	 * from the exported cells (see {@link StatisticsQuery#variance}).
+	 */
+	public static DoubleStatistic sumOfSquares = new DoubleStatistic(){
+		@Override
+		public DoubleAccumulator createAccumulator() {
+			return new DoubleAccumulator(){
+				private double squares = 0;
+
+				@Override
+				public void add(double value) { squares += value * value; }
+
+				@Override
+				public void merge(Accumulator<Double> other) {
+					squares += ((DoubleAccumulator) other).result();
+				}
+
+				@Override
+				public double result() { return squares; }
+			};
+		}
+
+		@Override
+		public boolean isExtensive() { return true; }
+	};
+
+	/**
+	 * a statistic that computes the (bias-corrected) sample variance of all elements in the collection,
+	 * or returns 0 if the collection has fewer than two elements.
+	 */
+	public static DoubleStatistic variance = new DoubleStatistic() {
+		@Override
+		public DoubleAccumulator createAccumulator() {
+			return new VarianceAccumulator();
 		}
 	};
-	
-	
+
 	/**
 	 * A statistic that computes the median of the collection in accordance
 	 * with the Apache Commons Math Percentile class.
 	 */
-	public static Statistic<Double> median = percentile(0.5);
+	public static DoubleStatistic median = percentile(50);
 	/**
 	 * Computes the given percentile of the collection (or NaN if the collection is empty)
-	 * @param percentile the percentile to find
+	 * @param percentile the percentile to find, in (0, 100]
 	 * @return the value at the given percentile (interpolated in accordance with the Apache Commons Math Percentile class)
 	 */
-	public static Statistic<Double> percentile(final double percentile){
-		return new Statistic<Double>(){
-			final Percentile p = new Percentile(percentile);
-			
+	public static DoubleStatistic percentile(final double percentile){
+		return new DoubleStatistic(){
 			@Override
-			public Double apply(Collection<Double> data) {
-				// convert to array
-				double[] d = new double[data.size()];
-				int i = 0;
-				for (double datum : data){
-					d[i] = datum;
-					i++;
-				}
-				// evaluate
-				return p.evaluate(d);
+			public DoubleAccumulator createAccumulator() {
+				return new ValuesAccumulator(){
+					@Override
+					public double result() {
+						return new Percentile(percentile).evaluate(values, 0, size);
+					}
+				};
+			}
+		};
+	}
+
+	/**
+	 * An approximation of the median, computed with a bounded-memory {@link QuantileSketch}
+	 * with the default accuracy parameter.
+	 */
+	public static DoubleStatistic approxMedian = approxPercentile(50, QuantileSketch.DEFAULT_K);
+
+	/**
+	 * Approximates the given percentile of the collection (or NaN if the collection is empty). <br>
+	 * Unlike {@link percentile}, memory use per category is bounded (roughly 3k values), and partial 
+	 * results merge without loss of accuracy. The rank of the result is within about 1.7/k of the 
+	 * requested rank.
+	 * @param percentile the percentile to find, in (0, 100]
+	 * @param k the accuracy parameter of the underlying {@link QuantileSketch}
+	 * @return the approximate value at the given percentile
+	 */
+	public static DoubleStatistic approxPercentile(final double percentile, final int k){
+		return new DoubleStatistic(){
+			@Override
+			public DoubleAccumulator createAccumulator() {
+				return new SketchAccumulator(k){
+					@Override
+					public double result() { return sketch.quantile(percentile / 100); }
+				};
 			}
-			
 		};
 	}
-	
+
+	/**
+	 * Computes the outputs of a batch statistic from the sorted values of a collection
+	 */
+	public interface SortedValuesFunction {
+		/**
+		 * @param sorted the values, in increasing order, in [0, size) (not to be modified)
+		 * @param size the number of values
+		 * @param sum the sum of the values, in the order they were added (the same as {@link Statistics#sum})
+		 * @param out receives the value of each output
+		 */
+		void evaluate(double[] sorted, int size, double sum, double[] out);
+	}
+
+	/**
+	 * Creates a batch statistic whose outputs are all derived from a single sorted copy of 
+	 * the values of a collection (e.g. several percentiles, or shares of the total)
+	 * @param names the name of each output
+	 * @param f computes the outputs
+	 * @return the batch statistic
+	 */
+	public static DoubleBatchStatistic sortedValues(List<String> names, final SortedValuesFunction f){
+		return new DoubleBatchStatistic(names){
+			@Override
+			public DoubleBatchAccumulator createAccumulator() {
+				return new SortedValuesAccumulator(f);
+			}
+		};
+	}
+
+	/**
+	 * Computes a percentile of sorted values, exactly as {@link percentile} would compute it 
+	 * from the unsorted values
+	 * @param sorted the values, in increasing order, in [0, size)
+	 * @param size the number of values
+	 * @param percentile the percentile to find, in (0, 100]
+	 * @return the value at the given percentile, or NaN if there are no values
+	 */
+	public static double percentileOfSorted(double[] sorted, int size, double percentile){
+		if (size == 0) return Double.NaN;
+		if (size == 1) return sorted[0];
+		// the default estimation of the Apache Commons Math Percentile class
+		double pos = percentile * (size + 1) / 100;
+		double fpos = Math.floor(pos);
+		if (pos < 1) return sorted[0];
+		if (pos >= size) return sorted[size - 1];
+		double lower = sorted[(int) fpos - 1];
+		double upper = sorted[(int) fpos];
+		return lower + (pos - fpos) * (upper - lower);
+	}
+
+	/**
+	 * Keeps all the values and their sum, and sorts the values once to compute every output
+	 */
+	private static class SortedValuesAccumulator extends DoubleBatchStatistic.DoubleBatchAccumulator {
+		private final SortedValuesFunction f;
+		private double[] values = new double[16];
+		private int size = 0;
+		private double sum = 0;
+
+		SortedValuesAccumulator(SortedValuesFunction f){ this.f = f; }
+
+		@Override
+		public void add(double value) {
+			if (size == values.length) values = Arrays.copyOf(values, 2 * size);
+			values[size++] = value;
+			sum += value;
+		}
+
+		@Override
+		public void merge(BatchStatistic.BatchAccumulator<Double> other) {
+			SortedValuesAccumulator o = (SortedValuesAccumulator) other;
+			if (size + o.size > values.length)
+				values = Arrays.copyOf(values, Math.max(2 * values.length, size + o.size));
+			System.arraycopy(o.values, 0, values, size, o.size);
+			size += o.size;
+			sum += o.sum;
+		}
+
+		@Override
+		public void results(double[] out) {
+			Arrays.sort(values, 0, size); // the order of the values no longer matters
+			f.evaluate(values, size, sum, out);
+		}
+	}
+
+	/**
+	 * Counts values; subclasses decide which values are counted
+	 */
+	private static abstract class CountAccumulator<T> extends Accumulator<T> {
+		protected long count = 0;
+
+		@SuppressWarnings("unchecked")
+		@Override
+		public void merge(Accumulator<T> other) { count += ((CountAccumulator<T>) other).count; }
+
+		@Override
+		public double result() { return count; }
+	}
+
+	/**
+	 * Keeps the number and the sum of all values; subclasses derive the result
+	 */
+	private static abstract class MomentAccumulator extends DoubleAccumulator {
+		protected long count = 0;
+		protected double sum = 0;
+
+		@Override
+		public void add(double value) { count++; sum += value; }
+
+		@Override
+		public void merge(Accumulator<Double> other) {
+			MomentAccumulator o = (MomentAccumulator) other;
+			count += o.count;
+			sum += o.sum;
+		}
+	}
+
+	/**
+	 * Keeps the number, the mean and the sum of squared deviations from the mean of all values 
+	 * (Welford's algorithm, merged as in Chan et al.), which avoids the cancellation of the 
+	 * sum-of-squares formula
+	 */
+	private static class VarianceAccumulator extends DoubleAccumulator {
+		private long count = 0;
+		private double mean = 0;
+		private double m2 = 0;
+
+		@Override
+		public void add(double value) {
+			count++;
+			double delta = value - mean;
+			mean += delta / count;
+			m2 += delta * (value - mean);
+		}
+
+		@Override
+		public void merge(Accumulator<Double> other) {
+			VarianceAccumulator o = (VarianceAccumulator) other;
+			if (o.count == 0) return;
+			long total = count + o.count;
+			double delta = o.mean - mean;
+			m2 += o.m2 + delta * delta * count * o.count / total;
+			mean += delta * o.count / total;
+			count = total;
+		}
+
+		@Override
+		public double result() { return count < 2 ? 0.0 : m2 / (count - 1); }
+	}
+
+	/**
+	 * Keeps all the values in a growable primitive array; subclasses derive the result
+	 */
+	private static abstract class ValuesAccumulator extends DoubleAccumulator {
+		protected double[] values = new double[16];
+		protected int size = 0;
+
+		@Override
+		public void add(double value) {
+			if (size == values.length) values = Arrays.copyOf(values, 2 * size);
+			values[size++] = value;
+		}
+
+		@Override
+		public void merge(Accumulator<Double> other) {
+			ValuesAccumulator o = (ValuesAccumulator) other;
+			if (size + o.size > values.length)
+				values = Arrays.copyOf(values, Math.max(2 * values.length, size + o.size));
+			System.arraycopy(o.values, 0, values, size, o.size);
+			size += o.size;
+		}
+	}
+
+	/**
+	 * Summarizes all values in a quantile sketch; subclasses derive the result
+	 */
+	private static abstract class SketchAccumulator extends DoubleAccumulator {
+		protected final QuantileSketch sketch;
+
+		SketchAccumulator(int k){ sketch = new QuantileSketch(k); }
+
+		@Override
+		public void add(double value) { sketch.add(value); }
+
+		@Override
+		public void merge(Accumulator<Double> other) { sketch.merge(((SketchAccumulator) other).sketch); }
+	}
+
 }
@@ -1,20 +1,41 @@
 package ca.usask.abm;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.Collection;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
 
-import org.apache.poi.xssf.usermodel.XSSFRow;
-import org.apache.poi.xssf.usermodel.XSSFSheet;
+import org.apache.poi.ss.usermodel.Sheet;
 
 
 
-public abstract class StatisticsCollector<T> implements ExcelSheetExporter {
+public abstract class StatisticsCollector<T> implements ExcelSheetExporter, TableExporter {
+	
+	/**
+	 * the largest number of cells (product of the partition dimensions) stored in a dense cube; 
+	 * larger cubes only store the cells that are actually filled
+	 */
+	public static final long SPARSE_THRESHOLD = 1 << 22;
+	
+	/**
+	 * the number of random groups a sample is split into, to estimate the standard errors of its statistics
+	 */
+	public static final int SAMPLE_GROUPS = 10;
 	
 	protected StatisticsSpec<T> spec;
-	protected MultiDimArray<List<Double>> partitionedStats;
+	protected final CompiledStatisticsSpec<T> compiledSpec;
+	protected StatisticsCube partitionedStats;
+	private boolean exportEmptyCells = true;
+	private SpillFile spill = null;
+	private CollectorMetrics metrics = null;
+	private boolean standardErrors = false;
 	
 
 	/**
@@ -23,53 +44,449 @@ public abstract class StatisticsCollector<T> implements ExcelSheetExporter {
 	public StatisticsCollector(StatisticsSpec<T> spec) {
 		super();
 		this.spec = spec;
-		
-		// statistics results on empty sequence
-		List<Double> result = spec.evalStatisticsOn(Collections.<T> emptyList());
+		this.compiledSpec = spec.compile();
 		
 		// create the n-dimensional statistics array
-		partitionedStats = new MultiDimArray<List<Double>>
-							(spec.partitionDimensions(), result);
+		partitionedStats = StatisticsCube.create(spec.partitionDimensions(), initialValues(), SPARSE_THRESHOLD);
 
 	}
 	
+	/**
+	 * @return the statistics of empty cells: the results of the statistics on an empty sequence, 
+	 * 			each followed by an unknown (NaN) standard error if the collector reports them
+	 */
+	private List<Double> initialValues(){
+		List<Double> results = spec.evalStatisticsOn(Collections.<T> emptyList());
+		if (!standardErrors) return results;
+		List<Double> values = new ArrayList<Double>(2 * results.size());
+		for (double result : results){
+			values.add(result);
+			values.add(Double.NaN);
+		}
+		return values;
+	}
+	
+	/**
+	 * @return the name of each column of statistics: the spec's statistic names, each followed 
+	 * 			by its standard error (e.g. "Count (SE)") if the collector reports them
+	 */
+	public List<String> statisticNames(){
+		List<String> names = spec.statisticNames();
+		if (!standardErrors) return names;
+		List<String> columns = new ArrayList<String>(2 * names.size());
+		for (String name : names){
+			columns.add(name);
+			columns.add(name + " (SE)");
+		}
+		return columns;
+	}
+	
+	/**
+	 * Makes every statistic of the collector be followed by its standard error, for collectors 
+	 * that process samples (see {@link processSample}). Must be called before any object is processed.
+	 * @param standardErrors true to report standard errors
+	 */
+	protected void setStandardErrors(boolean standardErrors){
+		if (this.standardErrors == standardErrors) return;
+		this.standardErrors = standardErrors;
+		try {
+			resetCube();
+		} catch (IOException e) {
+			throw new IllegalStateException("cannot recreate " + spill.file(), e);
+		}
+	}
+	
+	/**
+	 * @return true if every statistic is followed by its standard error
+	 */
+	public boolean hasStandardErrors(){
+		return standardErrors;
+	}
+	
+	/**
+	 * Replaces the cube (and the spill file, if any) with empty ones of the current layout
+	 */
+	private void resetCube() throws IOException {
+		resetCube(spill == null ? null : spill.file());
+	}
+	
+	/**
+	 * Replaces the cube with an empty one of the current layout, and the spill file with the given one
+	 * @param file the spill file (created or truncated), or null to keep every cell in memory
+	 */
+	private void resetCube(File file) throws IOException {
+		if (spill != null) spill.close();
+		spill = null;
+		// the spill records must be as wide as the cube, standard errors included
+		if (file != null) spill = new SpillFile(file, initialValues().size());
+		partitionedStats = emptyCube();
+	}
+	
+	/**
+	 * @return an empty cube of the current layout
+	 */
+	private StatisticsCube emptyCube(){
+		List<Double> initial = initialValues();
+		if (spill == null) return StatisticsCube.create(spec.partitionDimensions(), initial, SPARSE_THRESHOLD);
+		// only the cells of the time partition being processed are ever in memory
+		return new SparseStatisticsCube(spec.partitionDimensions(), initial);
+	}
+	
 
 	/**
      * Processes a given collection of objects into statistics 
      * and places them into the statistics array.
      * 
+     * Each object is folded straight into the accumulators of its category, 
+     * so the objects are only traversed once and never copied.
+     * 
      * Crucially, this will overwrite existing statistics, so 
      * to use this method correctly, it must never be called twice
      * with agents that are in the same category according to the StatisticsSpec
 	 * 
 	 * @param objects the objects to be processed
 	 */
-	protected void processStats(Collection<Timed<T>> objects){
-		// 1. initialize a sparse array of new stats to be added to 
-		// partitionedStats
-	    final HashMap<Integer, List<T>> sparseArray = 
-	    			new HashMap<Integer, List<T>>();
+	protected void processStats(Iterable<Timed<T>> objects){
+		// 1. initialize a sparse array of accumulators for the categories 
+		// that actually occur
+	    final HashMap<Long, List<Accumulator<T>>> sparseArray = 
+	    			new HashMap<Long, List<Accumulator<T>>>();
 	    
-	    // 2. fill the sparse array
+	    // 2. fold every object into the accumulators of its category
+	    CollectorMetrics.Tally tally = newTally();
 	    for (Timed<T> obj : objects){
-	    	List<Integer> ids = spec.evalPartitionsOn(obj);
-	    	if (ids == null) continue; // object not part of stat collection
-	    	int index = partitionedStats.toLinearIndex(ids);
-	    	// add this object to sparse array
-	    	if (sparseArray.containsKey(index))
-	    		sparseArray.get(index).add(obj.getValue());
-	    	else {
-	    		ArrayList<T> list = new ArrayList<T>();
-	    		list.add(obj.getValue());
-	    		sparseArray.put(index, list);
-	    	}
+	    	accumulate(obj, sparseArray, tally);
 	    }
+	    publish(tally);
 	    
-	    // 3. add sparse array to partitionedStats
-	    for (int index : sparseArray.keySet()){
-	    	Collection<T> os = sparseArray.get(index);
-	    	partitionedStats.set(index, spec.evalStatisticsOn(os));
+	    // 3. add the results to partitionedStats
+	    storeResults(sparseArray);
+	}
+	
+	/**
+	 * @return fresh counts for a pass over some objects by a single thread, 
+	 * 			or null if metrics are disabled
+	 */
+	protected CollectorMetrics.Tally newTally(){
+		return metrics == null ? null : new CollectorMetrics.Tally();
+	}
+	
+	/**
+	 * Adds the counts of a pass to the metrics, if they are enabled
+	 * @param tally the counts returned by newTally() and updated by accumulate()
+	 */
+	protected void publish(CollectorMetrics.Tally tally){
+		CollectorMetrics m = metrics;
+		if (tally != null && m != null) m.publish(tally);
+	}
+	
+	/**
+	 * Folds a single object into the accumulators of its category, 
+	 * creating them if this is the first object of the category
+	 * @param obj the object
+	 * @param sparseArray the accumulators of each category seen so far, by linear index
+	 * @param tally the counts of the pass, or null to leave the object out of the metrics
+	 */
+	protected void accumulate(Timed<T> obj, Map<Long, List<Accumulator<T>>> sparseArray, CollectorMetrics.Tally tally){
+		if (tally != null){
+			accumulateMeasured(obj, sparseArray, tally);
+			return;
+		}
+		long index = compiledSpec.cellIndex(obj);
+		if (index == CompiledStatisticsSpec.EXCLUDED) return; // object not part of stat collection
+		addToCell(index, obj, sparseArray);
+	}
+	
+	/**
+	 * Same as accumulate(), recording what happens to the object in the given counts
+	 */
+	private void accumulateMeasured(Timed<T> obj, Map<Long, List<Accumulator<T>>> sparseArray, CollectorMetrics.Tally t){
+		// only time one object in TIMING_INTERVAL, so that most objects cost no clock reads
+		boolean timed = (t.objectsIngested++ & (CollectorMetrics.TIMING_INTERVAL - 1)) == 0;
+		long start = timed ? System.nanoTime() : 0;
+		long index = compiledSpec.classify(obj);
+		long classified = timed ? System.nanoTime() : 0;
+		if (timed) t.classificationNanos += CollectorMetrics.TIMING_INTERVAL * (classified - start);
+		if (index == CompiledStatisticsSpec.EXCLUDED){
+			t.rejectedByCondition++;
+		} else if (index == CompiledStatisticsSpec.INVALID){
+			t.rejectedInvalid++;
+		} else {
+			addToCell(index, obj, sparseArray);
+			if (timed) t.statisticsNanos += CollectorMetrics.TIMING_INTERVAL * (System.nanoTime() - classified);
+		}
+	}
+	
+	private void addToCell(long index, Timed<T> obj, Map<Long, List<Accumulator<T>>> sparseArray){
+		List<Accumulator<T>> accs = sparseArray.get(index);
+		if (accs == null){
+			accs = compiledSpec.createAccumulators();
+			sparseArray.put(index, accs);
+		}
+		for (Accumulator<T> acc : accs){
+			acc.add(obj.getValue());
+		}
+	}
+	
+	/**
+	 * Merges partial accumulators into another set of accumulators, category by category. 
+	 * The result is the same as if the objects accumulated in from had been accumulated in into.
+	 * @param into the accumulators to merge into
+	 * @param from the accumulators to merge (no longer usable afterwards)
+	 */
+	protected void mergeAccumulators(Map<Long, List<Accumulator<T>>> into, 
+										Map<Long, List<Accumulator<T>>> from){
+		for (Map.Entry<Long, List<Accumulator<T>>> cell : from.entrySet()){
+			List<Accumulator<T>> accs = into.get(cell.getKey());
+			if (accs == null){
+				into.put(cell.getKey(), cell.getValue());
+			} else {
+				Iterator<Accumulator<T>> others = cell.getValue().iterator();
+				for (Accumulator<T> acc : accs){
+					acc.merge(others.next());
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Places the results of the given accumulators into the statistics array, 
+	 * overwriting the statistics of those categories
+	 * @param sparseArray the accumulators of each category, by linear index
+	 */
+	protected void storeResults(Map<Long, List<Accumulator<T>>> sparseArray){
+		CollectorMetrics m = metrics;
+		long start = m == null ? 0 : System.nanoTime();
+	    for (Map.Entry<Long, List<Accumulator<T>>> cell : sparseArray.entrySet()){
+	    	long index = cell.getKey();
+	    	int s = 0;
+	    	for (Accumulator<T> acc : cell.getValue()){
+	    		partitionedStats.set(index, s++, acc.result());
+	    	}
+	    }
+	    if (m != null){
+	    	m.cellsTouched.addAndGet(sparseArray.size());
+	    	m.statisticsNanos.addAndGet(System.nanoTime() - start);
 	    }
+	    if (spill != null) spillResults();
+	}
+	
+	/**
+	 * @param n the number of maps
+	 * @param <T> the data type over which statistics are collected
+	 * @return n empty maps from cells to their accumulators
+	 */
+	static <T> HashMap<Long, List<Accumulator<T>>>[] newCellMaps(int n){
+		@SuppressWarnings("unchecked")
+		HashMap<Long, List<Accumulator<T>>>[] maps = (HashMap<Long, List<Accumulator<T>>>[]) new HashMap<?, ?>[n];
+		for (int i = 0; i < n; i++) maps[i] = new HashMap<Long, List<Accumulator<T>>>();
+		return maps;
+	}
+	
+	/**
+	 * Processes a random sample of the objects of some categories, in which each object stands for 
+	 * weight objects of the population. Like processStats(), this overwrites the statistics of those 
+	 * categories. <br>
+	 * 
+	 * Extensive statistics (counts and sums, see {@link Statistic#isExtensive()}) are scaled by the weight; 
+	 * the others are computed as they are over the sample. If the collector reports standard errors, each 
+	 * one is estimated by the random group method: the sample is split into SAMPLE_GROUPS random groups, 
+	 * and the spread of the statistic over the groups gives its standard error over the whole sample 
+	 * (with the finite population correction 1 - 1/weight, so that a census has no error).
+	 * @param sample the sampled objects
+	 * @param weight the inverse of the probability of inclusion of each object, at least 1
+	 * @param random the generator used to split the sample into groups
+	 */
+	protected void processSample(Iterable<Timed<T>> sample, double weight, Random random){
+		HashMap<Long, List<Accumulator<T>>>[] groups = StatisticsCollector.<T>newCellMaps(SAMPLE_GROUPS);
+		CollectorMetrics.Tally tally = newTally();
+		for (Timed<T> obj : sample){
+			accumulate(obj, groups[random.nextInt(SAMPLE_GROUPS)], tally);
+		}
+		publish(tally);
+		CollectorMetrics m = metrics;
+		long start = m == null ? 0 : System.nanoTime();
+		HashMap<Long, List<Accumulator<T>>> cells = new HashMap<Long, List<Accumulator<T>>>();
+		for (HashMap<Long, List<Accumulator<T>>> group : groups){
+			for (Long cell : group.keySet()) cells.put(cell, null);
+		}
+		int statistics = compiledSpec.statistics();
+		double[][] groupResults = new double[SAMPLE_GROUPS][statistics];
+		boolean[] present = new boolean[SAMPLE_GROUPS];
+		double[] estimates = new double[SAMPLE_GROUPS];
+		for (long cell : cells.keySet()){
+			// the results of each group, before the groups are merged together
+			List<Accumulator<T>> merged = null;
+			for (int g = 0; g < SAMPLE_GROUPS; g++){
+				List<Accumulator<T>> accs = groups[g].get(cell);
+				present[g] = accs != null;
+				if (accs == null) continue;
+				for (int s = 0; s < statistics; s++) groupResults[g][s] = accs.get(s).result();
+				if (merged == null){
+					merged = accs;
+				} else {
+					for (int s = 0; s < statistics; s++) merged.get(s).merge(accs.get(s));
+				}
+			}
+			for (int s = 0; s < statistics; s++){
+				boolean extensive = compiledSpec.isExtensive(s);
+				double scale = extensive ? weight : 1;
+				// a group without objects in the cell has no value for an intensive statistic, and 0 for an extensive one
+				int n = 0;
+				for (int g = 0; g < SAMPLE_GROUPS; g++){
+					if (present[g]) estimates[n++] = groupResults[g][s] * scale * (extensive ? SAMPLE_GROUPS : 1);
+					else if (extensive) estimates[n++] = 0;
+				}
+				double estimate = merged.get(s).result() * scale;
+				if (standardErrors){
+					partitionedStats.set(cell, 2 * s, estimate);
+					partitionedStats.set(cell, 2 * s + 1, standardError(estimates, n, 1 - 1 / weight));
+				} else {
+					partitionedStats.set(cell, s, estimate);
+				}
+			}
+		}
+		if (m != null){
+			m.cellsTouched.addAndGet(cells.size());
+			m.statisticsNanos.addAndGet(System.nanoTime() - start);
+		}
+		if (spill != null) spillResults();
+	}
+	
+	/**
+	 * @param estimates the estimates of a statistic over each random group, in [0, n)
+	 * @param n the number of groups
+	 * @param fpc the finite population correction
+	 * @return the random group estimate of the standard error of the statistic over all groups, 
+	 * 			or NaN if there are fewer than two groups
+	 */
+	private static double standardError(double[] estimates, int n, double fpc){
+		if (n < 2) return Double.NaN;
+		double mean = 0;
+		for (int g = 0; g < n; g++) mean += estimates[g];
+		mean /= n;
+		double squares = 0;
+		for (int g = 0; g < n; g++) squares += (estimates[g] - mean) * (estimates[g] - mean);
+		return Math.sqrt(Math.max(0, fpc) * squares / (n * (n - 1.0)));
+	}
+	
+	/**
+	 * Turns the collection of runtime metrics (objects ingested and rejected, cells touched, 
+	 * time spent in classification, statistics and export) on or off. Metrics are off by default, 
+	 * in which case they cost a single check per object.
+	 * @param enabled true to collect metrics (keeping the counts so far if they were already on), 
+	 * 			false to stop collecting them and drop the counts
+	 */
+	public void setMetricsEnabled(boolean enabled) {
+		if (!enabled) metrics = null;
+		else if (metrics == null) metrics = new CollectorMetrics(this);
+	}
+	
+	/**
+	 * @return the live metrics of the collector, or null if they are not enabled
+	 */
+	public CollectorMetrics metrics() {
+		return metrics;
+	}
+	
+	/**
+	 * Makes the collector append the cells it finishes to the given file as soon as they are 
+	 * processed (i.e. whenever a time partition is closed), and drop them from memory. Memory use then 
+	 * no longer grows with the length of the run, and a crashed run leaves the cells finished so far 
+	 * on disk. Exports read the cells back from the file. Must be called before any object is processed.
+	 * @param file the file (created or truncated), or null to keep every cell in memory
+	 * @throws IOException if the file cannot be created
+	 */
+	public void setSpillFile(File file) throws IOException {
+		resetCube(file);
+	}
+	
+	/**
+	 * @return the file the collector appends its finished cells to, or null
+	 */
+	public File spillFile() {
+		return spill == null ? null : spill.file();
+	}
+	
+	private void spillResults(){
+		try {
+			spill.append(partitionedStats.nonEmptyCells(), partitionedStats);
+		} catch (IOException e) {
+			throw new IllegalStateException("cannot write to " + spill.file(), e);
+		}
+		partitionedStats.clear();
+	}
+	
+	
+	/**
+	 * @return a description of the table of the collector (its class, partitions, partition 
+	 * 			labels and statistic names), which a checkpoint must match to be restored
+	 */
+	String layout(){
+		StringBuilder layout = new StringBuilder(getClass().getName());
+		layout.append(spec.partitionNames()).append(spec.partitionDimensions()).append(statisticNames());
+		for (String[] labels : spec.partitionLabelTables()) layout.append(Arrays.toString(labels));
+		return layout.toString();
+	}
+	
+	/**
+	 * Writes the statistics of the collector, without processing the objects received so far
+	 * (a collector that buffers objects writes them too, see {@link EventStatisticsCollector})
+	 * @param out the checkpoint
+	 * @throws IOException if writing fails
+	 */
+	void checkpoint(CheckpointWriter out) throws IOException {
+		int statistics = partitionedStats.statistics();
+		out.putInt(statistics);
+		if (spill != null){
+			SpillFile.Merger cells = spill.merge();
+			while (cells.next()) putCell(out, cells.cell(), cells.values());
+		}
+		double[] values = new double[statistics];
+		for (long cell : partitionedStats.nonEmptyCells()){
+			for (int s = 0; s < statistics; s++) values[s] = partitionedStats.get(cell, s);
+			putCell(out, cell, values);
+		}
+		out.putLong(-1); // no more cells
+	}
+	
+	private static void putCell(CheckpointWriter out, long cell, double[] values) throws IOException {
+		ByteBuffer b = out.reserve(8 + 8 * values.length);
+		b.putLong(cell);
+		for (double value : values) b.putDouble(value);
+	}
+	
+	/**
+	 * Reads the statistics written by checkpoint(), without changing the collector yet
+	 * @param in the checkpoint
+	 * @return the task that replaces the statistics of the collector with the ones read 
+	 * 			(writing them into the spill file, if the collector has one)
+	 * @throws IOException if reading fails, or the checkpoint doesn't match the collector
+	 */
+	Runnable restore(CheckpointReader in) throws IOException {
+		int statistics = in.getInt();
+		if (statistics != partitionedStats.statistics())
+			throw new IOException(in.file() + " has " + statistics + " statistics per cell, expected " + partitionedStats.statistics());
+		final StatisticsCube restored = emptyCube();
+		long cells = restored.cells();
+		for (long cell = in.getLong(); cell >= 0; cell = in.getLong()){
+			if (cell >= cells) throw new IOException(in.file() + " is corrupt: cell " + cell + " of " + cells);
+			ByteBuffer b = in.require(8 * statistics);
+			for (int s = 0; s < statistics; s++) restored.set(cell, s, b.getDouble());
+		}
+		return new Runnable(){
+			public void run() {
+				if (spill != null){
+					try {
+						resetCube();
+					} catch (IOException e) {
+						throw new IllegalStateException("cannot recreate " + spill.file(), e);
+					}
+				}
+				partitionedStats = restored;
+				if (spill != null) spillResults();
+			}
+		};
 	}
 	
 	
@@ -88,34 +505,204 @@ public abstract class StatisticsCollector<T> implements ExcelSheetExporter {
 		objectBuffer.clear();
 	}
 	
+	/**
+	 * Processes every object received so far, so that the statistics are complete (e.g. before an export)
+	 */
+	protected void finish(){
+		flushBuffer();
+	}
+	
+	/**
+	 * Receives the cells of a collector
+	 */
+	interface CellVisitor {
+		/**
+		 * @param cell the linear index of the cell
+		 * @param values the statistics of the cell (only valid during the call)
+		 */
+		void visit(long cell, double[] values);
+	}
+	
+	/**
+	 * Finishes processing the objects received so far, then calls the visitor on every non-empty cell, 
+	 * in cell order (reading the cells back from the spill file if there is one)
+	 * @param visitor the visitor
+	 * @throws IOException if the spill file cannot be read
+	 */
+	void forEachNonEmptyCell(CellVisitor visitor) throws IOException {
+		finish();
+		visitProcessedCells(visitor);
+	}
+	
+	/**
+	 * Same as forEachNonEmptyCell(), without processing the pending objects first
+	 */
+	private void visitProcessedCells(CellVisitor visitor) throws IOException {
+		if (spill != null){
+			SpillFile.Merger cells = spill.merge();
+			while (cells.next()) visitor.visit(cells.cell(), cells.values());
+			return;
+		}
+		double[] values = new double[partitionedStats.statistics()];
+		for (long cell : partitionedStats.nonEmptyCells()){
+			for (int s = 0; s < values.length; s++) values[s] = partitionedStats.get(cell, s);
+			visitor.visit(cell, values);
+		}
+	}
+	
+	/**
+	 * Takes a snapshot of the additive statistics of the collector (its counts and sums) that can 
+	 * be sliced and rolled up over any of its partitions. The snapshot includes the objects received 
+	 * but not processed yet, which are left for the collector to process as usual, so taking it 
+	 * doesn't change the statistics. Later updates of the collector don't change the query.
+	 * @return the query
+	 * @throws IOException if the spill file cannot be read
+	 */
+	public StatisticsQuery query() throws IOException {
+		final List<Integer> statistics = new ArrayList<Integer>();
+		final List<Integer> columns = new ArrayList<Integer>();
+		List<String> names = new ArrayList<String>();
+		List<String> statisticNames = statisticNames();
+		int stride = standardErrors ? 2 : 1; // standard errors don't add up
+		for (int s = 0; s < compiledSpec.statistics(); s++){
+			if (!compiledSpec.isExtensive(s)) continue;
+			statistics.add(s);
+			columns.add(stride * s);
+			names.add(statisticNames.get(stride * s));
+		}
+		final StatisticsCube additive = StatisticsCube.create(spec.partitionDimensions(), 
+										Collections.nCopies(columns.size(), 0.0), SPARSE_THRESHOLD);
+		visitProcessedCells(new CellVisitor(){
+			public void visit(long cell, double[] values) {
+				for (int c = 0; c < columns.size(); c++) additive.set(cell, c, values[columns.get(c)]);
+			}
+		});
+		// fold the pending objects into accumulators of their own; like processStats(), 
+		// their results replace those of their cells
+		HashMap<Long, List<Accumulator<T>>> pending = new HashMap<Long, List<Accumulator<T>>>();
+		for (Timed<T> obj : pendingObjects()) accumulate(obj, pending, null);
+		for (Map.Entry<Long, List<Accumulator<T>>> cell : pending.entrySet()){
+			for (int c = 0; c < statistics.size(); c++){
+				additive.set(cell.getKey(), c, cell.getValue().get(statistics.get(c)).result());
+			}
+		}
+		return new StatisticsQuery(spec.partitionNames(), names, additive);
+	}
+	
+	/**
+	 * @return the objects received but not processed yet, which stay where they are
+	 */
+	Iterable<Timed<T>> pendingObjects(){
+		return objectBuffer;
+	}
+	
+	/**
+	 * @param exportEmptyCells if false, the export skips the cells into which no object was 
+	 * 			ever classified (by default, every cell is exported)
+	 */
+	public void setExportEmptyCells(boolean exportEmptyCells) {
+		this.exportEmptyCells = exportEmptyCells;
+	}
+	
 	@Override
-	public void exportData(XSSFSheet sheet) {
-	    flushBuffer();
+	public void exportData(Sheet sheet) {
+		try {
+			exportData(new SheetTableWriter(sheet));
+		} catch (IOException e) {
+			throw new IllegalStateException(e); // sheets are written in memory, so this can't happen
+		}
+	}
+	
+	@Override
+	public void exportData(TableWriter out) throws IOException {
+	    finish();
+	    CollectorMetrics m = metrics;
+	    long start = m == null ? 0 : System.nanoTime();
+	    try {
+	    	exportTable(out);
+	    } finally {
+	    	if (m != null) m.exportNanos.addAndGet(System.nanoTime() - start);
+	    }
+	}
+	
+	private void exportTable(TableWriter out) throws IOException {
 	    // print first row, with all the names
-	    XSSFRow row = sheet.createRow(0);
-	    int col = 0;
 	    List<String> names = spec.partitionNames();
-	    names.addAll(spec.statisticNames());
+	    names.addAll(statisticNames());
 	    for (String name : names){
-	    	row.createCell(col).setCellValue(name);
-	    	col++;
+	    	out.label(name);
+	    }
+	    out.endRow();
+	    // the labels of every partition ID, and the coordinates of the current group
+	    String[][] labels = spec.partitionLabelTables();
+	    int[] coord = new int[labels.length];
+	    if (spill != null){
+	    	exportSpilled(out, labels, coord);
+	    	return;
+	    }
+	    if (!exportEmptyCells){
+	    	for (long cell : partitionedStats.nonEmptyCells()){
+	    		partitionedStats.fromLinearIndex(cell, coord);
+	    		exportRow(out, labels, coord, cell);
+	    	}
+	    	return;
 	    }
 	    // for each classified group of objects    
-	    for (int i = 0; i < partitionedStats.size(); i++){
-	      // create a new row
-	      row = sheet.createRow(i+1);
-	      col = 0;
-	      // print all the partition ID labels
-	      Collection<Integer> index = partitionedStats.fromLinearIndex(i);
-	      for (String label : spec.partitionLabels(index)){
-	    	  row.createCell(col).setCellValue(label);
-	    	  col++;
-	      }
-	      // print all the statistics
-	      for (double stat : partitionedStats.get(i)){
-	    	  row.createCell(col).setCellValue(stat);
-	    	  col++;
+	    for (long i = 0; i < partitionedStats.cells(); i++){
+	      exportRow(out, labels, coord, i);
+	      // move to the next coordinates, in the lexicographic order of linear indices
+	      for (int p = coord.length - 1; p >= 0 && ++coord[p] == labels[p].length; p--){
+	    	  coord[p] = 0;
 	      }
 	    }
 	  } 
+	
+	/**
+	 * Exports the cells of the spill file, stitching its runs together in cell order
+	 */
+	private void exportSpilled(TableWriter out, String[][] labels, int[] coord) throws IOException {
+		SpillFile.Merger cells = spill.merge();
+		boolean more = cells.next();
+		if (!exportEmptyCells){
+			for (; more; more = cells.next()){
+				partitionedStats.fromLinearIndex(cells.cell(), coord);
+				exportRow(out, labels, coord, cells.values());
+			}
+			return;
+		}
+		double[] empty = partitionedStats.getCell(0); // every cell in memory is empty
+		for (long i = 0; i < partitionedStats.cells(); i++){
+			if (more && cells.cell() == i){
+				exportRow(out, labels, coord, cells.values());
+				more = cells.next();
+			} else {
+				exportRow(out, labels, coord, empty);
+			}
+			for (int p = coord.length - 1; p >= 0 && ++coord[p] == labels[p].length; p--){
+				coord[p] = 0;
+			}
+		}
+	}
+	
+	private void exportRow(TableWriter out, String[][] labels, int[] coord, double[] values) throws IOException {
+		for (int p = 0; p < coord.length; p++){
+			out.label(labels[p][coord[p]]);
+		}
+		for (double value : values){
+			out.value(value);
+		}
+		out.endRow();
+	}
+	
+	private void exportRow(TableWriter out, String[][] labels, int[] coord, long cell) throws IOException {
+		// print all the partition ID labels
+		for (int p = 0; p < coord.length; p++){
+			out.label(labels[p][coord[p]]);
+		}
+		// print all the statistics
+		for (int s = 0; s < partitionedStats.statistics(); s++){
+			out.value(partitionedStats.get(cell, s));
+		}
+		out.endRow();
+	}
 }
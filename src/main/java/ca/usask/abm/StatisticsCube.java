@@ -0,0 +1,153 @@
+package ca.usask.abm;
+
+import java.util.List;
+
+/**
+ * A multi-dimensional array of statistics: for every cell (combination of partition IDs),
+ * a fixed number of statistic values. Cells are numbered in lexicographic order of their 
+ * coordinates. A cell that was never set is empty, and holds the initial statistics 
+ * given at creation.
+ */
+public abstract class StatisticsCube {
+	private final int[] dims;
+	private final long[] strides;
+	private final long cells;
+	protected final int statistics;
+	protected final double[] initialValues;
+
+	/**
+	 * @param ds the dimensions (positive integers) of the cube
+	 * @param initial the statistic values of empty cells
+	 */
+	protected StatisticsCube(List<Integer> ds, List<Double> initial){
+		dims = new int[ds.size()];
+		strides = new long[ds.size()];
+		long product = 1;
+		for (int i = ds.size() - 1; i >= 0; i--){
+			dims[i] = ds.get(i);
+			strides[i] = product;
+			product *= dims[i];
+		}
+		cells = product;
+		statistics = initial.size();
+		initialValues = new double[statistics];
+		for (int s = 0; s < statistics; s++) initialValues[s] = initial.get(s);
+	}
+
+	/**
+	 * Creates a cube, choosing a dense representation for small cubes and a sparse one
+	 * for cubes with more than sparseThreshold cells
+	 * @param ds the dimensions (positive integers) of the cube
+	 * @param initial the statistic values of empty cells
+	 * @param sparseThreshold the largest number of cells for which a dense cube is used
+	 * @return a new, empty cube
+	 */
+	public static StatisticsCube create(List<Integer> ds, List<Double> initial, long sparseThreshold){
+		long product = 1;
+		for (int d : ds) product *= d;
+		if (product > sparseThreshold || product * initial.size() > Integer.MAX_VALUE)
+			return new SparseStatisticsCube(ds, initial);
+		return new DenseStatisticsCube(ds, initial);
+	}
+
+	/**
+	 * @return the number of cells
+	 */
+	public long cells() { return cells; }
+
+	/**
+	 * @return the number of statistics in each cell
+	 */
+	public int statistics() { return statistics; }
+
+	/**
+	 * @return a copy of the statistic values of empty cells
+	 */
+	public double[] initialValues() { return initialValues.clone(); }
+
+	/**
+	 * @return a copy of the dimensions of the cube
+	 */
+	public int[] dimensions() { return dims.clone(); }
+
+	/**
+	 * PRECONDITION: every coordinate is in [0, dimension)
+	 * @param coords a coordinate for each dimension
+	 * @return the corresponding linear cell index
+	 */
+	public long toLinearIndex(int... coords){
+		long index = 0;
+		for (int i = 0; i < strides.length; i++) index += strides[i] * coords[i];
+		return index;
+	}
+
+	/**
+	 * PRECONDITION: every coordinate is in [0, dimension)
+	 * @param coords a coordinate for each dimension
+	 * @return the corresponding linear cell index
+	 */
+	public long toLinearIndex(List<Integer> coords){
+		long index = 0;
+		for (int i = 0; i < strides.length; i++) index += strides[i] * coords.get(i);
+		return index;
+	}
+
+	/**
+	 * PRECONDITION: cell is in [0, cells())
+	 * @param cell a linear cell index
+	 * @param coords receives the coordinate for each dimension
+	 * POSTCONDITION: toLinearIndex(coords) == cell
+	 */
+	public void fromLinearIndex(long cell, int[] coords){
+		for (int i = 0; i < strides.length; i++){
+			coords[i] = (int) (cell / strides[i]);
+			cell %= strides[i];
+		}
+	}
+
+	/**
+	 * @param cell a linear cell index
+	 * @param statistic the index of the statistic in the cell
+	 * @return the value of the statistic
+	 */
+	public abstract double get(long cell, int statistic);
+
+	/**
+	 * Sets a statistic, making the cell non-empty
+	 * @param cell a linear cell index
+	 * @param statistic the index of the statistic in the cell
+	 * @param value the new value of the statistic
+	 */
+	public abstract void set(long cell, int statistic, double value);
+
+	/**
+	 * @param cell a linear cell index
+	 * @return true if no statistic of the cell was ever set
+	 */
+	public abstract boolean isEmpty(long cell);
+
+	/**
+	 * Empties every cell
+	 */
+	public abstract void clear();
+
+	/**
+	 * @return the indices of all non-empty cells, in increasing order
+	 */
+	public abstract long[] nonEmptyCells();
+
+	/**
+	 * @return an estimate of the memory used by the cube, in bytes
+	 */
+	public abstract long memoryBytes();
+
+	/**
+	 * @param cell a linear cell index
+	 * @return a copy of all the statistics of the cell
+	 */
+	public double[] getCell(long cell) {
+		double[] values = new double[statistics];
+		for (int s = 0; s < statistics; s++) values[s] = get(cell, s);
+		return values;
+	}
+}
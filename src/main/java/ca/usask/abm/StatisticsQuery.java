@@ -0,0 +1,291 @@
+package ca.usask.abm;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Slices and roll-ups of the additive statistics of a collector (counts and sums, see
+ * {@link Statistic#isExtensive()}), e.g. the count by decade out of a collector partitioned by
+ * health, age and decade, without another collector or another pass over the objects. <br>
+ *
+ * A query selects a range of IDs in every partition (initially all of them); the statistics
+ * of the selection are the totals over all the cells in it, so every partition that is not
+ * fixed by {@link #where} or grouped by {@link #groupBy} is rolled up. Means and variances are
+ * derived from the totals of a sum, a count and a sum of squares ({@link Statistics#sumOfSquares}). <br>
+ *
+ * Queries are immutable snapshots taken by {@link StatisticsCollector#query()}. The statistics
+ * are kept as summed-area tables, so the total of any selection only reads 2^k values,
+ * k being the number of partitions whose range doesn't start at 0, whatever the number of
+ * cells in it. Cubes with more than {@link StatisticsCollector#SPARSE_THRESHOLD} cells keep a
+ * copy of their non-empty cells instead, which is scanned. <br>
+ *
+ * NOTE: totals are differences of prefix sums, so the sums of large non-integer values
+ * may differ in the last bits from summing the cells directly.
+ */
+public final class StatisticsQuery {
+	private final List<String> partitions;
+	private final List<String> statistics;
+	private final int[] dims;
+	/**
+	 * the summed-area table of each statistic, or null when the cube is scanned
+	 */
+	private final double[][] tables;
+	private final long[] strides;
+	/**
+	 * the non-empty cells of the cube and the value of each statistic in each 
+	 * of them, or null when the cube is kept as summed-area tables
+	 */
+	private final long[] cells;
+	private final double[][] values;
+	private final int[] from, to;
+
+	/**
+	 * Takes a snapshot of the statistics of a cube
+	 * @param partitions the name of each dimension of the cube
+	 * @param statistics the name of each statistic of the cube, all of them additive
+	 * @param cube the cube (not used anymore once the query is built)
+	 */
+	StatisticsQuery(List<String> partitions, List<String> statistics, StatisticsCube cube){
+		this.partitions = Collections.unmodifiableList(new ArrayList<String>(partitions));
+		this.statistics = Collections.unmodifiableList(new ArrayList<String>(statistics));
+		dims = cube.dimensions();
+		from = new int[dims.length];
+		to = dims.clone();
+		strides = new long[dims.length];
+		long size = 1;
+		for (int i = dims.length - 1; i >= 0; i--){
+			strides[i] = size;
+			size *= dims[i] + 1;
+		}
+		if (size > StatisticsCollector.SPARSE_THRESHOLD){
+			// copy the non-empty cells, which are scanned
+			List<Long> nonEmpty = new ArrayList<Long>();
+			for (long cell : cube.nonEmptyCells()) nonEmpty.add(cell);
+			cells = new long[nonEmpty.size()];
+			values = new double[cube.statistics()][cells.length];
+			for (int c = 0; c < cells.length; c++){
+				cells[c] = nonEmpty.get(c);
+				for (int s = 0; s < values.length; s++) values[s][c] = cube.get(cells[c], s);
+			}
+			tables = null;
+			return;
+		}
+		cells = null;
+		values = null;
+		tables = new double[cube.statistics()][(int) size];
+		int[] coords = new int[dims.length];
+		for (long cell : cube.nonEmptyCells()){
+			cube.fromLinearIndex(cell, coords);
+			int index = 0;
+			for (int i = 0; i < dims.length; i++) index += strides[i] * (coords[i] + 1);
+			for (int s = 0; s < tables.length; s++) tables[s][index] = cube.get(cell, s);
+		}
+		// prefix sums along each dimension in turn, so that each entry holds the total of the
+		// cells whose coordinates are all below its own
+		for (double[] table : tables){
+			for (int i = 0; i < dims.length; i++){
+				int stride = (int) strides[i];
+				for (int index = 0; index < table.length; index++){
+					if ((index / stride) % (dims[i] + 1) != 0) table[index] += table[index - stride];
+				}
+			}
+		}
+	}
+
+	private StatisticsQuery(StatisticsQuery query, int[] from, int[] to){
+		partitions = query.partitions;
+		statistics = query.statistics;
+		dims = query.dims;
+		tables = query.tables;
+		strides = query.strides;
+		cells = query.cells;
+		values = query.values;
+		this.from = from;
+		this.to = to;
+	}
+
+	/**
+	 * @return the names of the partitions, in the collector's order
+	 */
+	public List<String> partitionNames(){
+		return partitions;
+	}
+
+	/**
+	 * @return the names of the statistics that can be queried, in the collector's order
+	 */
+	public List<String> statisticNames(){
+		return statistics;
+	}
+
+	/**
+	 * @param partition the name of a partition
+	 * @return the first selected ID of the partition
+	 */
+	public int from(String partition){
+		return from[partitionIndex(partition)];
+	}
+
+	/**
+	 * @param partition the name of a partition
+	 * @return one past the last selected ID of the partition
+	 */
+	public int to(String partition){
+		return to[partitionIndex(partition)];
+	}
+
+	/**
+	 * @param partition the name of a partition
+	 * @param id the ID to select
+	 * @return a query over the cells of this query that have the given ID in the partition
+	 */
+	public StatisticsQuery where(String partition, int id){
+		return where(partition, id, id + 1);
+	}
+
+	/**
+	 * @param partition the name of a partition
+	 * @param from the first ID to select
+	 * @param to one past the last ID to select
+	 * @return a query over the cells of this query whose ID in the partition is in [from, to)
+	 */
+	public StatisticsQuery where(String partition, int from, int to){
+		int i = partitionIndex(partition);
+		if (from < this.from[i] || to > this.to[i] || from >= to)
+			throw new IllegalArgumentException("[" + from + ", " + to + ") is not a non-empty range of the selected IDs ["
+												+ this.from[i] + ", " + this.to[i] + ") of " + partition);
+		int[] f = this.from.clone();
+		int[] t = this.to.clone();
+		f[i] = from;
+		t[i] = to;
+		return new StatisticsQuery(this, f, t);
+	}
+
+	/**
+	 * Splits the query by the IDs of some partitions, rolling up all the others
+	 * @param partitions the names of the partitions to group by
+	 * @return a query for each combination of the selected IDs of the partitions, in the order
+	 * 			the partitions are given (the coordinates are relative to the first selected IDs,
+	 * 			see {@link #from})
+	 */
+	public MultiDimArray<StatisticsQuery> groupBy(String... partitions){
+		int[] grouped = new int[partitions.length];
+		List<Integer> ds = new ArrayList<Integer>(partitions.length);
+		for (int g = 0; g < partitions.length; g++){
+			grouped[g] = partitionIndex(partitions[g]);
+			ds.add(to[grouped[g]] - from[grouped[g]]);
+		}
+		MultiDimArray<StatisticsQuery> groups = new MultiDimArray<StatisticsQuery>(ds, null);
+		int[] coords = new int[partitions.length];
+		for (int index = 0; index < groups.size(); index++){
+			int[] f = from.clone();
+			int[] t = to.clone();
+			for (int g = 0; g < grouped.length; g++){
+				f[grouped[g]] = from[grouped[g]] + coords[g];
+				t[grouped[g]] = f[grouped[g]] + 1;
+			}
+			groups.set(index, new StatisticsQuery(this, f, t));
+			// next combination, in lexicographic order
+			for (int g = grouped.length - 1; g >= 0 && ++coords[g] == ds.get(g); g--) coords[g] = 0;
+		}
+		return groups;
+	}
+
+	/**
+	 * @param statistic the name of an additive statistic
+	 * @return the total of the statistic over the selected cells
+	 */
+	public double sum(String statistic){
+		int s = statistics.indexOf(statistic);
+		if (s < 0) throw new IllegalArgumentException(statistic + " is not an additive statistic of the query: " + statistics);
+		return tables == null ? scan(s) : boxSum(tables[s]);
+	}
+
+	/**
+	 * @param sum the name of the sum of some values
+	 * @param count the name of the count of the same values
+	 * @return the mean of the values over the selected cells, or 0 if there are none
+	 */
+	public double mean(String sum, String count){
+		double n = sum(count);
+		return n == 0 ? 0.0 : sum(sum) / n;
+	}
+
+	/**
+	 * @param sumOfSquares the name of the sum of the squares of some values
+	 * @param sum the name of the sum of the same values
+	 * @param count the name of the count of the same values
+	 * @return the (bias-corrected) sample variance of the values over the selected cells,
+	 * 			or 0 if there are fewer than two of them
+	 */
+	public double variance(String sumOfSquares, String sum, String count){
+		double n = sum(count);
+		if (n < 2) return 0.0;
+		double total = sum(sum);
+		return Math.max(0, (sum(sumOfSquares) - total * total / n) / (n - 1));
+	}
+
+	private int partitionIndex(String partition){
+		int i = partitions.indexOf(partition);
+		if (i < 0) throw new IllegalArgumentException("no partition named " + partition + " in " + partitions);
+		return i;
+	}
+
+	/**
+	 * @return the total of the selected box, by inclusion-exclusion over its corners
+	 */
+	private double boxSum(double[] table){
+		long upper = 0;
+		int[] lower = new int[dims.length]; // the dimensions whose lower corner isn't 0
+		int k = 0;
+		for (int i = 0; i < dims.length; i++){
+			upper += strides[i] * to[i];
+			if (from[i] > 0) lower[k++] = i;
+		}
+		double total = 0;
+		for (int mask = 0; mask < 1 << k; mask++){
+			long index = upper;
+			boolean negative = false;
+			for (int b = 0; b < k; b++){
+				if ((mask & (1 << b)) == 0) continue;
+				index -= strides[lower[b]] * (to[lower[b]] - from[lower[b]]);
+				negative = !negative;
+			}
+			total += negative ? -table[(int) index] : table[(int) index];
+		}
+		return total;
+	}
+
+	/**
+	 * @return the total of the selected cells, summed directly
+	 */
+	private double scan(int statistic){
+		double total = 0;
+		for (int c = 0; c < cells.length; c++){
+			if (contains(cells[c])) total += values[statistic][c];
+		}
+		return total;
+	}
+
+	/**
+	 * @param cell the linear index of a cell of the cube, the last partition varying fastest
+	 */
+	private boolean contains(long cell){
+		for (int i = dims.length - 1; i >= 0; i--){
+			int coord = (int) (cell % dims[i]);
+			if (coord < from[i] || coord >= to[i]) return false;
+			cell /= dims[i];
+		}
+		return true;
+	}
+
+	@Override
+	public String toString(){
+		StringBuilder s = new StringBuilder("StatisticsQuery");
+		for (int i = 0; i < dims.length; i++){
+			s.append(i == 0 ? "[" : ", ").append(partitions.get(i)).append(" in [").append(from[i]).append(", ").append(to[i]).append(')');
+		}
+		return s.append(dims.length == 0 ? "[]" : "]").append(statistics).toString();
+	}
+}
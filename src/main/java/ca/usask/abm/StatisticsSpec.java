@@ -1,6 +1,7 @@
 package ca.usask.abm;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Iterator;
 import java.util.List;
@@ -28,6 +29,7 @@ public class StatisticsSpec<T> {
 
 	private final Collection<Named<Partition<Timed<T>>>> partitions;
 	private final Collection<Named<Statistic<T>>> statistics;
+	private final List<Attribute<T>> attributes = new ArrayList<Attribute<T>>();
 	
 	/**
 	 * @param condition an object is included in the statistics if the condition is true; 
@@ -71,6 +73,39 @@ public class StatisticsSpec<T> {
 		statistics.add(Named.create(name, stat));
 	}
 	
+	/**
+	 * Adds every output of a batch statistic to the spec, as consecutive statistics named after
+	 * the outputs; the outputs of a category are computed together, from a single accumulator
+	 * @param batch the batch statistic
+	 * @param extensive the names of the outputs that are counts or sums (see {@link Statistic#isExtensive()}),
+	 * 			which sampled collectors scale up and queries can roll up; the other outputs are intensive
+	 */
+	public void addStatistics(BatchStatistic<T> batch, String... extensive){
+		List<String> names = batch.names();
+		List<String> extensiveNames = Arrays.asList(extensive);
+		if (!names.containsAll(extensiveNames))
+			throw new IllegalArgumentException("the outputs " + extensiveNames + " are not all in " + names);
+		for (int i = 0; i < names.size(); i++){
+			statistics.add(Named.create(names.get(i), batch.column(i, extensiveNames.contains(names.get(i)))));
+		}
+	}
+	
+	/**
+	 * Declares an attribute used by the partitions or statistics of the spec, so that it can be 
+	 * read from a snapshot shared with other collectors (see {@link ABMStats#setSharedSnapshots})
+	 * @param attribute the attribute
+	 */
+	public void addAttribute(Attribute<T> attribute){
+		attributes.add(attribute);
+	}
+	
+	/**
+	 * @return the attributes declared with {@link addAttribute}
+	 */
+	public List<Attribute<T>> attributes(){
+		return new ArrayList<Attribute<T>>(attributes);
+	}
+	
 	/**
 	 * Adds a partition to the spec. If time is part of the partition criterion, use {@link addTimedPartition} instead
 	 * @param name the name of the partition
@@ -95,7 +130,11 @@ public class StatisticsSpec<T> {
 	 * @param part the partition itself
 	 */
 	public void addTimePartition(String name, Partition<Double> part){
-		partitions.add(Named.create(name, part.lift(Timed.<T>timeFunction())));
+		if (part instanceof DoublePartition){
+			partitions.add(Named.create(name, ((DoublePartition) part).liftDouble(Timed.<T>primitiveTimeFunction())));
+		} else {
+			partitions.add(Named.create(name, part.lift(Timed.<T>timeFunction())));
+		}
 	}
 	
 	
@@ -134,6 +173,15 @@ public class StatisticsSpec<T> {
 		return statValues;
 	}
 	
+	/**
+	 * Freezes the current partitions and statistics of this spec into a plan that classifies 
+	 * objects without allocating; later changes to this spec don't affect the plan
+	 * @return the compiled spec
+	 */
+	public CompiledStatisticsSpec<T> compile(){
+		return new CompiledStatisticsSpec<T>(condition, partitions, statistics);
+	}
+	
 	/**
 	 * @param t the timed value
 	 * @return the partitions IDs, or null if the element either
@@ -183,4 +231,22 @@ public class StatisticsSpec<T> {
 		return labels;
 	}
 	
+	/**
+	 * @return for each partition, the labels of all its identifiers, indexed by identifier
+	 * 		   = map (p -> map p.idLabel [0 .. p.maxID]) partitions
+	 */
+	public String[][] partitionLabelTables(){
+		String[][] tables = new String[partitions.size()][];
+		int i = 0;
+		for (Named<Partition<Timed<T>>> p : partitions){
+			Partition<Timed<T>> part = p.getValue();
+			tables[i] = new String[part.maxID() + 1];
+			for (int id = 0; id <= part.maxID(); id++){
+				tables[i][id] = part.idLabel(id);
+			}
+			i++;
+		}
+		return tables;
+	}
+	
 }
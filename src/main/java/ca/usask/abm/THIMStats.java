@@ -2,7 +2,6 @@ package ca.usask.abm;
 
 
 import java.util.Arrays;
-import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
 
@@ -39,12 +38,53 @@ public class THIMStats<Model, Event, DeathEvent, Sim> extends ABMStats<Model, Ev
 					Function<Sim, Double> age,
 					Function<Sim, Double> education,
 					Function<Sim, Double> health,	
-					final Function<Sim, Double> income,									
+					Function<Sim, Double> income,									
 					Function<Sim, Boolean> doneEducation,
-					final Function<Sim, Sim> parent,
+					Function<Sim, Sim> parent,
 					Function<Sim, Integer> neighborhood,
 					Class<DeathEvent> deathEventClass,
 					Function<DeathEvent, Double> ageAtDeath){
+		this(endTime, sims, numNeighborhoods, 
+				Functions.unboxed(age), Functions.unboxed(education), Functions.unboxed(health), Functions.unboxed(income),
+				doneEducation, parent, neighborhood, deathEventClass, Functions.unboxed(ageAtDeath));
+	}
+	
+	/**
+	 * Creates a new instance of an ABMStats object specialized for producing THIM output tables. 
+	 * Same as the other constructor, but the numeric attributes are read as primitive doubles, 
+	 * so the statistics over them never box a value.
+	 * @param endTime the time until which to collect statistics
+	 * @param sims accesses all currently living sims in a model
+	 * @param numNeighborhoods the number of neighborhoods in the model
+	 * @param age accessor
+	 * @param education accessor
+	 * @param health accessor
+	 * @param income accessor
+	 * @param doneEducation accessor
+	 * @param parent accesses a sim's parent, or return null if a sim has no parent
+	 * @param neighborhood accesses a sim's neighborhood index; must be in [0, numNeighborhoods)
+	 * @param deathEventClass the class of the DeathEvent type (needed to filter out death events from others)
+	 * @param ageAtDeath accesses the age of the dead agent from a death event
+	 */
+	public THIMStats(double endTime,
+					Function<Model, Iterable<Sim>> sims,
+					int numNeighborhoods,
+					ToDoubleFunction<Sim> age,
+					ToDoubleFunction<Sim> education,
+					ToDoubleFunction<Sim> health,	
+					ToDoubleFunction<Sim> income,									
+					Function<Sim, Boolean> doneEducation,
+					Function<Sim, Sim> parent,
+					Function<Sim, Integer> neighborhood,
+					Class<DeathEvent> deathEventClass,
+					ToDoubleFunction<DeathEvent> ageAtDeath){
+		
+		// the attributes of sims, which all the agent collectors read once per sim and tick 
+		// when shared snapshots are enabled (see setSharedSnapshots)
+		Attribute<Sim> simAge = new Attribute<Sim>("age", age);
+		Attribute<Sim> simEducation = new Attribute<Sim>("education", education);
+		Attribute<Sim> simHealth = new Attribute<Sim>("health", health);
+		Attribute<Sim> simIncome = new Attribute<Sim>("income", income);
 		
 		final List<Double> incomeGroups = 
 				Arrays.<Double>asList(1.0,
@@ -53,7 +93,7 @@ public class THIMStats<Model, Event, DeathEvent, Sim> extends ABMStats<Model, Ev
 						80000.0, 90000.0, 100000.0, 110000.0, 120000.0, 130000.0, 140000.0, 
 						150000.0, 175000.0, 
 						200000.0, 250000.0, 300000.0, 350000.0, 400000.0);
-		final Partition<Double> INCOME_GROUP_20 = Partitions.between(incomeGroups);
+		final DoublePartition INCOME_GROUP_20 = Partitions.between(incomeGroups);
 	
 	
 		final Statistic<Sim> count = Statistics.count();
@@ -72,11 +112,14 @@ public class THIMStats<Model, Event, DeathEvent, Sim> extends ABMStats<Model, Ev
 			StatisticsSpec<Sim> spec = new StatisticsSpec<Sim>();
 			// define partitions
 			spec.addTimePartition("Year", yearly);
+			spec.addAttribute(simEducation);
+			spec.addAttribute(simIncome);
+			spec.addAttribute(simHealth);
 			// define statistics
-			spec.addStatistic("Average education", Statistics.mean.on(education));
-			spec.addStatistic("Average education", Statistics.mean.on(education));
-			spec.addStatistic("Average income", Statistics.mean.on(income));
-			spec.addStatistic("Average health", Statistics.mean.on(health));
+			spec.addStatistic("Average education", Statistics.mean.onDouble(simEducation));
+			spec.addStatistic("Average education", Statistics.mean.onDouble(simEducation));
+			spec.addStatistic("Average income", Statistics.mean.onDouble(simIncome));
+			spec.addStatistic("Average health", Statistics.mean.onDouble(simHealth));
 			spec.addStatistic("Adults", Statistics.count(doneEducation));
 			spec.addStatistic("Children", Statistics.countNot(doneEducation));
 
@@ -89,8 +132,10 @@ public class THIMStats<Model, Event, DeathEvent, Sim> extends ABMStats<Model, Ev
 			// create spec
 			StatisticsSpec<Sim> spec = new StatisticsSpec<Sim>();
 	        // define the partitions
-			spec.addPartition("Health", Partitions.range(0.0, 0.1, 1.0).lift(health));
-			spec.addPartition("Age", Partitions.range(0.0, 5.0, 100).lift(age));
+			spec.addPartition("Health", Partitions.range(0.0, 0.1, 1.0).liftDouble(simHealth));
+			spec.addPartition("Age", Partitions.range(0.0, 5.0, 100).liftDouble(simAge));
+			spec.addAttribute(simHealth);
+			spec.addAttribute(simAge);
 			spec.addTimePartition("Decade", decadePartition);
 			// define the statistics
 			spec.addStatistic("Count", count);
@@ -102,7 +147,8 @@ public class THIMStats<Model, Event, DeathEvent, Sim> extends ABMStats<Model, Ev
 			// create spec
 			StatisticsSpec<Sim> spec = new StatisticsSpec<Sim>();
 			// define the partitions
-			spec.addPartition("Age", Partitions.range(0.0, 1.0, 100.0).lift(age));
+			spec.addPartition("Age", Partitions.range(0.0, 1.0, 100.0).liftDouble(simAge));
+			spec.addAttribute(simAge);
 			spec.addTimePartition("Decade", decadePartition);
 			// define the statistics
 			spec.addStatistic("Count", count);
@@ -114,8 +160,9 @@ public class THIMStats<Model, Event, DeathEvent, Sim> extends ABMStats<Model, Ev
 	    	// create spec
 	    	StatisticsSpec<Sim> spec = new StatisticsSpec<Sim>();
 	    	// define the partitions
-	    	spec.addPartition("child income", INCOME_GROUP_20.lift(income));
-	    	spec.addPartition("parent income", INCOME_GROUP_20.lift(income).lift(parent));
+	    	spec.addPartition("child income", INCOME_GROUP_20.liftDouble(simIncome));
+	    	spec.addPartition("parent income", INCOME_GROUP_20.liftDouble(simIncome).lift(parent));
+	    	spec.addAttribute(simIncome);
 	    	spec.addTimePartition("Decade", decadePartition);
 	    	// define the statistics
 	    	spec.addStatistic("Count", count);
@@ -130,22 +177,29 @@ public class THIMStats<Model, Event, DeathEvent, Sim> extends ABMStats<Model, Ev
 	    	spec.setCondition(doneEducation);
 	    	// define the partitions
 	    	spec.addPartition("Neighborhood", Partitions.intRange(0, numNeighborhoods-1).lift(neighborhood));
+	    	spec.addAttribute(simIncome);
 	    	spec.addTimePartition("Decade", decadePartition);
 	    	// define the statistics
 	    	spec.addStatistic("Person", count);
-	    	spec.addStatistic("Total Income", Statistics.sum.on(income));
-	    	Statistic<Double> incomeGroupContainingMedian = new Statistic<Double>(){
-				public Double apply(Collection<Double> data) {
-					double median = Statistics.median.apply(data);
-					int index = Collections.binarySearch(incomeGroups, median);
-					if (index >= 0) return (double) index;
-					else return (double) -(index + 1);
-				}
-	    	};
-	    	spec.addStatistic("Income group containing median", incomeGroupContainingMedian.on(income));
-	    	spec.addStatistic("Median Income", Statistics.median.on(income));
-	    	// TODO add median income share, etc. Might make sense, with all these statistics derived from each
-	    	// each other, to let the user specify a batch of statistics at once (instead of Double, return HashMap<String,Double>)
+	    	// the income statistics of a neighborhood all come from a single sort of its incomes
+	    	DoubleBatchStatistic incomeDistribution = Statistics.sortedValues(
+	    			Arrays.asList("Total Income", "Income group containing median", "Median Income",
+	    					"First quartile income", "Third quartile income", "Income share of bottom half"),
+	    			new Statistics.SortedValuesFunction(){
+	    		public void evaluate(double[] sorted, int size, double sum, double[] out) {
+	    			double median = Statistics.percentileOfSorted(sorted, size, 50);
+	    			int index = Collections.binarySearch(incomeGroups, median);
+	    			double bottomHalf = 0;
+	    			for (int i = 0; i < size / 2; i++) bottomHalf += sorted[i];
+	    			out[0] = sum;
+	    			out[1] = index >= 0 ? index : -(index + 1);
+	    			out[2] = median;
+	    			out[3] = Statistics.percentileOfSorted(sorted, size, 25);
+	    			out[4] = Statistics.percentileOfSorted(sorted, size, 75);
+	    			out[5] = sum == 0 ? 0 : bottomHalf / sum; // no income at all, e.g. a cell without earners
+	    		}
+	    	});
+	    	spec.addStatistics(incomeDistribution.on(simIncome), "Total Income");
 	    	
 	    	yStatsByDecNbhd = new AgentStatisticsCollector<Model, Sim>(sims, spec, decadePartition);
 	    }
@@ -156,11 +210,11 @@ public class THIMStats<Model, Event, DeathEvent, Sim> extends ABMStats<Model, Ev
 	    	// create spec
 	    	StatisticsSpec<DeathEvent> spec = new StatisticsSpec<DeathEvent>();
 	    	// define the partitions
-	    	spec.addPartition("Age", Partitions.range(0, 5, 100).lift(ageAtDeath));
+	    	spec.addPartition("Age", Partitions.range(0, 5, 100).liftDouble(ageAtDeath));
 	    	spec.addTimePartition("Decade", decadePartition);
 	    	// define stats
 	    	spec.addStatistic("Deaths during decade", Statistics.<DeathEvent>count());
-	    	spec.addStatistic("Average age at death", Statistics.mean.on(ageAtDeath));
+	    	spec.addStatistic("Average age at death", Statistics.mean.onDouble(ageAtDeath));
 	    	
 	    	deathsByAgeDec = new EventStatisticsCollector<Event, DeathEvent>(deathEventClass, spec, decadePartition);
 	    }
@@ -171,7 +225,7 @@ public class THIMStats<Model, Event, DeathEvent, Sim> extends ABMStats<Model, Ev
 	    	// define the partition
 	    	spec.addTimePartition("Decade", decadePartition);
 	    	// define stats
-	    	spec.addStatistic("Life Expectancy", Statistics.mean.on(ageAtDeath));
+	    	spec.addStatistic("Life Expectancy", Statistics.mean.onDouble(ageAtDeath));
 	    	
 	    	lifeExpectancy = new EventStatisticsCollector<Event, DeathEvent>(deathEventClass, spec, decadePartition);
 	    }
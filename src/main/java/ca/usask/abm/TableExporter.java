@@ -0,0 +1,12 @@
+package ca.usask.abm;
+
+import java.io.IOException;
+
+public interface TableExporter {
+	/**
+	 * Writes all internally collected data as a table, starting with a row of column names
+	 * @param writer the destination of the table
+	 * @throws IOException if the writer fails
+	 */
+	void exportData(TableWriter writer) throws IOException;
+}
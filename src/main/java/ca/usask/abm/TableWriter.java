@@ -0,0 +1,29 @@
+package ca.usask.abm;
+
+import java.io.IOException;
+
+/**
+ * A format-neutral destination for tabular data, written one cell at a time, 
+ * row by row, from left to right.
+ */
+public interface TableWriter {
+	/**
+	 * Writes a text cell
+	 * @param text the text of the cell
+	 * @throws IOException if the underlying output fails
+	 */
+	void label(String text) throws IOException;
+
+	/**
+	 * Writes a numeric cell
+	 * @param value the value of the cell
+	 * @throws IOException if the underlying output fails
+	 */
+	void value(double value) throws IOException;
+
+	/**
+	 * Ends the current row; the next cell starts a new row
+	 * @throws IOException if the underlying output fails
+	 */
+	void endRow() throws IOException;
+}
@@ -0,0 +1,169 @@
+package ca.usask.abm;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Tracks the current ID of a number of time partitions, and finds the observers whose time 
+ * partition ID changed when the time changes. <br>
+ * 
+ * Each distinct time partition (equal partitions, such as identical {@link Partitions#range}s, 
+ * are tracked once) is kept in a min-heap keyed by the time of its next boundary (see 
+ * {@link DoublePartition#nextBoundary}), so that a time change that crosses no boundary costs 
+ * a single comparison. Time may go backwards, in which case every partition is re-evaluated.
+ *
+ * @param <T> the observer type
+ */
+final class TimePartitionScheduler<T> {
+
+	/**
+	 * A distinct time partition, and the observers that use it
+	 */
+	private static final class Slot<T> {
+		final Partition<Double> partition;
+		final List<T> observers = new ArrayList<T>();
+		int prevID = Partition.INVALID_ID;
+
+		Slot(Partition<Double> partition){ this.partition = partition; }
+	}
+
+	private final List<Slot<T>> slots = new ArrayList<Slot<T>>();
+	private final HashMap<Partition<Double>, Slot<T>> byPartition = new HashMap<Partition<Double>, Slot<T>>();
+
+	// the heap: the next boundary of each slot, and the index of the slot
+	private double[] keys = new double[8];
+	private int[] heapSlots = new int[8];
+	private int size = 0;
+
+	private double lastTime = Double.NEGATIVE_INFINITY;
+
+	/**
+	 * Adds an observer, whose partition ID is initially unknown (so it becomes due as soon as 
+	 * the time falls into any subset of its partition)
+	 * @param partition the time partition of the observer
+	 * @param observer the observer
+	 */
+	void add(Partition<Double> partition, T observer){
+		Slot<T> slot = byPartition.get(partition);
+		// observers added after the first time change can't share a partition ID that is already known
+		if (slot == null || slot.prevID != Partition.INVALID_ID){
+			slot = new Slot<T>(partition);
+			byPartition.put(partition, slot);
+			slots.add(slot);
+			push(Double.NEGATIVE_INFINITY, slots.size() - 1);
+		}
+		slot.observers.add(observer);
+	}
+
+	/**
+	 * @return the number of distinct time partitions being tracked
+	 */
+	int partitions(){
+		return slots.size();
+	}
+
+	/**
+	 * Moves to the given time
+	 * @param time the new time
+	 * @param due receives every observer whose partition ID changed to a valid ID, grouped by partition
+	 */
+	void advance(double time, Collection<T> due){
+		if (time >= lastTime && (size == 0 || time < keys[0])) {
+			lastTime = time;
+			return; // no boundary crossed
+		}
+		if (time < lastTime){
+			// gone backwards: the heap says nothing about earlier boundaries
+			for (int i = 0; i < size; i++) keys[i] = Double.NEGATIVE_INFINITY;
+		}
+		lastTime = time;
+		while (size > 0 && keys[0] <= time){
+			int s = heapSlots[0];
+			Slot<T> slot = slots.get(s);
+			int curID = slot.partition.toID(time);
+			if (curID != slot.prevID && curID != Partition.INVALID_ID){
+				due.addAll(slot.observers);
+			}
+			slot.prevID = curID;
+			keys[0] = nextBoundary(slot.partition, time);
+			siftDown(0);
+		}
+	}
+
+	/**
+	 * Writes the last time and the current ID of every partition
+	 * @param out the checkpoint
+	 * @throws IOException if writing fails
+	 */
+	void checkpoint(CheckpointWriter out) throws IOException {
+		out.putDouble(lastTime);
+		out.putInt(slots.size());
+		for (Slot<T> slot : slots) out.putInt(slot.prevID);
+	}
+
+	/**
+	 * Reads the state written by checkpoint(), for the same partitions added in the same order, 
+	 * without changing the scheduler yet
+	 * @param in the checkpoint
+	 * @return the task that restores the state read
+	 * @throws IOException if reading fails, or the checkpoint tracks a different number of partitions
+	 */
+	Runnable restore(CheckpointReader in) throws IOException {
+		final double time = in.getDouble();
+		int n = in.getInt();
+		if (n != slots.size()) throw new IOException(in.file() + " tracks " + n + " time partitions, expected " + slots.size());
+		final int[] ids = new int[n];
+		for (int i = 0; i < n; i++) ids[i] = in.getInt();
+		return new Runnable(){
+			public void run() {
+				for (int i = 0; i < ids.length; i++) slots.get(i).prevID = ids[i];
+				lastTime = time;
+				// the next boundaries are unknown: re-evaluate every partition on the next time change
+				for (int i = 0; i < size; i++) keys[i] = Double.NEGATIVE_INFINITY;
+			}
+		};
+	}
+
+	private static double nextBoundary(Partition<Double> partition, double time){
+		if (partition instanceof DoublePartition) return ((DoublePartition) partition).nextBoundary(time);
+		return Math.nextUp(time); // unknown partition: evaluate it whenever the time changes
+	}
+
+	private void push(double key, int slot){
+		if (size == keys.length){
+			keys = Arrays.copyOf(keys, 2 * size);
+			heapSlots = Arrays.copyOf(heapSlots, 2 * size);
+		}
+		int i = size++;
+		// sift up
+		while (i > 0){
+			int parent = (i - 1) >>> 1;
+			if (keys[parent] <= key) break;
+			keys[i] = keys[parent];
+			heapSlots[i] = heapSlots[parent];
+			i = parent;
+		}
+		keys[i] = key;
+		heapSlots[i] = slot;
+	}
+
+	private void siftDown(int i){
+		double key = keys[i];
+		int slot = heapSlots[i];
+		while (true){
+			int child = 2 * i + 1;
+			if (child >= size) break;
+			if (child + 1 < size && keys[child + 1] < keys[child]) child++;
+			if (keys[child] >= key) break;
+			keys[i] = keys[child];
+			heapSlots[i] = heapSlots[child];
+			i = child;
+		}
+		keys[i] = key;
+		heapSlots[i] = slot;
+	}
+}
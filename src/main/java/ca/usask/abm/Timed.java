@@ -45,4 +45,18 @@ public class Timed<T> {
 			
 		};
 	}
+	
+	/**
+	 * @return a function that extracts the time from a timed object without boxing it
+	 */
+	public static <T> ToDoubleFunction<Timed<T>> primitiveTimeFunction() {
+		return new ToDoubleFunction<Timed<T>>(){
+
+			@Override
+			public double applyAsDouble(Timed<T> argument) {
+				return argument.getTime();
+			}
+			
+		};
+	}
 }
@@ -0,0 +1,16 @@
+package ca.usask.abm;
+
+/**
+ * Models a function from a type to a primitive double, avoiding the boxing 
+ * that {@code Function<T, Double>} would require; is a Java 8 Functional Interface
+ *
+ * @param <T> the argument type
+ */
+public interface ToDoubleFunction<T> {
+	/**
+	 * @param argument the argument to the function
+	 * @return the result of applying the function to the argument
+	 */
+	double applyAsDouble(T argument);
+
+}
@@ -0,0 +1,448 @@
+package ca.usask.abm;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ABMStatsTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private static final ToDoubleFunction<double[]> AGE = new ToDoubleFunction<double[]>(){
+		public double applyAsDouble(double[] agent) { return agent[0]; }
+	};
+
+	/**
+	 * A model whose agents are {age} arrays, with a yearly count by age
+	 */
+	private static ABMStats<List<double[]>, Object> stats(){
+		return stats(true);
+	}
+
+	private static ABMStats<List<double[]>, Object> stats(boolean exportEmptyCells){
+		AgentStatisticsCollector<List<double[]>, double[]> collector = ageByYear();
+		collector.setExportEmptyCells(exportEmptyCells);
+		ABMStats<List<double[]>, Object> stats = new ABMStats<List<double[]>, Object>();
+		stats.addAgentCollector("AgeByYear", collector);
+		return stats;
+	}
+
+	/**
+	 * The yearly count and average age by age
+	 */
+	private static AgentStatisticsCollector<List<double[]>, double[]> ageByYear(){
+		Partition<Double> years = Partitions.range(0, 1, 20);
+		StatisticsSpec<double[]> spec = new StatisticsSpec<double[]>();
+		spec.addPartition("Age", Partitions.range(0, 1, 100).lift(Functions.boxed(AGE)));
+		spec.addTimePartition("Year", years);
+		spec.addStatistic("Count", Statistics.<double[]>count());
+		spec.addStatistic("Average age", Statistics.mean.onDouble(AGE));
+		Function<List<double[]>, Iterable<double[]>> all = new Function<List<double[]>, Iterable<double[]>>(){
+			public Iterable<double[]> apply(List<double[]> model) { return model; }
+		};
+		return new AgentStatisticsCollector<List<double[]>, double[]>(all, spec, years);
+	}
+
+	private static ABMStats<List<double[]>, Object> run(){
+		return run(true);
+	}
+
+	private static ABMStats<List<double[]>, Object> run(boolean exportEmptyCells){
+		return run(stats(exportEmptyCells));
+	}
+
+	private static ABMStats<List<double[]>, Object> run(ABMStats<List<double[]>, Object> stats){
+		List<double[]> agents = new ArrayList<double[]>();
+		for (int i = 0; i < 1000; i++) agents.add(new double[]{ (i * 37) % 100 + 0.5 });
+		for (double time = 0.5; time < 15; time += 0.25){
+			for (double[] agent : agents) agent[0] = (agent[0] + 0.25) % 100;
+			stats.timeChanged(time, agents);
+		}
+		return stats;
+	}
+
+	private static List<String> contents(File file) throws Exception {
+		List<String> cells = new ArrayList<String>();
+		FileInputStream in = new FileInputStream(file);
+		try {
+			Sheet sheet = new XSSFWorkbook(in).getSheet("AgeByYear");
+			for (Row row : sheet){
+				for (Cell cell : row) cells.add(cell.toString());
+			}
+		} finally {
+			in.close();
+		}
+		return cells;
+	}
+
+	@Test
+	public void streamingExportMatchesInMemoryExport() throws Exception {
+		File inMemory = new File(folder.getRoot(), "in-memory.xlsx");
+		File streaming = new File(folder.getRoot(), "streaming.xlsx");
+		run().exportToSpreadsheet(inMemory.getPath());
+		run().exportToSpreadsheet(streaming.getPath(), 10);
+		List<String> expected = contents(inMemory);
+		Assert.assertEquals(1 + 100 * 20, expected.size() / 4);
+		Assert.assertEquals(expected, contents(streaming));
+	}
+
+	@Test
+	public void emptyCellsCanBeSkipped() throws Exception {
+		File all = new File(folder.getRoot(), "all.xlsx");
+		File nonEmpty = new File(folder.getRoot(), "non-empty.xlsx");
+		run(true).exportToSpreadsheet(all.getPath());
+		run(false).exportToSpreadsheet(nonEmpty.getPath());
+		List<String> expected = new ArrayList<String>();
+		List<String> cells = contents(all);
+		for (int row = 0; row < cells.size() / 4; row++){
+			// the simulation stops in year 15; every age has agents in every year before that
+			if (row == 0 || Double.parseDouble(cells.get(4 * row + 2)) > 0){
+				expected.addAll(cells.subList(4 * row, 4 * row + 4));
+			}
+		}
+		Assert.assertEquals(1 + 100 * 15, expected.size() / 4);
+		Assert.assertEquals(expected, contents(nonEmpty));
+	}
+
+	@Test
+	public void delimitedExportMatchesSpreadsheet() throws Exception {
+		File xlsx = new File(folder.getRoot(), "stats.xlsx");
+		File dir = new File(folder.getRoot(), "csv");
+		ABMStats<List<double[]>, Object> stats = run();
+		stats.exportToSpreadsheet(xlsx.getPath());
+		stats.exportTo(dir.getPath(), ExportFormat.CSV);
+		stats.exportTo(dir.getPath(), ExportFormat.TSV);
+
+		List<String> cells = contents(xlsx);
+		List<String> csv = Files.readAllLines(new File(dir, "AgeByYear.csv").toPath(), Charset.forName("UTF-8"));
+		List<String> tsv = Files.readAllLines(new File(dir, "AgeByYear.tsv").toPath(), Charset.forName("UTF-8"));
+		Assert.assertEquals(cells.size() / 4, csv.size());
+		Assert.assertEquals("Age,Year,Count,Average age", csv.get(0));
+		for (int row = 0; row < csv.size(); row++){
+			String[] fields = csv.get(row).split(",(?=([^\"]*\"[^\"]*\")*[^\"]*$)");
+			Assert.assertEquals(csv.get(row).replace("\"", ""), tsv.get(row).replace('\t', ','));
+			for (int col = 0; col < 4; col++){
+				String expected = cells.get(4 * row + col);
+				if (row > 0 && col >= 2) Assert.assertEquals(Double.parseDouble(expected), Double.parseDouble(fields[col]), 0.0);
+				else Assert.assertEquals(expected, fields[col].replace("\"", ""));
+			}
+		}
+	}
+
+	/**
+	 * Two yearly collectors over the same agents and attribute, whose accessor counts its calls
+	 */
+	private static ABMStats<List<double[]>, Object> sharedStats(final int[] calls){
+		Attribute<double[]> age = new Attribute<double[]>("age", new ToDoubleFunction<double[]>(){
+			public double applyAsDouble(double[] agent) { calls[0]++; return agent[0]; }
+		});
+		Partition<Double> years = Partitions.range(0, 1, 20);
+		Function<List<double[]>, Iterable<double[]>> all = new Function<List<double[]>, Iterable<double[]>>(){
+			public Iterable<double[]> apply(List<double[]> model) { return model; }
+		};
+		ABMStats<List<double[]>, Object> stats = new ABMStats<List<double[]>, Object>();
+		StatisticsSpec<double[]> byAge = new StatisticsSpec<double[]>();
+		byAge.addPartition("Age", Partitions.range(0, 10, 100).liftDouble(age));
+		byAge.addTimePartition("Year", years);
+		byAge.addStatistic("Count", Statistics.<double[]>count());
+		byAge.addAttribute(age);
+		stats.addAgentCollector("ByAge", new AgentStatisticsCollector<List<double[]>, double[]>(all, byAge, years));
+		StatisticsSpec<double[]> averages = new StatisticsSpec<double[]>();
+		averages.addTimePartition("Year", years);
+		averages.addStatistic("Average age", Statistics.mean.onDouble(age));
+		averages.addStatistic("Median age", Statistics.median.onDouble(age));
+		averages.addAttribute(age);
+		stats.addAgentCollector("Averages", new AgentStatisticsCollector<List<double[]>, double[]>(all, averages, years));
+		return stats;
+	}
+
+	@Test
+	public void sharedSnapshotsReadEachAttributeOncePerTick() throws Exception {
+		int[] separateCalls = { 0 };
+		int[] sharedCalls = { 0 };
+		ABMStats<List<double[]>, Object> separate = sharedStats(separateCalls);
+		ABMStats<List<double[]>, Object> shared = sharedStats(sharedCalls);
+		shared.setSharedSnapshots(true);
+		List<double[]> agents = new ArrayList<double[]>();
+		for (int i = 0; i < 1000; i++) agents.add(new double[]{ (i * 37) % 100 + 0.5 });
+		int ticks = 0;
+		for (double time = 0.5; time < 10; time += 1){
+			for (double[] agent : agents) agent[0] = (agent[0] + 1) % 100;
+			separate.timeChanged(time, agents);
+			shared.timeChanged(time, agents);
+			ticks++;
+		}
+		Assert.assertEquals(3 * ticks * agents.size(), separateCalls[0]);
+		Assert.assertEquals(ticks * agents.size(), sharedCalls[0]);
+		Assert.assertEquals(ticks, shared.traversalsPerformed());
+		Assert.assertEquals(ticks, shared.traversalsSaved());
+
+		File dir = new File(folder.getRoot(), "shared");
+		separate.exportTo(new File(dir, "separate").getPath(), ExportFormat.CSV);
+		shared.exportTo(new File(dir, "shared").getPath(), ExportFormat.CSV);
+		for (String name : new String[]{ "ByAge.csv", "Averages.csv" }){
+			Assert.assertEquals(Files.readAllLines(new File(dir, "separate/" + name).toPath(), Charset.forName("UTF-8")),
+					Files.readAllLines(new File(dir, "shared/" + name).toPath(), Charset.forName("UTF-8")));
+		}
+	}
+
+	@Test
+	public void collectorsSharingAnAccessorAreFused() throws Exception {
+		final List<double[]> agents = new ArrayList<double[]>();
+		for (int i = 0; i < 1000; i++) agents.add(new double[]{ (i * 37) % 100 + 0.5 });
+		final int[] traversals = { 0 };
+		Function<List<double[]>, Iterable<double[]>> all = new Function<List<double[]>, Iterable<double[]>>(){
+			public Iterable<double[]> apply(final List<double[]> model) {
+				return new Iterable<double[]>(){
+					public Iterator<double[]> iterator() { traversals[0]++; return model.iterator(); }
+				};
+			}
+		};
+		Partition<Double> years = Partitions.range(0, 1, 20);
+		List<AgentStatisticsCollector<List<double[]>, double[]>> fused = new ArrayList<AgentStatisticsCollector<List<double[]>, double[]>>();
+		List<AgentStatisticsCollector<List<double[]>, double[]>> separate = new ArrayList<AgentStatisticsCollector<List<double[]>, double[]>>();
+		ABMStats<List<double[]>, Object> stats = new ABMStats<List<double[]>, Object>();
+		for (int width : new int[]{ 1, 5, 10 }){
+			StatisticsSpec<double[]> spec = new StatisticsSpec<double[]>();
+			spec.addPartition("Age", Partitions.range(0, width, 100).liftDouble(AGE));
+			spec.addTimePartition("Year", years);
+			spec.addStatistic("Count", Statistics.<double[]>count());
+			spec.addStatistic("Average age", Statistics.mean.onDouble(AGE));
+			fused.add(new AgentStatisticsCollector<List<double[]>, double[]>(all, spec, years));
+			separate.add(new AgentStatisticsCollector<List<double[]>, double[]>(all, spec, years));
+			stats.addAgentCollector("Width " + width, fused.get(fused.size() - 1));
+		}
+		int ticks = 0;
+		for (double time = 0.5; time < 10; time += 1){
+			for (double[] agent : agents) agent[0] = (agent[0] + 1) % 100;
+			stats.timeChanged(time, agents);
+			for (AgentStatisticsCollector<List<double[]>, double[]> collector : separate) collector.update(time, agents);
+			ticks++;
+		}
+		Assert.assertEquals(ticks * (1 + 3), traversals[0]);
+		Assert.assertEquals(ticks, stats.traversalsPerformed());
+		Assert.assertEquals(2 * ticks, stats.traversalsSaved());
+		for (int c = 0; c < fused.size(); c++){
+			StatisticsCube expected = separate.get(c).partitionedStats;
+			StatisticsCube actual = fused.get(c).partitionedStats;
+			for (long cell = 0; cell < expected.cells(); cell++){
+				Assert.assertArrayEquals(expected.getCell(cell), actual.getCell(cell), 0.0);
+			}
+		}
+	}
+
+	@Test
+	public void spilledCellsExportLikeInMemoryCells() throws Exception {
+		for (boolean exportEmptyCells : new boolean[]{ true, false }){
+			File inMemory = new File(folder.getRoot(), "in-memory-" + exportEmptyCells + ".xlsx");
+			File spilled = new File(folder.getRoot(), "spilled-" + exportEmptyCells + ".xlsx");
+			File spillDir = new File(folder.getRoot(), "spill-" + exportEmptyCells);
+			run(exportEmptyCells).exportToSpreadsheet(inMemory.getPath());
+			ABMStats<List<double[]>, Object> stats = stats(exportEmptyCells);
+			stats.setSpillDirectory(spillDir.getPath());
+			run(stats).exportToSpreadsheet(spilled.getPath());
+			// one record per non-empty cell: the cell index and two statistics
+			Assert.assertEquals(100 * 15 * (8 + 2 * 8), new File(spillDir, "AgeByYear.cells").length());
+			Assert.assertEquals(contents(inMemory), contents(spilled));
+		}
+	}
+
+	@Test
+	public void sampledSpilledCellsExportLikeInMemoryCells() throws Exception {
+		List<List<String>> exports = new ArrayList<List<String>>();
+		for (boolean spilled : new boolean[]{ false, true }){
+			AgentStatisticsCollector<List<double[]>, double[]> collector = ageByYear();
+			// the standard errors widen the cube after the spill file is set
+			if (spilled) collector.setSpillFile(new File(folder.getRoot(), "AgeByYear.cells"));
+			collector.setSampling(Sampling.bernoulli(0.5, 1));
+			ABMStats<List<double[]>, Object> stats = new ABMStats<List<double[]>, Object>();
+			stats.addAgentCollector("AgeByYear", collector);
+			File dir = new File(folder.getRoot(), spilled ? "spilled" : "in-memory");
+			run(stats).exportTo(dir.getPath(), ExportFormat.CSV);
+			exports.add(Files.readAllLines(new File(dir, "AgeByYear.csv").toPath(), Charset.forName("UTF-8")));
+		}
+		Assert.assertEquals(Arrays.asList("Age", "Year", "Count", "Count (SE)", "Average age", "Average age (SE)"),
+				Arrays.asList(exports.get(0).get(0).split(",")));
+		Assert.assertEquals(exports.get(0), exports.get(1));
+	}
+
+	@Test
+	public void metricsCountObjectsRejectionsAndCells() throws Exception {
+		Partition<Double> years = Partitions.range(0, 1, 20);
+		StatisticsSpec<double[]> spec = new StatisticsSpec<double[]>();
+		spec.setCondition(new Function<double[], Boolean>(){
+			public Boolean apply(double[] agent) { return agent[0] < 90; }
+		});
+		spec.addPartition("Age", Partitions.range(0, 1, 100).liftDouble(AGE));
+		spec.addTimePartition("Year", years);
+		spec.addStatistic("Count", Statistics.<double[]>count());
+		Function<List<double[]>, Iterable<double[]>> all = new Function<List<double[]>, Iterable<double[]>>(){
+			public Iterable<double[]> apply(List<double[]> model) { return model; }
+		};
+		ABMStats<List<double[]>, Object> stats = new ABMStats<List<double[]>, Object>();
+		stats.addAgentCollector("AgeByYear", new AgentStatisticsCollector<List<double[]>, double[]>(all, spec, years));
+		Assert.assertTrue(stats.metrics().isEmpty());
+		stats.registerMetrics("metrics-test");
+		try {
+			// 90 counted agents, 10 too old for the condition, 5 outside of the age partition
+			List<double[]> agents = new ArrayList<double[]>();
+			for (int i = 0; i < 100; i++) agents.add(new double[]{ i + 0.5 });
+			for (int i = 0; i < 5; i++) agents.add(new double[]{ -1 });
+			for (int year = 0; year < 5; year++) stats.timeChanged(year + 0.5, agents);
+			stats.exportTo(folder.getRoot().getPath(), ExportFormat.CSV);
+
+			CollectorMetrics.Snapshot m = stats.metrics().get("AgeByYear");
+			Assert.assertEquals(5 * 105, m.getObjectsIngested());
+			Assert.assertEquals(5 * 10, m.getRejectedByCondition());
+			Assert.assertEquals(5 * 5, m.getRejectedInvalid());
+			Assert.assertEquals(5 * 90, m.getCellsTouched());
+			Assert.assertTrue(m.getClassificationNanos() > 0);
+			Assert.assertTrue(m.getStatisticsNanos() > 0);
+			Assert.assertTrue(m.getExportNanos() > 0);
+			Assert.assertTrue(m.getCubeMemoryBytes() > 0);
+
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName("ca.usask.abm:type=CollectorMetrics,stats=\"metrics-test\",name=\"AgeByYear\"");
+			Assert.assertEquals(5L * 105, server.getAttribute(name, "ObjectsIngested"));
+			stats.unregisterMetrics();
+			Assert.assertFalse(server.isRegistered(name));
+		} finally {
+			stats.unregisterMetrics();
+		}
+	}
+
+	/**
+	 * The yearly count by age, along with a yearly count of Double events by value
+	 */
+	private static ABMStats<List<double[]>, Object> checkpointedStats(int ageStep){
+		ABMStats<List<double[]>, Object> stats = stats();
+		Partition<Double> years = Partitions.range(0, 1, 20);
+		StatisticsSpec<Double> spec = new StatisticsSpec<Double>();
+		spec.addPartition("Value", Partitions.range(0, ageStep, 100));
+		spec.addTimePartition("Year", years);
+		spec.addStatistic("Count", Statistics.<Double>count());
+		spec.addStatistic("Total", Statistics.sum);
+		EventStatisticsCollector<Object, Double> events = new EventStatisticsCollector<Object, Double>(Double.class, spec, years);
+		events.setEventCodec(new EventCodec<Double>(){
+			public int maxEncodedSize() { return 8; }
+			public void encode(Double event, ByteBuffer out) { out.putDouble(event); }
+			public Double decode(ByteBuffer in) { return in.getDouble(); }
+		});
+		stats.addEventCollector("Events", events);
+		return stats;
+	}
+
+	/**
+	 * Runs the model over [from, to), reporting an event per agent every other tick
+	 */
+	private static void run(ABMStats<List<double[]>, Object> stats, List<double[]> agents, double from, double to){
+		for (double time = from; time < to; time += 0.25){
+			for (double[] agent : agents) agent[0] = (agent[0] + 0.25) % 100;
+			stats.timeChanged(time, agents);
+			if ((int) (time * 4) % 2 == 0){
+				for (double[] agent : agents) stats.event(time, agent[0]);
+			}
+		}
+	}
+
+	@Test
+	public void restoredRunMatchesUninterruptedRun() throws Exception {
+		List<double[]> agents = new ArrayList<double[]>();
+		for (int i = 0; i < 500; i++) agents.add(new double[]{ (i * 37) % 100 + 0.5 });
+		List<double[]> copy = new ArrayList<double[]>();
+		for (double[] agent : agents) copy.add(agent.clone());
+
+		ABMStats<List<double[]>, Object> uninterrupted = checkpointedStats(1);
+		run(uninterrupted, agents, 0.5, 15);
+		uninterrupted.exportTo(new File(folder.getRoot(), "uninterrupted").getPath(), ExportFormat.CSV);
+
+		// stop in the middle of a year, with pending events, and resume in a new object
+		File checkpoint = new File(folder.getRoot(), "run.ckpt");
+		ABMStats<List<double[]>, Object> interrupted = checkpointedStats(1);
+		run(interrupted, copy, 0.5, 7.75);
+		interrupted.checkpoint(checkpoint.getPath());
+		ABMStats<List<double[]>, Object> resumed = checkpointedStats(1);
+		resumed.restore(checkpoint.getPath());
+		run(resumed, copy, 7.75, 15);
+		resumed.exportTo(new File(folder.getRoot(), "resumed").getPath(), ExportFormat.CSV);
+
+		for (String name : new String[]{ "AgeByYear.csv", "Events.csv" }){
+			List<String> expected = Files.readAllLines(new File(folder.getRoot(), "uninterrupted/" + name).toPath(), Charset.forName("UTF-8"));
+			Assert.assertEquals(expected, Files.readAllLines(new File(folder.getRoot(), "resumed/" + name).toPath(), Charset.forName("UTF-8")));
+		}
+	}
+
+	@Test
+	public void truncatedCheckpointLeavesTheCollectorsAlone() throws Exception {
+		List<double[]> agents = new ArrayList<double[]>();
+		for (int i = 0; i < 100; i++) agents.add(new double[]{ i + 0.5 });
+		File checkpoint = new File(folder.getRoot(), "run.ckpt");
+		ABMStats<List<double[]>, Object> stats = checkpointedStats(1);
+		run(stats, agents, 0.5, 3.75); // with pending events
+		stats.checkpoint(checkpoint.getPath());
+		byte[] bytes = Files.readAllBytes(checkpoint.toPath());
+		File empty = new File(folder.getRoot(), "empty.ckpt");
+		checkpointedStats(1).checkpoint(empty.getPath());
+		byte[] unchanged = Files.readAllBytes(empty.toPath());
+
+		File truncated = new File(folder.getRoot(), "truncated.ckpt");
+		File after = new File(folder.getRoot(), "after.ckpt");
+		// every cut near the end, through the pending events, and some before
+		for (int length = 8; length < bytes.length; length += length < bytes.length - 64 ? 97 : 1){
+			Files.write(truncated.toPath(), Arrays.copyOf(bytes, length));
+			ABMStats<List<double[]>, Object> resumed = checkpointedStats(1);
+			try {
+				resumed.restore(truncated.getPath());
+				Assert.fail("restored " + length + " bytes out of " + bytes.length);
+			} catch (IOException e) {
+				// expected
+			}
+			resumed.checkpoint(after.getPath());
+			Assert.assertArrayEquals(unchanged, Files.readAllBytes(after.toPath()));
+		}
+	}
+
+	@Test
+	public void checkpointOfAnotherSpecIsRejected() throws Exception {
+		List<double[]> agents = new ArrayList<double[]>();
+		for (int i = 0; i < 100; i++) agents.add(new double[]{ i + 0.5 });
+		File checkpoint = new File(folder.getRoot(), "run.ckpt");
+		ABMStats<List<double[]>, Object> stats = checkpointedStats(1);
+		run(stats, agents, 0.5, 3);
+		stats.checkpoint(checkpoint.getPath());
+		try {
+			// same names and statistics, but events are partitioned differently
+			checkpointedStats(2).restore(checkpoint.getPath());
+			Assert.fail();
+		} catch (IOException e) {
+			Assert.assertTrue(e.getMessage().contains("Events"));
+		}
+		try {
+			stats().restore(checkpoint.getPath());
+			Assert.fail();
+		} catch (IOException e) {
+			Assert.assertTrue(e.getMessage().contains("collectors"));
+		}
+	}
+}
@@ -0,0 +1,154 @@
+package ca.usask.abm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class AgentStatisticsCollectorTest {
+
+	/**
+	 * agents are {age, income} pairs; incomes are whole numbers so that sums are exact in any order
+	 */
+	private static final ToDoubleFunction<double[]> AGE = new ToDoubleFunction<double[]>(){
+		public double applyAsDouble(double[] agent) { return agent[0]; }
+	};
+	private static final ToDoubleFunction<double[]> INCOME = new ToDoubleFunction<double[]>(){
+		public double applyAsDouble(double[] agent) { return agent[1]; }
+	};
+
+	private static List<double[]> population(int size){
+		Random random = new Random(3);
+		List<double[]> agents = new ArrayList<double[]>(size);
+		for (int i = 0; i < size; i++){
+			agents.add(new double[]{ random.nextInt(100), random.nextInt(200000) });
+		}
+		return agents;
+	}
+
+	private static AgentStatisticsCollector<List<double[]>, double[]> collector(){
+		Partition<Double> decades = Partitions.range(0, 10, 100);
+		StatisticsSpec<double[]> spec = new StatisticsSpec<double[]>();
+		spec.addPartition("Age", Partitions.range(0, 5, 100).lift(Functions.boxed(AGE)));
+		spec.addTimePartition("Decade", decades);
+		spec.addStatistic("Count", Statistics.<double[]>count());
+		spec.addStatistic("Total Income", Statistics.sum.onDouble(INCOME));
+		spec.addStatistic("Average Income", Statistics.mean.onDouble(INCOME));
+		Function<List<double[]>, Iterable<double[]>> all = new Function<List<double[]>, Iterable<double[]>>(){
+			public Iterable<double[]> apply(List<double[]> model) { return model; }
+		};
+		return new AgentStatisticsCollector<List<double[]>, double[]>(all, spec, decades);
+	}
+
+	@Test
+	public void parallelMatchesSequential(){
+		List<double[]> agents = population(100000);
+		AgentStatisticsCollector<List<double[]>, double[]> sequential = collector();
+		AgentStatisticsCollector<List<double[]>, double[]> parallel = collector();
+		ForkJoinPool pool = new ForkJoinPool(4);
+		try {
+			parallel.setParallel(pool, 1000);
+			for (double time = 5; time < 100; time += 10){
+				sequential.update(time, agents);
+				parallel.update(time, agents);
+			}
+		} finally {
+			pool.shutdown();
+		}
+		Assert.assertEquals(sequential.partitionedStats.cells(), parallel.partitionedStats.cells());
+		for (int i = 0; i < sequential.partitionedStats.cells(); i++){
+			Assert.assertArrayEquals(sequential.partitionedStats.getCell(i), parallel.partitionedStats.getCell(i), 0.0);
+		}
+		// sanity check: every agent was counted once per decade
+		double total = 0;
+		for (int i = 0; i < parallel.partitionedStats.cells(); i++) total += parallel.partitionedStats.get(i, 0);
+		Assert.assertEquals(10 * agents.size(), total, 0.0);
+	}
+
+	@Test
+	public void sampledEstimatesAreWithinTheirStandardErrors(){
+		List<double[]> agents = population(200000);
+		AgentStatisticsCollector<List<double[]>, double[]> census = collector();
+		AgentStatisticsCollector<List<double[]>, double[]> sampled = collector();
+		sampled.setSampling(Sampling.bernoulli(0.1, 7));
+		census.update(5, agents);
+		sampled.update(5, agents);
+		Assert.assertEquals(6, sampled.statisticNames().size());
+		Assert.assertEquals("Count (SE)", sampled.statisticNames().get(1));
+		for (int i = 0; i < census.partitionedStats.cells(); i++){
+			double[] exact = census.partitionedStats.getCell(i);
+			double[] estimate = sampled.partitionedStats.getCell(i);
+			if (exact[0] == 0) continue;
+			for (int s = 0; s < 3; s++){
+				double se = estimate[2 * s + 1];
+				Assert.assertTrue(se > 0);
+				Assert.assertEquals(exact[s], estimate[2 * s], 5 * se);
+			}
+		}
+	}
+
+	@Test
+	public void sampledBatchOutputsAreScaledWhenExtensive(){
+		Partition<Double> decades = Partitions.range(0, 10, 100);
+		StatisticsSpec<double[]> spec = new StatisticsSpec<double[]>();
+		spec.addPartition("Age", Partitions.range(0, 5, 100).lift(Functions.boxed(AGE)));
+		spec.addTimePartition("Decade", decades);
+		spec.addStatistics(Statistics.sortedValues(Arrays.asList("Total Income", "Median Income"),
+				new Statistics.SortedValuesFunction(){
+			public void evaluate(double[] sorted, int size, double sum, double[] out) {
+				out[0] = sum;
+				out[1] = Statistics.percentileOfSorted(sorted, size, 50);
+			}
+		}).on(INCOME), "Total Income");
+		Function<List<double[]>, Iterable<double[]>> all = new Function<List<double[]>, Iterable<double[]>>(){
+			public Iterable<double[]> apply(List<double[]> model) { return model; }
+		};
+		List<double[]> agents = population(200000);
+		AgentStatisticsCollector<List<double[]>, double[]> census = new AgentStatisticsCollector<List<double[]>, double[]>(all, spec, decades);
+		AgentStatisticsCollector<List<double[]>, double[]> sampled = new AgentStatisticsCollector<List<double[]>, double[]>(all, spec, decades);
+		sampled.setSampling(Sampling.bernoulli(0.1, 7));
+		census.update(5, agents);
+		sampled.update(5, agents);
+		Assert.assertEquals(Arrays.asList("Total Income", "Total Income (SE)", "Median Income", "Median Income (SE)"),
+				sampled.statisticNames());
+		for (int i = 0; i < census.partitionedStats.cells(); i++){
+			double[] exact = census.partitionedStats.getCell(i);
+			double[] estimate = sampled.partitionedStats.getCell(i);
+			if (exact[0] == 0) continue;
+			for (int s = 0; s < 2; s++){
+				double se = estimate[2 * s + 1];
+				Assert.assertTrue(se > 0);
+				Assert.assertEquals(exact[s], estimate[2 * s], 5 * se);
+			}
+		}
+	}
+
+	@Test
+	public void reservoirOfTheWholePopulationIsACensus(){
+		List<double[]> agents = population(1000);
+		AgentStatisticsCollector<List<double[]>, double[]> census = collector();
+		AgentStatisticsCollector<List<double[]>, double[]> sampled = collector();
+		sampled.setSampling(Sampling.reservoir(1000, 7));
+		census.update(5, agents);
+		sampled.update(5, agents);
+		for (int i = 0; i < census.partitionedStats.cells(); i++){
+			double[] exact = census.partitionedStats.getCell(i);
+			double[] estimate = sampled.partitionedStats.getCell(i);
+			if (exact[0] == 0) continue;
+			Assert.assertEquals(exact[0], estimate[0], 0.0);
+			Assert.assertEquals(0, estimate[1], 0.0);
+			Assert.assertEquals(exact[2], estimate[4], 1e-9 * exact[2]);
+		}
+		// a smaller reservoir scales the total count back to the population
+		AgentStatisticsCollector<List<double[]>, double[]> small = collector();
+		small.setSampling(Sampling.reservoir(100, 7));
+		small.update(5, agents);
+		double total = 0;
+		for (int i = 0; i < small.partitionedStats.cells(); i++) total += small.partitionedStats.get(i, 0);
+		Assert.assertEquals(agents.size(), total, 1e-9);
+	}
+}
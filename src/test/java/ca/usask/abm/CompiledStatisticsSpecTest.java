@@ -0,0 +1,61 @@
+package ca.usask.abm;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class CompiledStatisticsSpecTest {
+
+	private static final ToDoubleFunction<double[]> AGE = new ToDoubleFunction<double[]>(){
+		public double applyAsDouble(double[] agent) { return agent[0]; }
+	};
+	private static final ToDoubleFunction<double[]> INCOME = new ToDoubleFunction<double[]>(){
+		public double applyAsDouble(double[] agent) { return agent[1]; }
+	};
+
+	@Test
+	public void cellIndexMatchesPartitionIDs(){
+		StatisticsSpec<double[]> spec = new StatisticsSpec<double[]>();
+		spec.setCondition(new Function<double[], Boolean>(){
+			public Boolean apply(double[] agent) { return agent[0] >= 18; }
+		});
+		spec.addPartition("Age", Partitions.range(0, 5, 100).liftDouble(AGE));
+		spec.addPartition("Income", Partitions.between(Arrays.asList(1.0, 10000.0, 50000.0)).liftDouble(INCOME));
+		spec.addTimePartition("Decade", Partitions.range(0, 10, 50));
+		spec.addStatistic("Count", Statistics.<double[]>count());
+		CompiledStatisticsSpec<double[]> compiled = spec.compile();
+
+		StatisticsCube cube = new DenseStatisticsCube(spec.partitionDimensions(), Arrays.asList(0.0));
+		Assert.assertEquals(cube.cells(), compiled.cells());
+		Assert.assertEquals(1, compiled.statistics());
+		Random random = new Random(5);
+		int excluded = 0;
+		for (int i = 0; i < 10000; i++){
+			double[] agent = { random.nextDouble() * 110, random.nextDouble() * 60000 };
+			Timed<double[]> timed = new Timed<double[]>(random.nextDouble() * 60, agent);
+			List<Integer> ids = spec.evalPartitionsOn(timed);
+			long index = compiled.cellIndex(timed);
+			if (ids == null){
+				Assert.assertEquals(CompiledStatisticsSpec.EXCLUDED, index);
+				excluded++;
+			} else {
+				Assert.assertEquals(cube.toLinearIndex(ids), index);
+			}
+		}
+		Assert.assertTrue(excluded > 0 && excluded < 10000);
+	}
+
+	@Test
+	public void compiledSpecIsFrozen(){
+		StatisticsSpec<double[]> spec = new StatisticsSpec<double[]>();
+		spec.addPartition("Age", Partitions.range(0, 5, 100).liftDouble(AGE));
+		CompiledStatisticsSpec<double[]> compiled = spec.compile();
+		spec.addPartition("Income", Partitions.range(0, 1000, 10000).liftDouble(INCOME));
+		spec.addStatistic("Count", Statistics.<double[]>count());
+		Assert.assertArrayEquals(new int[]{ 20 }, compiled.dimensions());
+		Assert.assertEquals(0, compiled.createAccumulators().size());
+	}
+}
@@ -0,0 +1,256 @@
+package ca.usask.abm;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class EventStatisticsCollectorTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private static final int THREADS = 8;
+	private static final int EVENTS_PER_DECADE = 20000;
+	private static final int DECADES = 5;
+
+	/**
+	 * A death event, reported with the age at death
+	 */
+	private static class Death {
+		final double age;
+		Death(double age) { this.age = age; }
+	}
+
+	/**
+	 * A more specific death event
+	 */
+	private static class AccidentalDeath extends Death {
+		AccidentalDeath(double age) { super(age); }
+	}
+
+	private static final ToDoubleFunction<Death> AGE = new ToDoubleFunction<Death>(){
+		public double applyAsDouble(Death d) { return d.age; }
+	};
+
+	private static EventStatisticsCollector<Object, Death> collector(){
+		Partition<Double> decades = Partitions.range(0, 10, 10 * DECADES);
+		StatisticsSpec<Death> spec = new StatisticsSpec<Death>();
+		spec.addPartition("Age", Partitions.range(0, 5, 100).lift(Functions.boxed(AGE)));
+		spec.addTimePartition("Decade", decades);
+		spec.addStatistic("Deaths", Statistics.<Death>count());
+		spec.addStatistic("Total age", Statistics.sum.onDouble(AGE));
+		return new EventStatisticsCollector<Object, Death>(Death.class, spec, decades);
+	}
+
+	private static ABMStats<Object, Object> stats(EventStatisticsCollector<Object, Death> collector, boolean concurrent){
+		ABMStats<Object, Object> stats = new ABMStats<Object, Object>();
+		stats.setConcurrentEvents(concurrent);
+		stats.addEventCollector("Deaths", collector);
+		return stats;
+	}
+
+	/**
+	 * the event reported by the given thread at the given step of the given decade
+	 */
+	private static double time(int decade, int step){
+		return 10 * decade + 1 + 8.0 * step / EVENTS_PER_DECADE;
+	}
+	private static Death death(int thread, int step){
+		return new Death((thread * 7 + step) % 100);
+	}
+
+	@Test
+	public void concurrentIngestionCountsExactly() throws Exception {
+		// reference: every event reported by a single thread
+		EventStatisticsCollector<Object, Death> expected = collector();
+		ABMStats<Object, Object> sequential = stats(expected, false);
+		for (int decade = 0; decade < DECADES; decade++){
+			for (int thread = 0; thread < THREADS; thread++){
+				for (int step = 0; step < EVENTS_PER_DECADE; step++){
+					sequential.event(time(decade, step), death(thread, step));
+				}
+			}
+		}
+
+		// the same events, reported concurrently; threads wait for each other at decade boundaries
+		EventStatisticsCollector<Object, Death> actual = collector();
+		final ABMStats<Object, Object> concurrent = stats(actual, true);
+		final CyclicBarrier barrier = new CyclicBarrier(THREADS);
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		Thread[] threads = new Thread[THREADS];
+		for (int t = 0; t < THREADS; t++){
+			final int thread = t;
+			threads[t] = new Thread(){
+				public void run(){
+					try {
+						for (int decade = 0; decade < DECADES; decade++){
+							for (int step = 0; step < EVENTS_PER_DECADE; step++){
+								concurrent.event(time(decade, step), death(thread, step));
+								// mix in events the collector must ignore
+								if (step % 100 == 0) concurrent.event(time(decade, step), "not a death");
+							}
+							barrier.await();
+						}
+					} catch (Throwable e){
+						failure.set(e);
+					}
+				}
+			};
+			threads[t].start();
+		}
+		for (Thread thread : threads) thread.join();
+		Assert.assertNull(failure.get());
+
+		expected.flushBuffer();
+		actual.flushBuffer();
+		double total = 0;
+		for (int i = 0; i < expected.partitionedStats.cells(); i++){
+			Assert.assertArrayEquals(expected.partitionedStats.getCell(i), actual.partitionedStats.getCell(i), 0.0);
+			total += actual.partitionedStats.get(i, 0);
+		}
+		Assert.assertEquals((double) THREADS * EVENTS_PER_DECADE * DECADES, total, 0.0);
+	}
+
+	@Test
+	public void eventsAreDispatchedByClass(){
+		EventStatisticsCollector<Object, Death> exact = collector();
+		EventStatisticsCollector<Object, Death> withSubclasses = collector();
+		withSubclasses.setMatchSubclasses(true);
+		ABMStats<Object, Object> stats = new ABMStats<Object, Object>();
+		stats.addEventCollector("Exact", exact);
+		stats.event(1, new Death(10)); // seen before the second collector is added
+		stats.addEventCollector("With subclasses", withSubclasses);
+		for (int i = 0; i < 100; i++){
+			stats.event(2, new Death(i));
+			stats.event(3, new AccidentalDeath(i));
+			stats.event(4, "not a death");
+		}
+		stats.event(15, new Death(10)); // move both collectors to the next decade
+		Assert.assertTrue(exact.accepts(Death.class));
+		Assert.assertFalse(exact.accepts(AccidentalDeath.class));
+		Assert.assertTrue(withSubclasses.accepts(AccidentalDeath.class));
+		double exactDeaths = 0, allDeaths = 0;
+		for (long cell = 0; cell < exact.partitionedStats.cells(); cell++){
+			exactDeaths += exact.partitionedStats.get(cell, 0);
+			allDeaths += withSubclasses.partitionedStats.get(cell, 0);
+		}
+		Assert.assertEquals(1 + 100, exactDeaths, 0.0);
+		Assert.assertEquals(200, allDeaths, 0.0);
+	}
+
+	@Test
+	public void asyncFlushesMatchSynchronousFlushes() throws Exception {
+		final Set<Thread> processingThreads = Collections.newSetFromMap(new ConcurrentHashMap<Thread, Boolean>());
+		ToDoubleFunction<Death> recordingAge = new ToDoubleFunction<Death>(){
+			public double applyAsDouble(Death d) {
+				processingThreads.add(Thread.currentThread());
+				return d.age;
+			}
+		};
+		Partition<Double> decades = Partitions.range(0, 10, 10 * DECADES);
+		StatisticsSpec<Death> spec = new StatisticsSpec<Death>();
+		spec.addPartition("Age", Partitions.range(0, 5, 100).liftDouble(AGE));
+		spec.addTimePartition("Decade", decades);
+		spec.addStatistic("Deaths", Statistics.<Death>count());
+		spec.addStatistic("Total age", Statistics.sum.onDouble(recordingAge));
+		EventStatisticsCollector<Object, Death> expected = collector();
+		EventStatisticsCollector<Object, Death> actual = new EventStatisticsCollector<Object, Death>(Death.class, spec, decades);
+		ABMStats<Object, Object> sync = stats(expected, false);
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			ABMStats<Object, Object> async = new ABMStats<Object, Object>();
+			async.setAsyncEvents(executor, 2);
+			async.addEventCollector("Deaths", actual);
+			Assert.assertTrue(actual.isAsync());
+			for (int decade = 0; decade < DECADES; decade++){
+				for (int step = 0; step < EVENTS_PER_DECADE; step++){
+					sync.event(time(decade, step), death(decade, step));
+					async.event(time(decade, step), death(decade, step));
+				}
+			}
+			expected.flushBuffer();
+			actual.flushBuffer();
+			actual.awaitFlushes();
+		} finally {
+			executor.shutdown();
+		}
+		for (int i = 0; i < expected.partitionedStats.cells(); i++){
+			Assert.assertArrayEquals(expected.partitionedStats.getCell(i), actual.partitionedStats.getCell(i), 0.0);
+		}
+		// every decade was processed in the background
+		Assert.assertEquals(1, processingThreads.size());
+		Assert.assertFalse(processingThreads.contains(Thread.currentThread()));
+	}
+
+	@Test
+	public void queriesLeaveTheOpenTimePartitionAlone() throws Exception {
+		EventStatisticsCollector<Object, Death> expected = collector();
+		EventStatisticsCollector<Object, Death> actual = collector();
+		ABMStats<Object, Object> uninterrupted = stats(expected, false);
+		ABMStats<Object, Object> queried = stats(actual, false);
+		StatisticsQuery first = null;
+		for (int decade = 0; decade < DECADES; decade++){
+			for (int step = 0; step < EVENTS_PER_DECADE; step++){
+				if (step == EVENTS_PER_DECADE / 2){
+					// the query sees the events of the open decade, without processing them
+					StatisticsQuery query = actual.query();
+					Assert.assertEquals(decade * EVENTS_PER_DECADE + step, query.sum("Deaths"), 0.0);
+					Assert.assertEquals(step, query.where("Decade", decade).sum("Deaths"), 0.0);
+					Assert.assertEquals(step, actual.objectBuffer.size());
+					if (first == null) first = query;
+				}
+				uninterrupted.event(time(decade, step), death(decade, step));
+				queried.event(time(decade, step), death(decade, step));
+			}
+		}
+		expected.flushBuffer();
+		actual.flushBuffer();
+		for (int i = 0; i < expected.partitionedStats.cells(); i++){
+			Assert.assertArrayEquals(expected.partitionedStats.getCell(i), actual.partitionedStats.getCell(i), 0.0);
+		}
+		Assert.assertEquals(EVENTS_PER_DECADE / 2, first.sum("Deaths"), 0.0);
+		Assert.assertEquals(DECADES * EVENTS_PER_DECADE, actual.query().sum("Deaths"), 0.0);
+	}
+
+	@Test
+	public void spilledEventsMatchBufferedEvents() throws Exception {
+		EventCodec<Death> codec = new EventCodec<Death>(){
+			public int maxEncodedSize() { return 8; }
+			public void encode(Death event, ByteBuffer out) { out.putDouble(event.age); }
+			public Death decode(ByteBuffer in) { return new Death(in.getDouble()); }
+		};
+		File dir = new File(folder.getRoot(), "events");
+		EventStatisticsCollector<Object, Death> expected = collector();
+		EventStatisticsCollector<Object, Death> actual = collector();
+		// small regions, so that the events of a decade span many of them
+		actual.setEventSpill(dir, codec, 1000, 4096);
+		ABMStats<Object, Object> buffered = stats(expected, false);
+		ABMStats<Object, Object> spilled = stats(actual, false);
+		for (int decade = 0; decade < DECADES; decade++){
+			for (int step = 0; step < EVENTS_PER_DECADE; step++){
+				buffered.event(time(decade, step), death(decade, step));
+				spilled.event(time(decade, step), death(decade, step));
+			}
+			Assert.assertEquals(EVENTS_PER_DECADE, actual.spilledEvents());
+			Assert.assertTrue(actual.objectBuffer.isEmpty());
+		}
+		expected.flushBuffer();
+		actual.flushBuffer();
+		Assert.assertEquals(0, actual.spilledEvents());
+		Assert.assertEquals(0, dir.list().length); // processed files are deleted
+		for (int i = 0; i < expected.partitionedStats.cells(); i++){
+			Assert.assertArrayEquals(expected.partitionedStats.getCell(i), actual.partitionedStats.getCell(i), 0.0);
+		}
+	}
+}
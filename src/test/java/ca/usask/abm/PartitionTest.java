@@ -1,12 +1,93 @@
 package ca.usask.abm;
 
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
 import org.junit.Test;
 import org.junit.Assert;
 
 public class PartitionTest {
 
+	private static final ToDoubleFunction<double[]> FIRST = new ToDoubleFunction<double[]>(){
+		public double applyAsDouble(double[] x) { return x[0]; }
+	};
+
+	@Test
+	public void rangeIncludesLowerBoundsAndMax(){
+		DoublePartition decades = Partitions.range(0, 10, 100);
+		Assert.assertEquals(9, decades.maxID());
+		Assert.assertEquals(0, decades.toID(0.0));
+		Assert.assertEquals(0, decades.toID(10.0)); // boundaries fall into the lower interval
+		Assert.assertEquals(1, decades.toID(10.5));
+		Assert.assertEquals(9, decades.toID(100.0));
+		Assert.assertEquals(Partition.INVALID_ID, decades.toID(-0.5));
+		Assert.assertEquals(Partition.INVALID_ID, decades.toID(100.5));
+		Assert.assertEquals(Partition.INVALID_ID, decades.toID((Double) null));
+		Assert.assertEquals(decades.toID(55.0), decades.toID(Double.valueOf(55)));
+		Assert.assertEquals(Partitions.range(0, 10, 100), decades);
+		Assert.assertEquals(Partitions.range(0, 10, 100).hashCode(), decades.hashCode());
+		Assert.assertFalse(Partitions.range(0, 5, 100).equals(decades));
+	}
+
+	@Test
+	public void betweenMatchesLinearScan(){
+		List<Double> endpoints = Arrays.asList(1.0, 5000.0, 10000.0, 20000.0, 50000.0, 100000.0);
+		DoublePartition groups = Partitions.between(endpoints);
+		Assert.assertEquals(endpoints.size(), groups.maxID());
+		Random random = new Random(3);
+		for (int i = 0; i < 10000; i++){
+			double x = i < endpoints.size() ? endpoints.get(i) : random.nextDouble() * 120000 - 1000;
+			int expected = 0;
+			while (expected < endpoints.size() && !(x < endpoints.get(expected))) expected++;
+			Assert.assertEquals(expected, groups.toID(x));
+		}
+	}
+
+	@Test
+	public void primitiveLiftTreatsNaNAsMissing(){
+		Partition<double[]> lifted = Partitions.range(0, 1, 10).liftDouble(FIRST);
+		Partition<double[]> boxed = Partitions.range(0, 1, 10).lift(Functions.boxed(FIRST));
+		for (double x : new double[]{ -1, 0, 0.5, 1, 3.7, 10, 11, Double.NaN }){
+			double[] elem = { x };
+			Assert.assertEquals(boxed.toID(elem), lifted.toID(elem));
+		}
+		Assert.assertEquals(Partition.INVALID_ID, lifted.toID(null));
+		Assert.assertEquals(9, lifted.maxID());
+	}
+
+	@Test
+	public void intRangeLift(){
+		IntPartition digits = Partitions.intRange(1, 9);
+		Partition<int[]> lifted = digits.liftInt(new ToIntFunction<int[]>(){
+			public int applyAsInt(int[] x) { return x[0]; }
+		});
+		Assert.assertEquals(8, lifted.maxID());
+		Assert.assertEquals(0, lifted.toID(new int[]{ 1 }));
+		Assert.assertEquals(8, lifted.toID(new int[]{ 9 }));
+		Assert.assertEquals(Partition.INVALID_ID, lifted.toID(new int[]{ 0 }));
+		Assert.assertEquals(Partition.INVALID_ID, digits.toID((Integer) null));
+		Assert.assertEquals("5", digits.idLabel(4));
+	}
+
 	@Test
-	public void obvious(){
-		Assert.assertTrue(true);
+	public void nextBoundaryIsTheFirstValueWithAnotherID(){
+		DoublePartition[] partitions = {
+				Partitions.range(0, 10, 100), Partitions.range(0, 0.1, 1), Partitions.range(-3, 1.0 / 3, 7),
+				Partitions.between(Arrays.asList(1.0, 2.5, 10.0)) };
+		Random random = new Random(17);
+		for (DoublePartition partition : partitions){
+			for (int i = 0; i < 10000; i++){
+				// include exact multiples of the steps, where rounding matters most
+				double x = i % 2 == 0 ? random.nextDouble() * 120 - 10 : (i % 1200) / 10.0 - 10;
+				double b = partition.nextBoundary(x);
+				Assert.assertTrue(b > x);
+				if (b == Double.POSITIVE_INFINITY) continue;
+				Assert.assertNotEquals(partition.toID(x), partition.toID(b));
+				Assert.assertEquals(partition.toID(x), partition.toID(Math.nextDown(b)));
+			}
+		}
+		Assert.assertEquals(Double.POSITIVE_INFINITY, Partitions.range(0, 10, 100).nextBoundary(100.5), 0.0);
+		Assert.assertEquals(0.0, Partitions.range(0, 10, 100).nextBoundary(-5), 0.0);
 	}
 }
@@ -0,0 +1,86 @@
+package ca.usask.abm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.commons.math3.stat.descriptive.rank.Percentile;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class QuantileSketchTest {
+
+	private static final double[] PERCENTILES = { 1, 10, 25, 50, 75, 90, 99 };
+
+	/**
+	 * @return the fraction of the sorted data that is strictly less than value
+	 */
+	private static double rankOf(double[] sorted, double value){
+		int index = Arrays.binarySearch(sorted, value);
+		if (index < 0) index = -(index + 1);
+		while (index > 0 && sorted[index - 1] == value) index--;
+		return (double) index / sorted.length;
+	}
+
+	private static void assertWithinRankError(double[] data, QuantileSketch sketch, double epsilon){
+		double[] sorted = data.clone();
+		Arrays.sort(sorted);
+		for (double p : PERCENTILES){
+			double exact = new Percentile(p).evaluate(data);
+			double approx = sketch.quantile(p / 100);
+			double error = Math.abs(rankOf(sorted, approx) - rankOf(sorted, exact));
+			Assert.assertTrue("rank error " + error + " at percentile " + p, error <= epsilon);
+		}
+	}
+
+	@Test
+	public void rankErrorIsBounded(){
+		Random random = new Random(42);
+		double[] data = new double[200000];
+		QuantileSketch sketch = new QuantileSketch(200);
+		for (int i = 0; i < data.length; i++){
+			data[i] = random.nextGaussian() * 20000 + 50000;
+			sketch.add(data[i]);
+		}
+		assertWithinRankError(data, sketch, 0.02);
+		Assert.assertTrue(sketch.retained() < 3 * 200 + 64);
+		Assert.assertEquals(data.length, sketch.count());
+	}
+
+	@Test
+	public void mergedRankErrorIsBounded(){
+		Random random = new Random(7);
+		double[] data = new double[100000];
+		QuantileSketch merged = new QuantileSketch(200);
+		for (int part = 0; part < 8; part++){
+			QuantileSketch partial = new QuantileSketch(200);
+			for (int i = part * data.length / 8; i < (part + 1) * data.length / 8; i++){
+				data[i] = Math.exp(random.nextDouble() * 10);
+				partial.add(data[i]);
+			}
+			merged.merge(partial);
+		}
+		assertWithinRankError(data, merged, 0.02);
+	}
+
+	@Test
+	public void smallInputsAreExact(){
+		QuantileSketch sketch = new QuantileSketch(200);
+		for (int i = 1; i <= 99; i++) sketch.add(i);
+		Assert.assertEquals(50.0, sketch.quantile(0.5), 0.0);
+		Assert.assertEquals(1.0, sketch.quantile(0), 0.0);
+		Assert.assertEquals(99.0, sketch.quantile(1), 0.0);
+		Assert.assertTrue(Double.isNaN(new QuantileSketch().quantile(0.5)));
+	}
+
+	@Test
+	public void statisticMatchesSketch(){
+		Random random = new Random(1);
+		List<Double> data = new ArrayList<Double>();
+		for (int i = 0; i < 50000; i++) data.add(random.nextDouble());
+		double approx = Statistics.approxMedian.apply(data);
+		double exact = Statistics.median.apply(data);
+		Assert.assertEquals(exact, approx, 0.02);
+	}
+}
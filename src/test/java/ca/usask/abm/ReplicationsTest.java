@@ -0,0 +1,116 @@
+package ca.usask.abm;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
+import org.apache.commons.math3.distribution.TDistribution;
+import org.apache.commons.math3.stat.descriptive.moment.Mean;
+import org.apache.commons.math3.stat.descriptive.moment.Variance;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ReplicationsTest {
+
+	private static final int REPLICATIONS = 12;
+
+	private static final ToDoubleFunction<double[]> AGE = new ToDoubleFunction<double[]>(){
+		public double applyAsDouble(double[] agent) { return agent[0]; }
+	};
+
+	/**
+	 * Replication i has 10 + i agents aged 2, and on even replications one agent aged 7 + i / 10
+	 */
+	private static List<double[]> agents(int i){
+		List<double[]> agents = new ArrayList<double[]>();
+		for (int a = 0; a < 10 + i; a++) agents.add(new double[]{ 2 });
+		if (i % 2 == 0) agents.add(new double[]{ 7 + i / 10.0 });
+		return agents;
+	}
+
+	private static ABMStats<List<double[]>, Object> stats(String name){
+		Partition<Double> years = Partitions.range(0, 1, 2);
+		StatisticsSpec<double[]> spec = new StatisticsSpec<double[]>();
+		spec.addPartition("Age", Partitions.range(0, 5, 10).liftDouble(AGE));
+		spec.addTimePartition("Year", years);
+		spec.addStatistic("Count", Statistics.<double[]>count());
+		spec.addStatistic("Average age", Statistics.mean.onDouble(AGE));
+		Function<List<double[]>, Iterable<double[]>> all = new Function<List<double[]>, Iterable<double[]>>(){
+			public Iterable<double[]> apply(List<double[]> model) { return model; }
+		};
+		ABMStats<List<double[]>, Object> stats = new ABMStats<List<double[]>, Object>();
+		stats.addAgentCollector(name, new AgentStatisticsCollector<List<double[]>, double[]>(all, spec, years));
+		return stats;
+	}
+
+	@Test
+	public void mergesReplicationsCellByCell() throws Exception {
+		ReplicationResults results = new Replications<List<double[]>, Object>(new Replication<List<double[]>, Object>(){
+			public ABMStats<List<double[]>, Object> run(int index) {
+				ABMStats<List<double[]>, Object> stats = stats("Ages");
+				stats.timeChanged(0.5, agents(index));
+				return stats;
+			}
+		}).run(REPLICATIONS, 4);
+		Assert.assertEquals(REPLICATIONS, results.replications());
+		MergedStatistics ages = results.get("Ages");
+		Assert.assertEquals(4, ages.cells()); // 2 age groups x 2 years
+
+		double[] young = new double[REPLICATIONS];
+		double[] old = new double[REPLICATIONS];
+		double[] oldAges = new double[REPLICATIONS];
+		for (int i = 0; i < REPLICATIONS; i++){
+			young[i] = 10 + i;
+			// empty cells count as the statistics of an empty category: a count of 0 and an average of 0
+			old[i] = i % 2 == 0 ? 1 : 0;
+			oldAges[i] = i % 2 == 0 ? 7 + i / 10.0 : 0;
+		}
+		long youngCell = 0, oldCell = 2; // (age group, year): (0, 0) and (1, 0)
+		assertMerged(young, ages, youngCell, 0);
+		assertMerged(old, ages, oldCell, 0);
+		assertMerged(oldAges, ages, oldCell, 1);
+		// the second year was never reached: every replication has an empty cell
+		Assert.assertEquals(0, ages.mean(1, 0), 0.0);
+		Assert.assertEquals(0, ages.variance(1, 0), 0.0);
+		Assert.assertEquals(REPLICATIONS, ages.count(1, 1), 0.0);
+	}
+
+	private static void assertMerged(double[] values, MergedStatistics merged, long cell, int statistic){
+		double variance = new Variance().evaluate(values);
+		double t = new TDistribution(values.length - 1).inverseCumulativeProbability(0.975);
+		Assert.assertEquals(values.length, merged.count(cell, statistic), 0.0);
+		Assert.assertEquals(new Mean().evaluate(values), merged.mean(cell, statistic), 1e-12);
+		Assert.assertEquals(variance, merged.variance(cell, statistic), 1e-12);
+		Assert.assertEquals(t * Math.sqrt(variance / values.length), merged.confidenceHalfWidth(cell, statistic), 1e-12);
+	}
+
+	@Test
+	public void confidenceLevelCanBeSetBeforeTheFirstMerge() throws Exception {
+		ReplicationResults results = new ReplicationResults();
+		results.setConfidenceLevel(0.9);
+		double[] young = new double[3];
+		for (int i = 0; i < young.length; i++){
+			ABMStats<List<double[]>, Object> stats = stats("Ages");
+			stats.timeChanged(0.5, agents(i));
+			results.merge(stats);
+			young[i] = 10 + i;
+		}
+		double t = new TDistribution(young.length - 1).inverseCumulativeProbability(0.95);
+		double halfWidth = t * Math.sqrt(new Variance().evaluate(young) / young.length);
+		Assert.assertEquals(halfWidth, results.get("Ages").confidenceHalfWidth(0, 0), 1e-12);
+	}
+
+	@Test
+	public void replicationsMustShareTheirLayout() throws Exception {
+		try {
+			new Replications<List<double[]>, Object>(new Replication<List<double[]>, Object>(){
+				public ABMStats<List<double[]>, Object> run(int index) {
+					return stats(index == 0 ? "Ages" : "Other");
+				}
+			}).run(3, 1);
+			Assert.fail();
+		} catch (ExecutionException e){
+			Assert.assertTrue(e.getCause() instanceof IllegalArgumentException);
+		}
+	}
+}
@@ -0,0 +1,113 @@
+package ca.usask.abm;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class StatisticsCubeTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private static final List<Double> INITIAL = Arrays.asList(0.0, Double.NaN);
+
+	@Test
+	public void linearIndicesAreLexicographic(){
+		StatisticsCube cube = new DenseStatisticsCube(Arrays.asList(3, 4, 5), INITIAL);
+		Assert.assertEquals(60, cube.cells());
+		Assert.assertEquals(2, cube.statistics());
+		int[] coords = new int[3];
+		long expected = 0;
+		for (int i = 0; i < 3; i++){
+			for (int j = 0; j < 4; j++){
+				for (int k = 0; k < 5; k++){
+					Assert.assertEquals(expected, cube.toLinearIndex(i, j, k));
+					Assert.assertEquals(expected, cube.toLinearIndex(Arrays.asList(i, j, k)));
+					cube.fromLinearIndex(expected, coords);
+					Assert.assertArrayEquals(new int[]{ i, j, k }, coords);
+					expected++;
+				}
+			}
+		}
+	}
+
+	@Test
+	public void cellsHoldTheirOwnStatistics(){
+		StatisticsCube cube = new DenseStatisticsCube(Arrays.asList(2, 2), INITIAL);
+		Assert.assertTrue(Double.isNaN(cube.get(3, 1)));
+		cube.set(2, 0, 5);
+		cube.set(2, 1, 7);
+		Assert.assertArrayEquals(new double[]{ 5, 7 }, cube.getCell(2), 0.0);
+		Assert.assertArrayEquals(new double[]{ 0, Double.NaN }, cube.getCell(1), 0.0);
+		Assert.assertFalse(cube.isEmpty(2));
+		Assert.assertTrue(cube.isEmpty(1));
+	}
+
+	@Test
+	public void sparseCubeMatchesDenseCube(){
+		List<Integer> dims = Arrays.asList(31, 31, 20);
+		StatisticsCube dense = new DenseStatisticsCube(dims, INITIAL);
+		SparseStatisticsCube sparse = new SparseStatisticsCube(dims, INITIAL);
+		Random random = new Random(11);
+		for (int i = 0; i < 5000; i++){
+			long cell = random.nextInt((int) dense.cells());
+			int stat = random.nextInt(2);
+			double value = random.nextDouble();
+			dense.set(cell, stat, value);
+			sparse.set(cell, stat, value);
+		}
+		for (long cell = 0; cell < dense.cells(); cell++){
+			Assert.assertArrayEquals(dense.getCell(cell), sparse.getCell(cell), 0.0);
+			Assert.assertEquals(dense.isEmpty(cell), sparse.isEmpty(cell));
+		}
+		Assert.assertArrayEquals(dense.nonEmptyCells(), sparse.nonEmptyCells());
+		Assert.assertEquals(dense.nonEmptyCells().length, sparse.size());
+	}
+
+	@Test
+	public void hugeCubesAreSparse(){
+		// five partitions of 100 IDs: 10^10 cells, far more than an array can hold
+		StatisticsCube cube = StatisticsCube.create(Arrays.asList(100, 100, 100, 100, 100), INITIAL, StatisticsCollector.SPARSE_THRESHOLD);
+		Assert.assertTrue(cube instanceof SparseStatisticsCube);
+		long last = cube.toLinearIndex(99, 99, 99, 99, 99);
+		Assert.assertEquals(cube.cells() - 1, last);
+		cube.set(last, 1, 3);
+		Assert.assertEquals(3, cube.get(last, 1), 0.0);
+		Assert.assertEquals(0, cube.get(last, 0), 0.0);
+		Assert.assertArrayEquals(new long[]{ last }, cube.nonEmptyCells());
+		Assert.assertTrue(StatisticsCube.create(Arrays.asList(31, 31, 20), INITIAL, StatisticsCollector.SPARSE_THRESHOLD) instanceof DenseStatisticsCube);
+	}
+
+	@Test
+	public void spilledCellsKeepTheirLatestRun() throws Exception {
+		SpillFile spill = new SpillFile(new File(folder.getRoot(), "cube.cells"), 2);
+		StatisticsCube cube = new DenseStatisticsCube(Arrays.asList(10), INITIAL);
+		long[][] runs = { { 1, 3, 5 }, { 3, 4 }, { 0, 3, 9 } };
+		for (int r = 0; r < runs.length; r++){
+			for (long cell : runs[r]){
+				cube.set(cell, 0, cell);
+				cube.set(cell, 1, r);
+			}
+			spill.append(cube.nonEmptyCells(), cube);
+			cube.clear();
+		}
+		List<Double> cells = new ArrayList<Double>();
+		List<Double> latestRuns = new ArrayList<Double>();
+		SpillFile.Merger merger = spill.merge();
+		while (merger.next()){
+			Assert.assertEquals(merger.cell(), merger.values()[0], 0.0);
+			cells.add(merger.values()[0]);
+			latestRuns.add(merger.values()[1]);
+		}
+		spill.close();
+		Assert.assertEquals(Arrays.asList(0.0, 1.0, 3.0, 4.0, 5.0, 9.0), cells);
+		Assert.assertEquals(Arrays.asList(2.0, 0.0, 2.0, 1.0, 0.0, 2.0), latestRuns);
+	}
+}
@@ -0,0 +1,110 @@
+package ca.usask.abm;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class StatisticsQueryTest {
+
+	/**
+	 * agents are {health, age, income} triples; incomes are whole numbers so that sums are exact in any order
+	 */
+	private static final ToDoubleFunction<double[]> HEALTH = new ToDoubleFunction<double[]>(){
+		public double applyAsDouble(double[] agent) { return agent[0]; }
+	};
+	private static final ToDoubleFunction<double[]> AGE = new ToDoubleFunction<double[]>(){
+		public double applyAsDouble(double[] agent) { return agent[1]; }
+	};
+	private static final ToDoubleFunction<double[]> INCOME = new ToDoubleFunction<double[]>(){
+		public double applyAsDouble(double[] agent) { return agent[2]; }
+	};
+
+	private static final DoublePartition HEALTHS = Partitions.range(0, 1, 4);
+	private static final DoublePartition AGES = Partitions.range(0, 5, 100);
+
+	private static List<double[]> population(int size){
+		Random random = new Random(5);
+		List<double[]> agents = new ArrayList<double[]>(size);
+		for (int i = 0; i < size; i++){
+			agents.add(new double[]{ random.nextInt(4), random.nextInt(100), random.nextInt(1000) });
+		}
+		return agents;
+	}
+
+	/**
+	 * @return a collector of the count, income and squared income by health, age group and decade,
+	 * 			updated once per decade with the given agents
+	 */
+	private static AgentStatisticsCollector<List<double[]>, double[]> collect(List<double[]> agents){
+		Partition<Double> decades = Partitions.range(0, 10, 100);
+		StatisticsSpec<double[]> spec = new StatisticsSpec<double[]>();
+		spec.addPartition("Health", HEALTHS.lift(Functions.boxed(HEALTH)));
+		spec.addPartition("Age", AGES.lift(Functions.boxed(AGE)));
+		spec.addTimePartition("Decade", decades);
+		spec.addStatistic("Count", Statistics.<double[]>count());
+		spec.addStatistic("Total Income", Statistics.sum.onDouble(INCOME));
+		spec.addStatistic("Average Income", Statistics.mean.onDouble(INCOME));
+		spec.addStatistic("Squared Income", Statistics.sumOfSquares.onDouble(INCOME));
+		Function<List<double[]>, Iterable<double[]>> all = new Function<List<double[]>, Iterable<double[]>>(){
+			public Iterable<double[]> apply(List<double[]> model) { return model; }
+		};
+		AgentStatisticsCollector<List<double[]>, double[]> collector = 
+					new AgentStatisticsCollector<List<double[]>, double[]>(all, spec, decades);
+		for (double time = 5; time < 100; time += 10) collector.update(time, agents);
+		return collector;
+	}
+
+	@Test
+	public void rollUpsMatchTheAgents() throws IOException {
+		List<double[]> agents = population(20000);
+		StatisticsQuery query = collect(agents).query();
+		Assert.assertEquals(3, query.statisticNames().size());
+		Assert.assertFalse(query.statisticNames().contains("Average Income"));
+		Assert.assertEquals(10 * agents.size(), query.sum("Count"), 0.0);
+
+		// count and income by health, over the decades [2, 5), among agents in age groups [4, 10)
+		StatisticsQuery selected = query.where("Decade", 2, 5).where("Age", 4, 10);
+		MultiDimArray<StatisticsQuery> byHealth = selected.groupBy("Health");
+		Assert.assertEquals(HEALTHS.maxID() + 1, byHealth.size());
+		for (int health = 0; health < byHealth.size(); health++){
+			double count = 0, income = 0, squares = 0;
+			for (double[] agent : agents){
+				int age = AGES.toID(agent[1]);
+				if (HEALTHS.toID(agent[0]) != health || age < 4 || age >= 10) continue;
+				count++;
+				income += agent[2];
+				squares += agent[2] * agent[2];
+			}
+			StatisticsQuery group = byHealth.get(health);
+			Assert.assertEquals(3 * count, group.sum("Count"), 0.0);
+			if (count == 0) continue;
+			Assert.assertEquals(3 * income, group.sum("Total Income"), 0.0);
+			Assert.assertEquals(income / count, group.mean("Total Income", "Count"), 1e-9);
+			double variance = (squares - income * income / count) / (count - 1);
+			// each agent appears once per decade, which only changes the bias correction
+			double expected = variance * (count - 1) * 3 / (3 * count - 1);
+			Assert.assertEquals(expected, group.variance("Squared Income", "Total Income", "Count"), 1e-6 * expected);
+		}
+	}
+
+	@Test
+	public void groupsMatchTheCells() throws IOException {
+		AgentStatisticsCollector<List<double[]>, double[]> collector = collect(population(5000));
+		StatisticsQuery query = collector.query();
+		MultiDimArray<StatisticsQuery> cells = query.groupBy("Health", "Age", "Decade");
+		Assert.assertEquals(collector.partitionedStats.cells(), cells.size());
+		for (int i = 0; i < cells.size(); i++){
+			Assert.assertEquals(collector.partitionedStats.get(i, 0), cells.get(i).sum("Count"), 0.0);
+			Assert.assertEquals(collector.partitionedStats.get(i, 1), cells.get(i).sum("Total Income"), 0.0);
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void intensiveStatisticsCannotBeSummed() throws IOException {
+		collect(population(100)).query().sum("Average Income");
+	}
+}
@@ -0,0 +1,170 @@
+package ca.usask.abm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.commons.math3.stat.descriptive.rank.Percentile;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class StatisticsTest {
+
+	private static final List<Double> DATA = Arrays.asList(3.0, 1.0, 4.0, 1.0, 5.0, 9.0, 2.0, 6.0, 5.0, 3.0, 5.0);
+
+	/**
+	 * Accumulates the first half of DATA and the second half separately, then merges the two
+	 */
+	private static double mergedResult(Statistic<Double> stat){
+		Accumulator<Double> left = stat.createAccumulator();
+		Accumulator<Double> right = stat.createAccumulator();
+		for (int i = 0; i < DATA.size(); i++){
+			if (i < DATA.size() / 2) left.add(DATA.get(i));
+			else right.add(DATA.get(i));
+		}
+		left.merge(right);
+		return left.result();
+	}
+
+	@Test
+	public void mergedAccumulatorsMatchApply(){
+		List<Statistic<Double>> stats = new ArrayList<Statistic<Double>>();
+		stats.add(Statistics.<Double>count());
+		stats.add(Statistics.sum);
+		stats.add(Statistics.mean);
+		stats.add(Statistics.median);
+		stats.add(Statistics.percentile(90));
+		stats.add(Statistics.sumOfSquares);
+		for (Statistic<Double> stat : stats){
+			Assert.assertEquals(stat.apply(DATA), mergedResult(stat), 0.0);
+		}
+	}
+
+	@Test
+	public void commonStatistics(){
+		Assert.assertEquals(11.0, Statistics.<Double>count().apply(DATA), 0.0);
+		Assert.assertEquals(44.0, Statistics.sum.apply(DATA), 0.0);
+		Assert.assertEquals(4.0, Statistics.mean.apply(DATA), 0.0);
+		Assert.assertEquals(0.0, Statistics.mean.apply(new ArrayList<Double>()), 0.0);
+		Assert.assertEquals(4.0, Statistics.median.apply(DATA), 0.0);
+		Assert.assertEquals(232.0, Statistics.sumOfSquares.apply(DATA), 0.0);
+		Assert.assertEquals(5.6, Statistics.variance.apply(DATA), 1e-12);
+		Assert.assertEquals(5.6, mergedResult(Statistics.variance), 1e-12);
+		Assert.assertEquals(0.0, Statistics.variance.apply(Arrays.asList(3.0)), 0.0);
+		Assert.assertTrue(Double.isNaN(Statistics.median.apply(new ArrayList<Double>())));
+		double[] d = new double[DATA.size()];
+		for (int i = 0; i < d.length; i++) d[i] = DATA.get(i);
+		Assert.assertEquals(new Percentile(25).evaluate(d), Statistics.percentile(25).apply(DATA), 0.0);
+	}
+
+	@Test
+	public void predicateCounts(){
+		Function<Double, Boolean> big = new Function<Double, Boolean>(){
+			public Boolean apply(Double d) { return d > 4; }
+		};
+		Assert.assertEquals(5.0, Statistics.count(big).apply(DATA), 0.0);
+		Assert.assertEquals(6.0, Statistics.countNot(big).apply(DATA), 0.0);
+	}
+
+	@Test
+	public void collectionStatisticsStillAccumulate(){
+		// a statistic that only implements apply() gets a buffering accumulator
+		Statistic<Double> max = new Statistic<Double>(){
+			public Double apply(Collection<Double> data) {
+				double m = Double.NEGATIVE_INFINITY;
+				for (double d : data) m = Math.max(m, d);
+				return m;
+			}
+		};
+		Assert.assertEquals(9.0, mergedResult(max), 0.0);
+		Function<Double, Double> twice = new Function<Double, Double>(){
+			public Double apply(Double d) { return 2 * d; }
+		};
+		Assert.assertEquals(18.0, max.on(twice).apply(DATA), 0.0);
+	}
+
+	@Test
+	public void primitiveAccessors(){
+		List<double[]> rows = new ArrayList<double[]>();
+		for (double d : DATA) rows.add(new double[]{ d });
+		ToDoubleFunction<double[]> first = new ToDoubleFunction<double[]>(){
+			public double applyAsDouble(double[] row) { return row[0]; }
+		};
+		Assert.assertEquals(Statistics.mean.apply(DATA), Statistics.mean.onDouble(first).apply(rows), 0.0);
+		Assert.assertEquals(Statistics.sum.apply(DATA), Statistics.sum.onDouble(first).apply(rows), 0.0);
+		Assert.assertEquals(Statistics.median.apply(DATA), Statistics.median.onDouble(first).apply(rows), 0.0);
+		Function<Double, Double> negate = new Function<Double, Double>(){
+			public Double apply(Double d) { return -d; }
+		};
+		Assert.assertEquals(-44.0, Statistics.sum.map(negate).onDouble(first).apply(rows), 0.0);
+	}
+
+	@Test
+	public void percentileOfSortedMatchesPercentile(){
+		Random random = new Random(7);
+		for (int size = 0; size < 40; size++){
+			double[] values = new double[size];
+			for (int i = 0; i < size; i++) values[i] = Math.floor(random.nextDouble() * 20);
+			double[] sorted = values.clone();
+			Arrays.sort(sorted);
+			for (double p : new double[]{ 1, 10, 25, 50, 75, 99, 100 }){
+				double expected = new Percentile(p).evaluate(values, 0, size);
+				Assert.assertEquals(expected, Statistics.percentileOfSorted(sorted, size, p), 0.0);
+			}
+		}
+	}
+
+	@Test
+	public void batchOutputsShareOneAccumulatorPerCategory(){
+		final int[] evaluations = { 0 };
+		DoubleBatchStatistic quartiles = Statistics.sortedValues(Arrays.asList("Q1", "Median", "Q3", "Total"),
+				new Statistics.SortedValuesFunction(){
+			public void evaluate(double[] sorted, int size, double sum, double[] out) {
+				evaluations[0]++;
+				out[0] = Statistics.percentileOfSorted(sorted, size, 25);
+				out[1] = Statistics.percentileOfSorted(sorted, size, 50);
+				out[2] = Statistics.percentileOfSorted(sorted, size, 75);
+				out[3] = sum;
+			}
+		});
+		StatisticsSpec<Double> spec = new StatisticsSpec<Double>();
+		spec.addStatistic("Count", Statistics.<Double>count());
+		spec.addStatistics(quartiles, "Total");
+		Assert.assertEquals(Arrays.asList("Count", "Q1", "Median", "Q3", "Total"), spec.statisticNames());
+		CompiledStatisticsSpec<Double> compiled = spec.compile();
+		for (int s = 0; s < 5; s++) Assert.assertEquals(s == 0 || s == 4, compiled.isExtensive(s));
+
+		// accumulate the two halves of DATA separately, then merge them
+		List<Accumulator<Double>> left = spec.compile().createAccumulators();
+		List<Accumulator<Double>> right = spec.compile().createAccumulators();
+		for (int i = 0; i < DATA.size(); i++){
+			for (Accumulator<Double> acc : (i < DATA.size() / 2 ? left : right)) acc.add(DATA.get(i));
+		}
+		for (int s = 0; s < left.size(); s++) left.get(s).merge(right.get(s));
+		List<Double> results = new ArrayList<Double>();
+		for (Accumulator<Double> acc : left) results.add(acc.result());
+
+		Assert.assertEquals(1, evaluations[0]); // a single sort for all four outputs
+		Assert.assertEquals(DATA.size(), results.get(0), 0.0);
+		Assert.assertEquals(Statistics.percentile(25).apply(DATA), results.get(1), 0.0);
+		Assert.assertEquals(Statistics.median.apply(DATA), results.get(2), 0.0);
+		Assert.assertEquals(Statistics.percentile(75).apply(DATA), results.get(3), 0.0);
+		Assert.assertEquals(mergedResult(Statistics.sum), results.get(4), 0.0);
+		// outside of a spec, each output is independent
+		Assert.assertEquals(Statistics.median.apply(DATA), quartiles.columns().get(1).apply(DATA), 0.0);
+		Assert.assertArrayEquals(new double[]{ results.get(1), results.get(2), results.get(3), results.get(4) },
+				quartiles.apply(DATA), 0.0);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void extensiveBatchOutputsMustExist(){
+		new StatisticsSpec<Double>().addStatistics(Statistics.sortedValues(Arrays.asList("Median"),
+				new Statistics.SortedValuesFunction(){
+			public void evaluate(double[] sorted, int size, double sum, double[] out) {
+				out[0] = Statistics.percentileOfSorted(sorted, size, 50);
+			}
+		}), "Total");
+	}
+}
@@ -0,0 +1,55 @@
+package ca.usask.abm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TimePartitionSchedulerTest {
+
+	@Test
+	public void matchesEvaluatingEveryPartition(){
+		List<Partition<Double>> partitions = new ArrayList<Partition<Double>>();
+		partitions.add(Partitions.range(0, 10, 100));
+		partitions.add(Partitions.range(0, 1, 100));
+		partitions.add(Partitions.range(0, 10, 100)); // same as the first
+		partitions.add(Partitions.range(5, 0.25, 50));
+		partitions.add(Partitions.between(Arrays.asList(20.0, 40.0, 60.0)));
+		partitions.add(new Partition<Double>(){ // not a DoublePartition
+			public int maxID() { return 1; }
+			public int toID(Double x) { return x < 50 ? 0 : 1; }
+			public String idLabel(int id) { return String.valueOf(id); }
+		});
+		TimePartitionScheduler<Integer> scheduler = new TimePartitionScheduler<Integer>();
+		int[] prevIDs = new int[partitions.size()];
+		for (int i = 0; i < partitions.size(); i++){
+			scheduler.add(partitions.get(i), i);
+			prevIDs[i] = Partition.INVALID_ID;
+		}
+		Assert.assertEquals(partitions.size() - 1, scheduler.partitions());
+
+		Random random = new Random(23);
+		double time = -2;
+		for (int step = 0; step < 20000; step++){
+			// mostly small steps forward, sometimes on exact boundaries, sometimes backwards
+			int kind = random.nextInt(100);
+			if (kind < 80) time += random.nextDouble() * 0.05;
+			else if (kind < 95) time = Math.ceil(time);
+			else time -= random.nextDouble() * 20;
+			List<Integer> due = new ArrayList<Integer>();
+			scheduler.advance(time, due);
+			List<Integer> expected = new ArrayList<Integer>();
+			for (int i = 0; i < partitions.size(); i++){
+				int curID = partitions.get(i).toID(time);
+				if (curID != prevIDs[i] && curID != Partition.INVALID_ID) expected.add(i);
+				prevIDs[i] = curID;
+			}
+			Collections.sort(due);
+			Assert.assertEquals("at time " + time, expected, due);
+		}
+	}
+}